@@ -758,88 +758,136 @@ JNIEXPORT jbyteArray Java_com_b44t_messenger_MediaController_getWaveform2(JNIEnv
     return result;
 }
 
-static int16_t *sampleBuffer = NULL;
+// the waveform of a file is computed step by step, so that long files can be cancelled and partial
+// waveforms can be shown; only a small chunk of decoded samples is held in memory at any time.
+#define WAVEFORM_SAMPLES        100
+#define WAVEFORM_CHUNK_SAMPLES  8192
 
-
-JNIEXPORT jbyteArray Java_com_b44t_messenger_MediaController_getWaveform(JNIEnv *env, jclass class, jstring path) {
+typedef struct {
+    OggOpusFile *opusFile;
+    int32_t sampleRate; // decoded samples per waveform sample
+    uint64_t sampleIndex;
+    uint16_t peakSample;
+    int index;
+    uint16_t samples[WAVEFORM_SAMPLES];
+    int16_t buffer[WAVEFORM_CHUNK_SAMPLES];
+} waveform_t;
+
+JNIEXPORT jlong Java_com_b44t_messenger_MediaController_openWaveform(JNIEnv *env, jclass class, jstring path) {
     const char *pathStr = (*env)->GetStringUTFChars(env, path, 0);
-    jbyteArray result = 0;
-    
+    waveform_t *waveform = NULL;
+
     int error = OPUS_OK;
     OggOpusFile *opusFile = op_open_file(pathStr, &error);
     if (opusFile != NULL && error == OPUS_OK) {
-        int64_t totalSamples = op_pcm_total(opusFile, -1);
-        int32_t resultSamples = 100;
-        int32_t sampleRate = (int32_t) max(1, totalSamples / resultSamples);
-        
-        uint16_t *samples = malloc(100 * 2);
-        
-        int bufferSize = 1024 * 128;
-        if (sampleBuffer == NULL) {
-            sampleBuffer = malloc(bufferSize);
+        waveform = calloc(1, sizeof(waveform_t));
+        if (waveform != NULL) {
+            waveform->opusFile = opusFile;
+            waveform->sampleRate = (int32_t) max(1, op_pcm_total(opusFile, -1) / WAVEFORM_SAMPLES);
+            opusFile = NULL;
         }
-        uint64_t sampleIndex = 0;
-        uint16_t peakSample = 0;
-        
-        int index = 0;
-        
-        while (1) {
-            int readSamples = op_read(opusFile, sampleBuffer, bufferSize / 2, NULL);
-            for (int i = 0; i < readSamples; i++) {
-                uint16_t sample = (uint16_t) abs(sampleBuffer[i]);
-                if (sample > peakSample) {
-                    peakSample = sample;
-                }
-                if (sampleIndex++ % sampleRate == 0) {
-                    if (index < resultSamples) {
-                        samples[index++] = peakSample;
-                    }
-                    peakSample = 0;
-                }
-            }
-            if (readSamples == 0) {
-                break;
-            }
-        }
-        
-        int64_t sumSamples = 0;
-        for (int i = 0; i < resultSamples; i++) {
-            sumSamples += samples[i];
-        }
-        uint16_t peak = (uint16_t) (sumSamples * 1.8f / resultSamples);
-        if (peak < 2500) {
-            peak = 2500;
+    }
+    if (opusFile != NULL) {
+        op_free(opusFile);
+    }
+
+    if (pathStr != 0) {
+        (*env)->ReleaseStringUTFChars(env, path, pathStr);
+    }
+
+    return (jlong) (intptr_t) waveform;
+}
+
+JNIEXPORT jint Java_com_b44t_messenger_MediaController_stepWaveform(JNIEnv *env, jclass class, jlong handle, jint maxSamples) {
+    // decodes up to maxSamples samples; returns 0 if the end of the file is reached
+    waveform_t *waveform = (waveform_t *) (intptr_t) handle;
+    if (waveform == NULL || waveform->opusFile == NULL) {
+        return 0;
+    }
+    int decoded = 0;
+    while (decoded < maxSamples) {
+        int readSamples = op_read(waveform->opusFile, waveform->buffer, WAVEFORM_CHUNK_SAMPLES, NULL);
+        if (readSamples <= 0) {
+            op_free(waveform->opusFile);
+            waveform->opusFile = NULL;
+            return 0;
         }
-        
-        for (int i = 0; i < resultSamples; i++) {
-            uint16_t sample = (uint16_t) ((int64_t) samples[i]);
-            if (sample > peak) {
-                samples[i] = peak;
+        for (int i = 0; i < readSamples; i++) {
+            uint16_t sample = (uint16_t) abs(waveform->buffer[i]);
+            if (sample > waveform->peakSample) {
+                waveform->peakSample = sample;
+            }
+            if (waveform->sampleIndex++ % waveform->sampleRate == 0) {
+                if (waveform->index < WAVEFORM_SAMPLES) {
+                    waveform->samples[waveform->index++] = waveform->peakSample;
+                }
+                waveform->peakSample = 0;
             }
         }
-        
-        //free(sampleBuffer);
-        op_free(opusFile);
-        
-        int bitstreamLength = (resultSamples * 5) / 8 + (((resultSamples * 5) % 8) == 0 ? 0 : 1);
-        result = (*env)->NewByteArray(env, bitstreamLength);
-        jbyte *bytes = (*env)->GetByteArrayElements(env, result, NULL);
-        
-        for (int i = 0; i < resultSamples; i++) {
-            int32_t value = min(31, abs((int32_t) samples[i]) * 31 / peak);
-            set_bits(bytes, i * 5, value & 31);
+        decoded += readSamples;
+    }
+    return 1;
+}
+
+JNIEXPORT jbyteArray Java_com_b44t_messenger_MediaController_getWaveformResult(JNIEnv *env, jclass class, jlong handle) {
+    // returns the waveform computed so far; samples not yet decoded are zero
+    waveform_t *waveform = (waveform_t *) (intptr_t) handle;
+    if (waveform == NULL) {
+        return 0;
+    }
+
+    uint16_t samples[WAVEFORM_SAMPLES];
+    int64_t sumSamples = 0;
+    for (int i = 0; i < WAVEFORM_SAMPLES; i++) {
+        samples[i] = i < waveform->index ? waveform->samples[i] : 0;
+        sumSamples += samples[i];
+    }
+    int filled = waveform->index > 0 ? waveform->index : 1; // the peak is relative to the samples decoded so far
+    uint16_t peak = (uint16_t) (sumSamples * 1.8f / filled);
+    if (peak < 2500) {
+        peak = 2500;
+    }
+    for (int i = 0; i < WAVEFORM_SAMPLES; i++) {
+        if (samples[i] > peak) {
+            samples[i] = peak;
         }
+    }
+
+    // set_bits() writes 32 bit, so the buffer is a little larger than the result
+    int bitstreamLength = (WAVEFORM_SAMPLES * 5) / 8 + (((WAVEFORM_SAMPLES * 5) % 8) == 0 ? 0 : 1);
+    uint8_t bytes[(WAVEFORM_SAMPLES * 5) / 8 + 8] = {0};
+    for (int i = 0; i < WAVEFORM_SAMPLES; i++) {
+        int32_t value = min(31, abs((int32_t) samples[i]) * 31 / peak);
+        set_bits(bytes, i * 5, value & 31);
+    }
 
-        (*env)->ReleaseByteArrayElements(env, result, bytes, JNI_COMMIT);
-        free(samples);
+    jbyteArray result = (*env)->NewByteArray(env, bitstreamLength);
+    if (result != 0) {
+        (*env)->SetByteArrayRegion(env, result, 0, bitstreamLength, (jbyte *) bytes);
     }
-    
-    
-    
-    if (pathStr != 0) {
-        (*env)->ReleaseStringUTFChars(env, path, pathStr);
+    return result;
+}
+
+JNIEXPORT void Java_com_b44t_messenger_MediaController_closeWaveform(JNIEnv *env, jclass class, jlong handle) {
+    waveform_t *waveform = (waveform_t *) (intptr_t) handle;
+    if (waveform != NULL) {
+        if (waveform->opusFile != NULL) {
+            op_free(waveform->opusFile);
+        }
+        free(waveform);
+    }
+}
+
+JNIEXPORT jbyteArray Java_com_b44t_messenger_MediaController_getWaveform(JNIEnv *env, jclass class, jstring path) {
+    jbyteArray result = 0;
+    jlong handle = Java_com_b44t_messenger_MediaController_openWaveform(env, class, path);
+    if (handle != 0) {
+        while (Java_com_b44t_messenger_MediaController_stepWaveform(env, class, handle, WAVEFORM_CHUNK_SAMPLES * 16)) {
+            ;
+        }
+        result = Java_com_b44t_messenger_MediaController_getWaveformResult(env, class, handle);
+        Java_com_b44t_messenger_MediaController_closeWaveform(env, class, handle);
     }
-    
     return result;
 }
 
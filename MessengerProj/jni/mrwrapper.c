@@ -440,6 +440,112 @@ JNIEXPORT jstring Java_com_b44t_messenger_MrMailbox_MrMailboxGetMsgInfo(JNIEnv *
 }
 
 
+/* the column layout must match MrMsgRange.java */
+#define MSGRANGE_INT_COL_ID          0
+#define MSGRANGE_INT_COL_FROM_ID     1
+#define MSGRANGE_INT_COL_TO_ID       2
+#define MSGRANGE_INT_COL_CHAT_ID     3
+#define MSGRANGE_INT_COL_TYPE        4
+#define MSGRANGE_INT_COL_STATE       5
+#define MSGRANGE_INT_COL_BYTES       6
+#define MSGRANGE_INT_COL_INCREATION  7
+#define MSGRANGE_INT_COLS            8
+
+#define MSGRANGE_STR_COL_TEXT        0
+#define MSGRANGE_STR_COL_PARAM       1
+#define MSGRANGE_STR_COL_FILENAME    2
+#define MSGRANGE_STR_COL_MEDIAINFO1  3
+#define MSGRANGE_STR_COL_MEDIAINFO2  4
+
+
+static void s_set_range_string(JNIEnv* env, jobjectArray ret_strings, int index, const char* str)
+{
+	if( str && str[0] ) {
+		jstring temp = JSTRING_NEW(str);
+			(*env)->SetObjectArrayElement(env, ret_strings, index, temp);
+		(*env)->DeleteLocalRef(env, temp); /* a range may contain more strings than local references are allowed */
+	}
+}
+
+
+JNIEXPORT void Java_com_b44t_messenger_MrMailbox_MrMailboxGetMsgRange(JNIEnv *env, jclass c, jlong hMailbox, jintArray msg_ids, jint first, jint cnt,
+                                                                     jintArray ret_ints, jlongArray ret_timestamps, jobjectArray ret_strings)
+{
+	mrmailbox_t* mailbox = (mrmailbox_t*)hMailbox;
+	jint*        ids = NULL;
+	jint*        ints = NULL;
+	jlong*       timestamps = NULL;
+	int          i;
+
+	if( mailbox == NULL || msg_ids == NULL || first < 0 || cnt <= 0 || first+cnt > (*env)->GetArrayLength(env, msg_ids)
+	 || (*env)->GetArrayLength(env, ret_ints) < cnt*MSGRANGE_INT_COLS || (*env)->GetArrayLength(env, ret_timestamps) < cnt ) {
+		return;
+	}
+
+	ids        = calloc(cnt, sizeof(jint));
+	ints       = calloc(cnt*MSGRANGE_INT_COLS, sizeof(jint));
+	timestamps = calloc(cnt, sizeof(jlong));
+	if( ids == NULL || ints == NULL || timestamps == NULL ) {
+		goto cleanup;
+	}
+
+	(*env)->GetIntArrayRegion(env, msg_ids, first, cnt, ids);
+
+	for( i = 0; i < cnt; i++ )
+	{
+		ints[MSGRANGE_INT_COL_ID*cnt+i] = ids[i];
+		if( ids[i] <= MR_MSG_ID_LAST_SPECIAL ) {
+			continue; /* markers have no further data */
+		}
+
+		mrmsg_t* msg = mrmailbox_get_msg(mailbox, ids[i]);
+		if( msg == NULL ) {
+			continue;
+		}
+
+			ints[MSGRANGE_INT_COL_FROM_ID   *cnt+i] = msg->m_from_id;
+			ints[MSGRANGE_INT_COL_TO_ID     *cnt+i] = msg->m_to_id;
+			ints[MSGRANGE_INT_COL_CHAT_ID   *cnt+i] = msg->m_chat_id;
+			ints[MSGRANGE_INT_COL_TYPE      *cnt+i] = msg->m_type;
+			ints[MSGRANGE_INT_COL_STATE     *cnt+i] = msg->m_state;
+			ints[MSGRANGE_INT_COL_INCREATION*cnt+i] = mrmsg_is_increation(msg);
+			timestamps[i] = msg->m_timestamp;
+
+			s_set_range_string(env, ret_strings, MSGRANGE_STR_COL_TEXT*cnt+i, msg->m_text);
+			s_set_range_string(env, ret_strings, MSGRANGE_STR_COL_PARAM*cnt+i, msg->m_param? msg->m_param->m_packed : NULL);
+
+			char* file = mrparam_get(msg->m_param, 'f', NULL);
+			if( file ) {
+				ints[MSGRANGE_INT_COL_BYTES*cnt+i] = mr_get_filebytes(file);
+				free(file);
+
+				char* filename = mrmsg_get_filename(msg);
+					s_set_range_string(env, ret_strings, MSGRANGE_STR_COL_FILENAME*cnt+i, filename);
+				free(filename);
+			}
+
+			if( msg->m_type == MR_MSG_AUDIO ) {
+				mrpoortext_t* mediainfo = mrmsg_get_mediainfo(msg);
+				if( mediainfo ) {
+					s_set_range_string(env, ret_strings, MSGRANGE_STR_COL_MEDIAINFO1*cnt+i, mediainfo->m_text1);
+					s_set_range_string(env, ret_strings, MSGRANGE_STR_COL_MEDIAINFO2*cnt+i, mediainfo->m_text2);
+					mrpoortext_unref(mediainfo);
+				}
+			}
+
+		mrmsg_unref(msg);
+	}
+
+	(*env)->SetIntArrayRegion(env, ret_ints, 0, cnt*MSGRANGE_INT_COLS, ints);
+	(*env)->SetLongArrayRegion(env, ret_timestamps, 0, cnt, timestamps);
+
+cleanup:
+	free(ids);
+	free(ints);
+	free(timestamps);
+}
+
+
 JNIEXPORT void Java_com_b44t_messenger_MrMailbox_deleteMsgs(JNIEnv *env, jclass cls, jintArray msg_ids)
 {
 	int msg_ids_cnt;
@@ -567,6 +673,27 @@ JNIEXPORT jlong Java_com_b44t_messenger_MrChatlist_MrChatlistGetSummaryByIndex(J
 }
 
 
+JNIEXPORT jintArray Java_com_b44t_messenger_MrChatlist_MrChatlistGetIds(JNIEnv *env, jclass c, jlong hChatlist)
+{
+	/* returns the pairs of chat_id and last msg_id as stored in the chatlist; this allows the frontend
+	to compare two chatlists without loading any chat or message. */
+	mrchatlist_t* chatlist = (mrchatlist_t*)hChatlist;
+	int i, icnt = (chatlist && chatlist->m_chatNlastmsg_ids)? carray_count(chatlist->m_chatNlastmsg_ids) : 0;
+	jintArray ret = (*env)->NewIntArray(env, icnt); if (ret == NULL) { return NULL; }
+
+	if( icnt ) {
+		jint* temp = calloc(icnt, sizeof(jint));
+			for( i = 0; i < icnt; i++ ) {
+				temp[i] = (jint)(uintptr_t)carray_get(chatlist->m_chatNlastmsg_ids, i);
+			}
+			(*env)->SetIntArrayRegion(env, ret, 0, icnt, temp);
+		free(temp);
+	}
+
+	return ret;
+}
+
+
 /*******************************************************************************
  * MrChat
  ******************************************************************************/
@@ -963,7 +963,7 @@ public class AndroidUtilities {
 
         final Toast waitingHint = showHint(context, context.getString(R.string.OneMoment));
 
-        new Thread(new Runnable() {
+        MediaExecutor.post("saveFile", MediaExecutor.PRIORITY_HIGH, new Runnable() {
             @Override
             public void run() {
                 boolean allOkay = false;
@@ -1039,7 +1039,7 @@ public class AndroidUtilities {
                 });
 
             }
-        }).start();
+        });
     }
 
 }
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    AttachmentImporter.java
+ * Purpose: Copy files shared from other apps to the blob directory; the size,
+ *          a content hash and the type of the file are determined while
+ *          copying, so the shared source is read only once. Metadata of
+ *          audio files is read from the local copy afterwards.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Locale;
+
+
+public class AttachmentImporter {
+
+    private final static int BUFFER_BYTES = 256*1024;
+
+    public static class Result {
+        public File   m_file;
+        public long   m_size;
+        public String m_hash;        // hex-encoded SHA-1 of the content
+        public String m_sniffedMime; // null if the type cannot be detected from the content
+        public boolean m_deduplicated;
+    }
+
+    private final static Object s_lock = new Object(); // an imported file is named and registered as a whole
+    private static int  s_imports, s_deduplicated;
+    private static long s_bytes;
+
+    public static Result importUri(Uri uri, String ext) {
+        // returns null on errors; a partly written file is deleted then
+        InputStream inputStream = null;
+        ParcelFileDescriptor pfd = null;
+        FileOutputStream output = null;
+        File f = null;
+        try {
+            String name = MediaController.getFileName(uri);
+            if (name == null) {
+                int id = UserConfig.getNextLocalId();
+                UserConfig.saveConfig();
+                name = String.format(Locale.US, "%d.%s", id, ext);
+            }
+
+            // prefer the file descriptor, reading from it does not go through the content provider for each block;
+            // providers that serve assets or parts of files throw an exception here and are read as a stream
+            try {
+                pfd = ApplicationLoader.applicationContext.getContentResolver().openFileDescriptor(uri, "r");
+            } catch (Exception e) {
+                pfd = null;
+            }
+            if (pfd != null) {
+                inputStream = new FileInputStream(pfd.getFileDescriptor());
+            }
+            else {
+                inputStream = ApplicationLoader.applicationContext.getContentResolver().openInputStream(uri);
+            }
+
+            // the file is written to a unique temporary file first, an existing file of the same name may belong to another message
+            // and several imports of the same name may run at the same time
+            File dir = FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE);
+            f = BlobIndex.createTempFile();
+            output = new FileOutputStream(f);
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[BUFFER_BYTES];
+            byte[] header = null;
+            long size = 0;
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                if( header == null && len > 0 ) {
+                    header = new byte[Math.min(len, 16)];
+                    System.arraycopy(buffer, 0, header, 0, header.length);
+                }
+                digest.update(buffer, 0, len);
+                output.write(buffer, 0, len);
+                size += len;
+            }
+            output.close();
+            output = null;
+
+            Result ret = new Result();
+            ret.m_size        = size;
+            ret.m_hash        = Utilities.bytesToHex(digest.digest());
+            ret.m_sniffedMime = header != null ? sniffMime(header) : null;
+
+            synchronized (s_lock) {
+                s_imports++;
+                s_bytes += size;
+                File target = new File(dir, name);
+                File existing = BlobIndex.find(ret.m_hash, size);
+                if( existing != null ) {
+                    // the same content is already in the blob directory; use the existing blob, if possible under the desired name
+                    if( !existing.equals(target) ) {
+                        File linked = target.exists() ? AndroidUtilities.getFineFilename(dir, name) : target;
+                        if( linked != null && BlobIndex.link(existing, linked) ) {
+                            existing = linked;
+                        }
+                    }
+                    f.delete();
+                    ret.m_file = existing;
+                    ret.m_deduplicated = true;
+                    s_deduplicated++;
+                }
+                else {
+                    ret.m_file = target.exists() ? AndroidUtilities.getFineFilename(dir, name) : target;
+                    if( ret.m_file == null || !f.renameTo(ret.m_file) ) {
+                        f.delete();
+                        return null;
+                    }
+                    BlobIndex.add(ret.m_hash, ret.m_file);
+                }
+            }
+            return ret;
+        } catch (Exception e) {
+            FileLog.e("messenger", "Cannot import " + uri + ": " + e);
+            if( output != null && f != null ) {
+                try { output.close(); } catch (Exception e2) { }
+                output = null;
+                f.delete();
+            }
+        } finally {
+            try {
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+            } catch (Exception e2) {
+            }
+            try {
+                if (pfd != null) {
+                    pfd.close();
+                }
+            } catch (Exception e2) {
+            }
+            try {
+                if (output != null) {
+                    output.close();
+                }
+            } catch (Exception e2) {
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] header, int offset, String magic) {
+        if( header.length < offset + magic.length() ) {
+            return false;
+        }
+        for( int i = 0; i < magic.length(); i++ ) {
+            if( header[offset+i] != (byte)magic.charAt(i) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static String sniffMime(byte[] header) {
+        // header should contain at least the first 12 bytes of the file
+        if( startsWith(header, 0, "GIF8") )                                         return "image/gif";
+        if( startsWith(header, 0, "\u0089PNG") )                                    return "image/png";
+        if( startsWith(header, 0, "\u00ff\u00d8\u00ff") )                           return "image/jpeg";
+        if( startsWith(header, 0, "RIFF") && startsWith(header, 8, "WEBP") )        return "image/webp";
+        if( startsWith(header, 0, "RIFF") && startsWith(header, 8, "WAVE") )        return "audio/x-wav";
+        if( startsWith(header, 0, "%PDF") )                                         return "application/pdf";
+        if( startsWith(header, 0, "ID3") )                                          return "audio/mpeg";
+        if( startsWith(header, 0, "OggS") )                                         return "audio/ogg";
+        if( startsWith(header, 4, "ftypM4A") )                                      return "audio/mp4";
+        if( startsWith(header, 4, "ftyp") )                                         return "video/mp4";
+        if( startsWith(header, 0, "PK\u0003\u0004") )                               return "application/zip";
+        return null;
+    }
+
+    public static String getStatsStr() {
+        synchronized (s_lock) {
+            return "imports=" + s_imports + ", bytes=" + s_bytes + ", deduplicated=" + s_deduplicated;
+        }
+    }
+}
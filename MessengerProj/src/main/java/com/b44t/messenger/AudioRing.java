@@ -0,0 +1,117 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    AudioRing.java
+ * Purpose: Fixed ring of audio buffers between exactly one decoding thread and
+ *          exactly one playing thread; no locks and no allocations while
+ *          playing.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+
+
+public class AudioRing {
+
+    public static class Slot {
+        public final ByteBuffer m_buffer; // direct buffer, filled by the native decoder
+        public final byte[]     m_bytes;  // copy of the buffer for AudioTrack.write() before Android 5.0, null otherwise
+        public int              m_size;
+        public long             m_pcmOffset;
+        public boolean          m_finished;
+
+        private Slot(int capacity) {
+            m_buffer = ByteBuffer.allocateDirect(capacity);
+            m_bytes  = Build.VERSION.SDK_INT >= 21 ? null : new byte[capacity];
+        }
+    }
+
+    // the positions grow forever and are mapped to the slots by modulo.
+    // m_head is only changed by the producer and m_tail only by the consumer; as both are volatile,
+    // the slot content written before publishing a position is visible to the other thread.
+    private final Slot[]  m_slots;
+    private volatile long m_head;        // next slot to write
+    private volatile long m_tail;        // next slot to read
+    private volatile long m_clearedHead; // slots before this position are skipped by the consumer, see clear()
+
+    private volatile int  m_underruns;
+
+    public AudioRing(int slotCnt, int slotCapacity) {
+        m_slots = new Slot[slotCnt];
+        for( int i = 0; i < slotCnt; i++ ) {
+            m_slots[i] = new Slot(slotCapacity);
+        }
+    }
+
+    // producer
+
+    public Slot beginWrite() {
+        // returns the slot to fill or null if the ring is full
+        long head = m_head;
+        if( head - m_tail >= m_slots.length ) {
+            return null;
+        }
+        return m_slots[(int)(head % m_slots.length)];
+    }
+
+    public void endWrite() {
+        m_head = m_head + 1;
+    }
+
+    public void clear() {
+        // drop all slots not yet read, eg. after seeking; as the consumer may just read a slot,
+        // the slots are not freed here but skipped by the consumer on its next call to beginRead()
+        m_clearedHead = m_head;
+    }
+
+    // consumer
+
+    public Slot beginRead() {
+        // returns the next slot to play or null if the ring is empty
+        long tail = m_tail;
+        long clearedHead = m_clearedHead;
+        if( tail < clearedHead ) {
+            tail = clearedHead;
+            m_tail = tail;
+        }
+        if( tail >= m_head ) {
+            return null;
+        }
+        return m_slots[(int)(tail % m_slots.length)];
+    }
+
+    public void endRead() {
+        m_tail = m_tail + 1;
+    }
+
+    public void countUnderrun() {
+        m_underruns = m_underruns + 1;
+    }
+
+    public String getStatsStr() {
+        return "slots=" + m_slots.length + "x" + m_slots[0].m_buffer.capacity() + ", consumed=" + m_tail + ", underruns=" + m_underruns;
+    }
+}
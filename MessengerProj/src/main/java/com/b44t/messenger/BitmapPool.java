@@ -0,0 +1,140 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    BitmapPool.java
+ * Purpose: Keep bitmaps removed from the ImageLoader's memory cache, so that
+ *          they can be reused for decoding via BitmapFactory.Options.inBitmap
+ *          instead of allocating new ones.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+
+
+public class BitmapPool {
+
+    // decoding into a bitmap of any size that is large enough is possible since API 19;
+    // before, only bitmaps of exactly the same size could be reused, which is too rare to be worth it.
+    public final static boolean SUPPORTED = Build.VERSION.SDK_INT >= 19;
+
+    // the bitmaps are sorted into size classes, class `c` holds bitmaps of up to 2^c bytes
+    private final static SparseArray<ArrayList<Bitmap>> s_classes = new SparseArray<>();
+    private static int s_bytes, s_maxBytes = 4*1024*1024;
+    private static int s_reused, s_missed, s_returned, s_dropped;
+
+    public static synchronized void setMaxBytes(int maxBytes) {
+        s_maxBytes = maxBytes;
+        trim();
+    }
+
+    private static int sizeClass(int bytes) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(bytes, 1) - 1);
+    }
+
+    public static int bytesPerPixel(Bitmap.Config config) {
+        return config == Bitmap.Config.ARGB_8888 ? 4 : 2;
+    }
+
+    @TargetApi(19)
+    public static synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        // returns a bitmap that can be used as inBitmap for the given size or null; the caller owns the bitmap.
+        // we look in the matching and in the next larger class, so at most 4 times the memory needed is used.
+        if( !SUPPORTED || width <= 0 || height <= 0 ) {
+            return null;
+        }
+        int bytes = width * height * bytesPerPixel(config);
+        int c = sizeClass(bytes);
+        for( int cc = c; cc <= c+1; cc++ ) {
+            ArrayList<Bitmap> list = s_classes.get(cc);
+            if( list != null ) {
+                for( int i = list.size()-1; i >= 0; i-- ) {
+                    Bitmap bitmap = list.get(i);
+                    if( bitmap.getAllocationByteCount() >= bytes ) {
+                        list.remove(i);
+                        s_bytes -= bitmap.getAllocationByteCount();
+                        s_reused++;
+                        return bitmap;
+                    }
+                }
+            }
+        }
+        s_missed++;
+        return null;
+    }
+
+    @TargetApi(19)
+    public static synchronized void put(Bitmap bitmap) {
+        // takes over the bitmap; if it cannot be reused, it is recycled at once.
+        // the bitmap must not be used by anyone else anymore, this is the same condition as for recycle().
+        if( bitmap == null || bitmap.isRecycled() ) {
+            return;
+        }
+        if( !SUPPORTED || !bitmap.isMutable() || bitmap.getAllocationByteCount() > s_maxBytes/2 ) {
+            bitmap.recycle();
+            s_dropped++;
+            return;
+        }
+
+        int bytes = bitmap.getAllocationByteCount();
+        int c = sizeClass(bytes);
+        ArrayList<Bitmap> list = s_classes.get(c);
+        if( list == null ) {
+            list = new ArrayList<>();
+            s_classes.put(c, list);
+        }
+        list.add(bitmap);
+        s_bytes += bytes;
+        s_returned++;
+        trim();
+    }
+
+    @TargetApi(19)
+    private static void trim() {
+        // drop bitmaps from the largest classes first, they free most memory
+        for( int i = s_classes.size()-1; i >= 0 && s_bytes > s_maxBytes; i-- ) {
+            ArrayList<Bitmap> list = s_classes.valueAt(i);
+            while( !list.isEmpty() && s_bytes > s_maxBytes ) {
+                Bitmap bitmap = list.remove(0);
+                s_bytes -= bitmap.getAllocationByteCount();
+                bitmap.recycle();
+                s_dropped++;
+            }
+        }
+    }
+
+    public static synchronized void clear() {
+        s_maxBytes = -s_maxBytes;
+        trim();
+        s_maxBytes = -s_maxBytes;
+    }
+
+    public static synchronized String getStatsStr() {
+        return "bytes=" + s_bytes + "/" + s_maxBytes + ", reused=" + s_reused + ", missed=" + s_missed + ", returned=" + s_returned + ", dropped=" + s_dropped;
+    }
+}
@@ -0,0 +1,338 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    BlobIndex.java
+ * Purpose: Find files in the blob directory by the hash of their content, so
+ *          that identical attachments are stored only once.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.os.Build;
+import android.system.Os;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class BlobIndex {
+
+    // the messages refer to the blobs by their paths, so a blob cannot be replaced by a hash;
+    // instead, blobs with the same content are hard links to the same data (Android 5.0 and newer).
+    // the file system counts the links, so deleting a message (and its path) never removes data
+    // still used by another message.
+    public final static boolean LINKS_SUPPORTED = Build.VERSION.SDK_INT >= 21;
+
+    private final static long MIN_AGE_MS = 60*60*1000; // younger files may still be written by an import or by the backend
+
+    private static HashMap<String, String> s_nameByHash; // hash -> name of a blob with this content, loaded on first use
+    private static int  s_lookups, s_hits, s_linked;
+    private static long s_cleanupSavedBytes;
+    private static int  s_cleanupMerged, s_cleanupRemovedParts, s_cleanupDroppedEntries;
+
+    private static File getBlobDir() {
+        return FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE);
+    }
+
+    private static File getTempDir() {
+        // temporary files are kept in a subdirectory, so they never clash with a blob, which may have any name
+        return new File(getBlobDir(), ".tmp");
+    }
+
+    static File createTempFile() throws IOException {
+        File dir = getTempDir();
+        dir.mkdirs();
+        return File.createTempFile("blob", ".tmp", dir);
+    }
+
+    private static File getIndexFile() {
+        return new File(ApplicationLoader.applicationContext.getFilesDir(), "blobindex.txt");
+    }
+
+    private static void load() {
+        // each line of the index is "<hash> <name>"; later lines overwrite earlier ones
+        if( s_nameByHash != null ) {
+            return;
+        }
+        s_nameByHash = new HashMap<>();
+        BufferedReader reader = null;
+        try {
+            File indexFile = getIndexFile();
+            if( indexFile.exists() ) {
+                reader = new BufferedReader(new FileReader(indexFile));
+                String line;
+                while( (line = reader.readLine()) != null ) {
+                    int sep = line.indexOf(' ');
+                    if( sep > 0 && sep < line.length()-1 ) {
+                        s_nameByHash.put(line.substring(0, sep), line.substring(sep+1));
+                    }
+                }
+            }
+        }
+        catch( Exception e ) {
+            FileLog.e("messenger", "Cannot read blob index: " + e);
+        }
+        finally {
+            try {
+                if( reader != null ) {
+                    reader.close();
+                }
+            }
+            catch( Exception e ) {
+            }
+        }
+    }
+
+    private static void save(String hash, String name, boolean append) {
+        // append a single entry or, if hash is null, rewrite the whole index
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(getIndexFile(), append);
+            if( hash != null ) {
+                writer.write(hash + " " + name + "\n");
+            }
+            else {
+                for( Map.Entry<String, String> e : s_nameByHash.entrySet() ) {
+                    writer.write(e.getKey() + " " + e.getValue() + "\n");
+                }
+            }
+        }
+        catch( Exception e ) {
+            FileLog.e("messenger", "Cannot write blob index: " + e);
+        }
+        finally {
+            try {
+                if( writer != null ) {
+                    writer.close();
+                }
+            }
+            catch( Exception e ) {
+            }
+        }
+    }
+
+    public static synchronized File find(String hash, long size) {
+        // returns a blob with the given content or null
+        load();
+        s_lookups++;
+        String name = s_nameByHash.get(hash);
+        if( name == null ) {
+            return null;
+        }
+        File f = new File(getBlobDir(), name);
+        if( !f.exists() || f.length() != size ) {
+            s_nameByHash.remove(hash); // the blob was deleted with its message; the index is compacted by cleanup()
+            return null;
+        }
+        s_hits++;
+        return f;
+    }
+
+    public static synchronized void add(String hash, File file) {
+        load();
+        if( !file.getName().equals(s_nameByHash.get(hash)) ) {
+            s_nameByHash.put(hash, file.getName());
+            save(hash, file.getName(), true);
+        }
+    }
+
+    public static boolean link(File existing, File target) {
+        // create target as a second name for the data of existing; returns false if this is not possible
+        if( !LINKS_SUPPORTED ) {
+            return false;
+        }
+        try {
+            Os.link(existing.getAbsolutePath(), target.getAbsolutePath());
+            synchronized (BlobIndex.class) {
+                s_linked++;
+            }
+            return true;
+        }
+        catch( Exception e ) {
+            FileLog.w("messenger", "Cannot link " + existing + " to " + target + ": " + e);
+            return false;
+        }
+    }
+
+    private static long getInode(File f) {
+        try {
+            return Os.stat(f.getAbsolutePath()).st_ino;
+        }
+        catch( Exception e ) {
+            return -1;
+        }
+    }
+
+    public static String hashFile(File f) {
+        // returns the hex-encoded SHA-1 of the content or null on errors
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(f);
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[64*1024];
+            int len;
+            while( (len = inputStream.read(buffer)) != -1 ) {
+                digest.update(buffer, 0, len);
+            }
+            return Utilities.bytesToHex(digest.digest());
+        }
+        catch( Exception e ) {
+            return null;
+        }
+        finally {
+            try {
+                if( inputStream != null ) {
+                    inputStream.close();
+                }
+            }
+            catch( Exception e ) {
+            }
+        }
+    }
+
+    public static long cleanup() {
+        // called from the storage settings on a background thread; returns the number of bytes freed.
+        // - removes files left by interrupted imports
+        // - replaces blobs that have the same content as another blob by hard links to it;
+        //   the paths used by the messages stay valid, only the duplicate data is freed
+        // - drops index entries of deleted blobs
+        File dir = getBlobDir();
+        File[] files = dir.listFiles();
+        if( files == null ) {
+            return 0;
+        }
+
+        long freed = 0;
+        int  merged = 0, removedParts = 0;
+        long now = System.currentTimeMillis();
+
+        // only files of the same size may be identical, so most files need not to be read
+        HashMap<Long, ArrayList<File>> filesBySize = new HashMap<>();
+        File[] tempFiles = getTempDir().listFiles();
+        if( tempFiles != null ) {
+            for( File f : tempFiles ) {
+                if( f.isFile() && now - f.lastModified() >= MIN_AGE_MS ) {
+                    long length = f.length();
+                    if( f.delete() ) {
+                        freed += length;
+                        removedParts++;
+                    }
+                }
+            }
+        }
+
+        for( File f : files ) {
+            if( !f.isFile() || now - f.lastModified() < MIN_AGE_MS ) {
+                continue;
+            }
+            ArrayList<File> sameSize = filesBySize.get(f.length());
+            if( sameSize == null ) {
+                sameSize = new ArrayList<>();
+                filesBySize.put(f.length(), sameSize);
+            }
+            sameSize.add(f);
+        }
+
+        HashMap<String, File> fileByHash = new HashMap<>();
+        for( ArrayList<File> sameSize : filesBySize.values() ) {
+            if( sameSize.size() < 2 || !LINKS_SUPPORTED ) {
+                continue;
+            }
+            for( File f : sameSize ) {
+                String hash = hashFile(f);
+                if( hash == null ) {
+                    continue;
+                }
+                File first = fileByHash.get(hash);
+                if( first == null ) {
+                    fileByHash.put(hash, f);
+                    continue;
+                }
+                if( getInode(first) == getInode(f) ) {
+                    continue; // already linked
+                }
+                // link to a temporary name and rename it over the duplicate; the rename is atomic,
+                // so the path is valid at any time
+                File tmp;
+                try {
+                    tmp = createTempFile();
+                }
+                catch( IOException e ) {
+                    break;
+                }
+                tmp.delete();
+                if( link(first, tmp) ) {
+                    if( tmp.renameTo(f) ) {
+                        freed += f.length();
+                        merged++;
+                    }
+                    else {
+                        tmp.delete();
+                    }
+                }
+            }
+        }
+
+        synchronized (BlobIndex.class) {
+            load();
+            ArrayList<String> deleted = new ArrayList<>();
+            for( Map.Entry<String, String> e : s_nameByHash.entrySet() ) {
+                if( !new File(dir, e.getValue()).exists() ) {
+                    deleted.add(e.getKey());
+                }
+            }
+            for( String hash : deleted ) {
+                s_nameByHash.remove(hash);
+            }
+            for( Map.Entry<String, File> e : fileByHash.entrySet() ) {
+                if( !s_nameByHash.containsKey(e.getKey()) ) {
+                    s_nameByHash.put(e.getKey(), e.getValue().getName()); // older blobs can be found by later imports
+                }
+            }
+            save(null, null, false);
+
+            s_cleanupSavedBytes += freed;
+            s_cleanupMerged += merged;
+            s_cleanupRemovedParts += removedParts;
+            s_cleanupDroppedEntries += deleted.size();
+        }
+
+        FileLog.i("messenger", "Blob cleanup: " + merged + " duplicates merged, " + removedParts + " partial files removed, " + freed + " bytes freed.");
+        return freed;
+    }
+
+    public static synchronized String getStatsStr() {
+        return "entries=" + (s_nameByHash!=null? s_nameByHash.size() : 0) + ", lookups=" + s_lookups + ", hits=" + s_hits + ", linked=" + s_linked
+                + ", cleanupMerged=" + s_cleanupMerged + ", cleanupRemovedParts=" + s_cleanupRemovedParts
+                + ", cleanupDroppedEntries=" + s_cleanupDroppedEntries + ", cleanupFreedBytes=" + s_cleanupSavedBytes;
+    }
+}
@@ -30,6 +30,7 @@ package com.b44t.messenger;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.pm.PackageManager;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -43,12 +44,15 @@ import android.net.Uri;
 import android.os.Build;
 import android.provider.ContactsContract;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.View;
 
 import com.b44t.ui.Components.AvatarDrawable;
 
 import java.io.InputStream;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
 
 public class ContactsController {
 
@@ -60,41 +64,105 @@ public class ContactsController {
         public String email;
     }
 
-    private final static String[] projectionNames = {
+    // the address book is synced incrementally: only the addresses of contacts changed since the last sync are
+    // read and handed to the backend, in batches. the time of the last change seen is stored in the backend's
+    // config, so a new database gets a full sync. Android before 4.3 has no change timestamps and always syncs all.
+    private final static boolean DELTA_SUPPORTED = Build.VERSION.SDK_INT >= 18;
+    private final static int     SYNC_BATCH_SIZE = 500;
+    private final static String  SYNCED_UNTIL_KEY = "adrbook_synced_until";
+
+    private final static String[] projectionNames = DELTA_SUPPORTED? new String[] {
+            ContactsContract.Data.DISPLAY_NAME,
+            ContactsContract.CommonDataKinds.Email.ADDRESS,
+            ContactsContract.Data.CONTACT_LAST_UPDATED_TIMESTAMP
+        } : new String[] {
             ContactsContract.Data.DISPLAY_NAME,
             ContactsContract.CommonDataKinds.Email.ADDRESS
-    };
+        };
 
-    public static String readContactsFromPhoneBook() {
-        HashMap<String, String> contactsMap = new HashMap<String, String>();
-        String allContacts = "";
+    private static int s_syncs, s_syncedAddresses;
+    private static long s_syncMs;
+
+    public static int syncPhoneBook() {
+        // called on a background thread; returns the number of contacts modified by the backend
+        int modifyCount = 0;
+        Cursor pCur = null;
         try {
             if (!hasContactsPermission()) {
-                return "";
+                return 0;
+            }
+            long startMs = System.currentTimeMillis();
+            long syncedUntil = 0;
+            String selection = null;
+            String[] selectionArgs = null;
+            if (DELTA_SUPPORTED) {
+                try {
+                    syncedUntil = Long.parseLong(MrMailbox.getConfig(SYNCED_UNTIL_KEY, "0"));
+                } catch (Exception e) {
+                    ;
+                }
+                selection = ContactsContract.Data.CONTACT_LAST_UPDATED_TIMESTAMP + ">?";
+                selectionArgs = new String[] { Long.toString(syncedUntil) };
             }
+
             ContentResolver cr = ApplicationLoader.applicationContext.getContentResolver();
-            Cursor pCur = cr.query(ContactsContract.CommonDataKinds.Email.CONTENT_URI, // <-- this works, but I do not understand it (did not got the time, yet (bp))
-                    projectionNames, null, null, null);
-            if (pCur != null && pCur.getCount() > 0) {
-                while (pCur.moveToNext()) {
-                    String display_name = pCur.getString(0);
-                    String email        = pCur.getString(1);
-                    if( email!=null && !email.isEmpty() && contactsMap.get(email)==null ) {
-                        String nameToAdd = display_name!=null? display_name : "";
-                        if( nameToAdd.isEmpty()) {
-                            nameToAdd = email;
-                        }
+            pCur = cr.query(ContactsContract.CommonDataKinds.Email.CONTENT_URI, // <-- this works, but I do not understand it (did not got the time, yet (bp))
+                    projectionNames, selection, selectionArgs, null);
+            if (pCur == null) {
+                return 0;
+            }
 
-                        allContacts += nameToAdd + "\n" + email + "\n";
-                        contactsMap.put(email, nameToAdd);
+            HashSet<String> added = new HashSet<>();
+            StringBuilder batch = new StringBuilder();
+            int batchCount = 0, addressCount = 0;
+            long newSyncedUntil = syncedUntil;
+            while (pCur.moveToNext()) {
+                String display_name = pCur.getString(0);
+                String email        = pCur.getString(1);
+                if (DELTA_SUPPORTED) {
+                    newSyncedUntil = Math.max(newSyncedUntil, pCur.getLong(2));
+                }
+                if( email!=null && !email.isEmpty() && added.add(email) ) {
+                    String nameToAdd = display_name!=null? display_name : "";
+                    if( nameToAdd.isEmpty()) {
+                        nameToAdd = email;
+                    }
+
+                    batch.append(nameToAdd).append('\n').append(email).append('\n');
+                    batchCount++;
+                    addressCount++;
+                    if( batchCount >= SYNC_BATCH_SIZE ) {
+                        modifyCount += MrMailbox.addAddressBook(batch.toString());
+                        batch.setLength(0);
+                        batchCount = 0;
                     }
                 }
-                pCur.close();
             }
-        } catch (Exception e) {
+            if( batchCount > 0 ) {
+                modifyCount += MrMailbox.addAddressBook(batch.toString());
+            }
 
+            if (newSyncedUntil != syncedUntil) {
+                MrMailbox.setConfig(SYNCED_UNTIL_KEY, Long.toString(newSyncedUntil));
+            }
+
+            synchronized (ContactsController.class) {
+                s_syncs++;
+                s_syncedAddresses += addressCount;
+                s_syncMs += System.currentTimeMillis() - startMs;
+            }
+        } catch (Exception e) {
+            ;
+        } finally {
+            if (pCur != null) {
+                pCur.close();
+            }
         }
-        return allContacts;
+        return modifyCount;
+    }
+
+    public static synchronized String getSyncStatsStr() {
+        return "syncs=" + s_syncs + ", addresses=" + s_syncedAddresses + ", ms=" + s_syncMs + ", delta=" + DELTA_SUPPORTED;
     }
 
     private static boolean hasContactsPermission() {
@@ -127,37 +195,126 @@ public class ContactsController {
     /* Handle contact images
      **********************************************************************************************/
 
+    // the avatars are looked up in an index of all email addresses with a photo, the index is loaded in one pass
+    // and reloaded only when the address book changes. the rounded bitmaps are kept in a cache limited by bytes.
     static class AvtCacheEntry {
         public Bitmap  m_avatarBitmap;
         public String  m_fallbackName;
+        public String  m_email;
+        public long    m_photoId;
         public boolean m_needsReload;
-        AvtCacheEntry(Bitmap avatarBitmap, String fallbackName) {
+        AvtCacheEntry(Bitmap avatarBitmap, String fallbackName, String email, long photoId) {
             m_avatarBitmap = avatarBitmap;
             m_fallbackName = fallbackName;
+            m_email        = email;
+            m_photoId      = photoId;
             m_needsReload  = false;
         }
     }
 
     private final static String[] s_projectionAvatars = new String[]{
-        ContactsContract.Contacts._ID,
-        ContactsContract.Contacts.PHOTO_ID,
+        ContactsContract.CommonDataKinds.Email.CONTACT_ID,
+        ContactsContract.Data.PHOTO_ID,
         ContactsContract.CommonDataKinds.Email.ADDRESS
-        //ContactsContract.CommonDataKinds.Email.DISPLAY_NAME,
     };
+    private final static int ENTRY_BYTES = 64; // size assumed for entries without a bitmap
     private static final Object s_sync = new Object();
-    private static HashMap<String, AvtCacheEntry> s_avtCache = new HashMap<>();
+    private static LruCache<String, AvtCacheEntry> s_avtCache = new LruCache<String, AvtCacheEntry>(Math.min(4*1024*1024, (int)(Runtime.getRuntime().maxMemory()/32))) {
+        @Override
+        protected int sizeOf(String key, AvtCacheEntry entry) {
+            return entry.m_avatarBitmap != null ? entry.m_avatarBitmap.getRowBytes() * entry.m_avatarBitmap.getHeight() : ENTRY_BYTES;
+        }
+    };
+    private static HashMap<String, long[]> s_photoIndex; // lower-case email -> contact id, photo id; only accessed on the search queue
+    private static volatile boolean s_indexDirty;
+    private static boolean          s_observerRegistered;
+    private static int s_hits, s_misses, s_indexLoads, s_changedPhotos;
 
     public static void cleanupAvatarCache() {
-        // to detect changes of the avatar images eg. in the Contacts App,
-        // this function should be called whenever the App goes to background or back to foreground.
-        // instead of emptying the cache, we force a reloading (looks smarter - most times, the avatars do not change)
+        // called whenever the App comes back to foreground. changes of the avatar images eg. in the Contacts App
+        // are reported by an observer; the index is only reloaded here if there was no observer so far, eg. as the
+        // permission to read the contacts was just granted.
         synchronized (s_sync) {
-            for (AvtCacheEntry cacheEntry : s_avtCache.values()) {
-                cacheEntry.m_needsReload = true;
+            if( !s_observerRegistered ) {
+                s_indexDirty = true;
             }
         }
     }
 
+    private static void registerObserver() {
+        synchronized (s_sync) {
+            if( s_observerRegistered ) {
+                return;
+            }
+            try {
+                s_cr.registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true, new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        s_indexDirty = true;
+                    }
+                });
+                s_observerRegistered = true;
+            } catch (Exception e) {
+                ;
+            }
+        }
+    }
+
+    private static void loadPhotoIndex() {
+        // called on the search queue; all entries with a photo are read in a single pass.
+        // cache entries are reloaded only if their photo has changed.
+        if( s_photoIndex != null && !s_indexDirty ) {
+            return;
+        }
+        s_indexDirty = false;
+        HashMap<String, long[]> newIndex = new HashMap<>();
+        try {
+            if (s_cr == null) {
+                s_cr = ApplicationLoader.applicationContext.getContentResolver();
+            }
+            if (hasContactsPermission()) {
+                registerObserver();
+                Cursor pCur = s_cr.query(ContactsContract.CommonDataKinds.Email.CONTENT_URI, s_projectionAvatars,
+                        ContactsContract.Data.PHOTO_ID + ">0", null, null);
+                if (pCur != null) {
+                    while (pCur.moveToNext()) {
+                        long contact_id = pCur.getLong(0);
+                        long photo_id = pCur.getLong(1);
+                        String addr = pCur.getString(2);
+                        if (addr != null && contact_id > 0 && photo_id > 0) {
+                            newIndex.put(addr.toLowerCase(Locale.US), new long[]{contact_id, photo_id});
+                        }
+                    }
+                    pCur.close();
+                }
+            }
+        } catch (Exception e) {
+            ;
+        }
+
+        synchronized (s_sync) {
+            s_indexLoads++;
+            if( s_photoIndex != null ) {
+                for (AvtCacheEntry cacheEntry : s_avtCache.snapshot().values()) {
+                    long[] ids = newIndex.get(cacheEntry.m_email);
+                    long photoId = ids != null ? ids[1] : 0;
+                    if( photoId != cacheEntry.m_photoId ) {
+                        cacheEntry.m_needsReload = true;
+                        s_changedPhotos++;
+                    }
+                }
+            }
+        }
+        s_photoIndex = newIndex;
+    }
+
+    public static String getAvatarStatsStr() {
+        synchronized (s_sync) {
+            return "bytes=" + s_avtCache.size() + "/" + s_avtCache.maxSize() + ", hits=" + s_hits + ", misses=" + s_misses
+                + ", indexLoads=" + s_indexLoads + ", changedPhotos=" + s_changedPhotos + ", observer=" + s_observerRegistered;
+        }
+    }
+
     public static void setupAvatar(final View avtView,
                                    final ImageReceiver avtImageReceiver,
                                    final AvatarDrawable avtDrawable,
@@ -204,6 +361,7 @@ public class ContactsController {
         synchronized (s_sync) {
             avtImageReceiver.m_userDataUnique = email+fallbackName;
             cacheEntry = s_avtCache.get(email+fallbackName);
+            if( cacheEntry != null ) { s_hits++; } else { s_misses++; }
         }
 
         if( cacheEntry != null )
@@ -222,7 +380,7 @@ public class ContactsController {
             avtImageReceiver.setImage(null, "50_50", null, null, false);
         }
 
-        if( cacheEntry==null || cacheEntry.m_needsReload )
+        if( cacheEntry==null || cacheEntry.m_needsReload || s_indexDirty )
         {
             // avatar is not in cache or needs reloading:
             // load avatar in a working thread (when loaded, we'll add it to cache and invalidate back in the GUI thread)
@@ -236,31 +394,41 @@ public class ContactsController {
                         }
                     }
 
+                    loadPhotoIndex();
+
+                    AvtCacheEntry oldEntry;
+                    synchronized (s_sync) {
+                        oldEntry = s_avtCache.get(email+fallbackName);
+                    }
+                    if (oldEntry != null && !oldEntry.m_needsReload) {
+                        if (oldEntry.m_avatarBitmap == null) {
+                            return; // already shown; the index was reloaded but the photo has not changed
+                        }
+                        final Bitmap cachedBitmap = oldEntry.m_avatarBitmap;
+                        AndroidUtilities.runOnUIThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                synchronized (s_sync) {
+                                    if (!avtImageReceiver.m_userDataUnique.equals(email+fallbackName)) {
+                                        return;
+                                    }
+                                }
+                                avtImageReceiver.setImageBitmap(cachedBitmap);
+                                avtView.invalidate();
+                            }
+                        });
+                        return;
+                    }
+
                     // try to get avatar image from the address book
                     Bitmap tempBitmap = null;
-                    if (!email.startsWith("fallback:")) {
+                    String indexKey = email.toLowerCase(Locale.US);
+                    long[] ids = s_photoIndex.get(indexKey);
+                    if (ids != null) {
                         try {
-                            if (s_cr == null) {
-                                s_cr = ApplicationLoader.applicationContext.getContentResolver();
-                            }
-                            Uri uri = Uri.withAppendedPath(ContactsContract.CommonDataKinds.Email.CONTENT_LOOKUP_URI, Uri.encode(email));
-                            Cursor pCur = s_cr.query(uri, s_projectionAvatars, null, null, null);
-                            if (pCur != null) {
-                                if (pCur.getCount() > 0) {
-                                    while (pCur.moveToNext()) {
-                                        int contact_id = pCur.getInt(0);
-                                        int photo_id = pCur.getInt(1);
-                                        String addr = pCur.getString(2);
-                                        if (addr.equalsIgnoreCase(email) && contact_id > 0 && photo_id > 0) {
-                                            Bitmap tempBitmap2 = loadContactPhoto(s_cr, contact_id, photo_id);
-                                            if (tempBitmap2 != null) {
-                                                tempBitmap = createRoundBitmap(tempBitmap2);
-                                            }
-                                            break;
-                                        }
-                                    }
-                                }
-                                pCur.close();
+                            Bitmap tempBitmap2 = loadContactPhoto(s_cr, ids[0], ids[1]);
+                            if (tempBitmap2 != null) {
+                                tempBitmap = createRoundBitmap(tempBitmap2);
                             }
                         } catch (Exception e) {
                             ;
@@ -268,12 +436,15 @@ public class ContactsController {
                     }
 
                     final Bitmap photoBitmap = tempBitmap;
+                    final AvtCacheEntry newEntry = new AvtCacheEntry(photoBitmap, fallbackName, indexKey, ids != null ? ids[1] : 0);
 
                     AndroidUtilities.runOnUIThread(new Runnable() {
                         @Override
                         public void run() {
-                            // is the avatar still desired?
                             synchronized (s_sync) {
+                                s_avtCache.put(email+fallbackName, newEntry);
+
+                                // is the avatar still desired?
                                 if (!avtImageReceiver.m_userDataUnique.equals(email+fallbackName)) {
                                     return;
                                 }
@@ -286,10 +457,6 @@ public class ContactsController {
                                 avtImageReceiver.setImage(null, "50_50", avtDrawable, null, false);
                             }
                             avtView.invalidate();
-
-                            synchronized (s_sync) {
-                                s_avtCache.put(email+fallbackName, new AvtCacheEntry(photoBitmap, fallbackName));
-                            }
                         }
                     });
                 }
@@ -23,18 +23,57 @@
 
 package com.b44t.messenger;
 
+import android.app.Activity;
+import android.content.SharedPreferences;
+
 import com.b44t.messenger.time.FastDateFormat;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 public class FileLog {
-    private OutputStreamWriter streamWriter = null;
+
+    // log lines are put to a ring of records without locks and without formatting; a single writer thread
+    // formats and writes them in batches and sleeps while there is nothing to do. in the crash-only mode,
+    // selected by setCrashOnly(), only the last lines are kept in memory and written to a file when an
+    // error is logged.
+    private static final int RING_SIZE = 8192; // a power of two; if the writer cannot keep up, lines are dropped
+    private static final int BATCH_CHARS = 64 * 1024;
+    private static final int FLUSH_CHARS = 32 * 1024;
+    private static final long FLUSH_MS = 1000;
+    private static final long MAX_FILE_CHARS = 2 * 1024 * 1024;
+    private static final int MAX_FILES = 5;
+    private static final int HISTORY_CHARS = 1024 * 1024; // crash-only mode
+
+    private final String[] ringWhat = new String[RING_SIZE];
+    private final String[] ringTag = new String[RING_SIZE];
+    private final String[] ringMessage = new String[RING_SIZE];
+    private final long[] ringTime = new long[RING_SIZE];
+    private final AtomicLongArray ringSeq = new AtomicLongArray(RING_SIZE); // a slot may be written if its sequence is the position, read if it is the position + 1
+    private final AtomicLong ringHead = new AtomicLong();
+    private volatile long ringTail; // only changed by the writer thread
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    private volatile boolean crashOnly;
+    private final Thread writerThread;
     private FastDateFormat dateFormat = null;
-    private DispatchQueue logQueue = null;
+    private long lastSecond = -1;
+    private String lastSecondStr = "";
+    private File dir = null;
     private File currentFile = null;
+    private OutputStreamWriter streamWriter = null;
+    private long currentFileChars;
+    private final ArrayDeque<String> history = new ArrayDeque<>();
+    private int historyChars;
+    private volatile int records, droppedTotal, batches, flushes, files, dumps;
 
     private static volatile FileLog Instance = null;
     public static FileLog getInstance() {
@@ -51,44 +90,207 @@ public class FileLog {
     }
 
     public FileLog() {
+        for (int i = 0; i < RING_SIZE; i++) {
+            ringSeq.set(i, i);
+        }
+        try {
+            SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Activity.MODE_PRIVATE);
+            crashOnly = preferences.getBoolean("log_crash_only", false);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
         dateFormat = FastDateFormat.getInstance("yyyyMMdd_HHmmss", Locale.US);
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                writerLoop();
+            }
+        }, "logWriter");
+        writerThread.start();
+    }
+
+    private boolean offer(String what, String tag, String message) {
+        // called by any thread; returns false if the ring is full
+        long pos;
+        int index;
+        while (true) {
+            pos = ringHead.get();
+            index = (int) (pos & (RING_SIZE - 1));
+            long diff = ringSeq.get(index) - pos;
+            if (diff == 0) {
+                if (ringHead.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+        ringTime[index] = System.currentTimeMillis();
+        ringWhat[index] = what;
+        ringTag[index] = tag;
+        ringMessage[index] = message;
+        ringSeq.set(index, pos + 1); // publishes the record to the writer
+        if (pos == ringTail || what.equals("E") || pos - ringTail > RING_SIZE / 2) {
+            LockSupport.unpark(writerThread); // the writer may be idle as the ring was empty before
+        }
+        return true;
+    }
+
+    private boolean drain(StringBuilder batch) {
+        // format the records available to batch; returns true if there was an error among them
+        boolean errorSeen = false;
+        while (batch.length() < BATCH_CHARS) {
+            int index = (int) (ringTail & (RING_SIZE - 1));
+            if (ringSeq.get(index) != ringTail + 1) {
+                break;
+            }
+            long time = ringTime[index];
+            String what = ringWhat[index];
+            String tag = ringTag[index];
+            String message = ringMessage[index];
+            ringWhat[index] = null;
+            ringTag[index] = null;
+            ringMessage[index] = null;
+            ringSeq.set(index, ringTail + RING_SIZE); // the slot may be written again
+            ringTail++;
+
+            if (time / 1000 != lastSecond) {
+                lastSecond = time / 1000;
+                lastSecondStr = dateFormat.format(time);
+            }
+            batch.append(lastSecondStr).append(' ').append(what).append('/').append(tag).append(": ").append(message).append('\n');
+            errorSeen |= what.equals("E");
+            records++;
+        }
+        int droppedCnt = dropped.getAndSet(0);
+        if (droppedCnt > 0) {
+            batch.append("(").append(droppedCnt).append(" lines dropped)\n");
+            droppedTotal += droppedCnt;
+        }
+        return errorSeen;
+    }
+
+    private void writerLoop() {
+        StringBuilder batch = new StringBuilder(BATCH_CHARS + 1024);
+        int unflushedChars = 0;
+        long lastFlushMs = System.currentTimeMillis();
+        while (true) {
+            batch.setLength(0);
+            boolean errorSeen = drain(batch);
+            long now = System.currentTimeMillis();
+            boolean crashOnlyNow = crashOnly;
+            if (!crashOnlyNow && !history.isEmpty()) {
+                for (String lines : history) { // the crash-only mode was just left
+                    write(lines);
+                    unflushedChars += lines.length();
+                }
+                history.clear();
+                historyChars = 0;
+            }
+            if (batch.length() > 0) {
+                batches++;
+                if (crashOnlyNow) {
+                    history.add(batch.toString());
+                    historyChars += batch.length();
+                    while (historyChars > HISTORY_CHARS && history.size() > 1) {
+                        historyChars -= history.poll().length();
+                    }
+                    if (errorSeen) {
+                        for (String lines : history) {
+                            write(lines);
+                        }
+                        history.clear();
+                        historyChars = 0;
+                        flush();
+                        dumps++;
+                    }
+                } else {
+                    if (unflushedChars == 0) {
+                        lastFlushMs = now; // the flush delay starts with the first line not yet flushed
+                    }
+                    write(batch);
+                    unflushedChars += batch.length();
+                }
+            }
+            if (unflushedChars > 0 && (errorSeen || unflushedChars >= FLUSH_CHARS || now - lastFlushMs >= FLUSH_MS)) {
+                flush();
+                unflushedChars = 0;
+                lastFlushMs = now;
+            }
+            if (batch.length() == 0) {
+                if (unflushedChars > 0) {
+                    LockSupport.parkNanos(Math.max(1, lastFlushMs + FLUSH_MS - now) * 1000000L);
+                } else {
+                    LockSupport.park(); // until offer() finds the ring empty
+                }
+            }
+        }
+    }
+
+    private void write(CharSequence lines) {
         try {
-            File sdCard = ApplicationLoader.applicationContext.getExternalFilesDir(null);
-            if (sdCard == null) {
-                return;
+            if (streamWriter == null || currentFileChars > MAX_FILE_CHARS) {
+                openNextFile();
+            }
+            if (streamWriter != null) {
+                streamWriter.append(lines);
+                currentFileChars += lines.length();
             }
-            File dir = new File(sdCard.getAbsolutePath() + "/logs");
-            dir.mkdirs();
-            currentFile = new File(dir, dateFormat.format(System.currentTimeMillis()) + ".txt");
         } catch (Exception e) {
             e.printStackTrace();
         }
+    }
+
+    private void flush() {
         try {
-            logQueue = new DispatchQueue("logQueue");
-            currentFile.createNewFile();
-            FileOutputStream stream = new FileOutputStream(currentFile);
-            streamWriter = new OutputStreamWriter(stream);
-            streamWriter.write("-----start log " + dateFormat.format(System.currentTimeMillis()) + "-----\n");
-            streamWriter.flush();
+            if (streamWriter != null) {
+                streamWriter.flush();
+                flushes++;
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    private void openNextFile() throws Exception {
+        if (streamWriter != null) {
+            streamWriter.close();
+            streamWriter = null;
+        }
+        if (dir == null) {
+            File sdCard = ApplicationLoader.applicationContext.getExternalFilesDir(null);
+            if (sdCard == null) {
+                return;
+            }
+            dir = new File(sdCard.getAbsolutePath() + "/logs");
+            dir.mkdirs();
+        }
+
+        // keep the newest files only; the names start with the date, so they sort by age
+        File[] oldFiles = dir.listFiles();
+        if (oldFiles != null && oldFiles.length >= MAX_FILES) {
+            Arrays.sort(oldFiles);
+            for (int i = 0; i <= oldFiles.length - MAX_FILES; i++) {
+                oldFiles[i].delete();
+            }
+        }
+
+        String name = dateFormat.format(System.currentTimeMillis());
+        currentFile = new File(dir, name + ".txt");
+        for (int i = 2; currentFile.exists(); i++) {
+            currentFile = new File(dir, name + "_" + i + ".txt");
+        }
+        streamWriter = new OutputStreamWriter(new FileOutputStream(currentFile));
+        streamWriter.write("-----start log " + name + (crashOnly ? " (last lines before an error)" : "") + "-----\n");
+        currentFileChars = 0;
+        files++;
+    }
+
     private static void log(final String what, final String tag, final String message)
     {
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " " + what + "/" + tag + ": " + message + "\n");
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
+        if (!getInstance().offer(what, tag, message)) {
+            getInstance().dropped.incrementAndGet();
         }
     }
 
@@ -103,4 +305,23 @@ public class FileLog {
     public static void i(final String tag, final String message) {
         log("I", tag, message);
     }
+
+    public static void setCrashOnly(boolean crashOnly) {
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Activity.MODE_PRIVATE);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putBoolean("log_crash_only", crashOnly);
+        editor.apply();
+        getInstance().crashOnly = crashOnly;
+        LockSupport.unpark(getInstance().writerThread);
+    }
+
+    public static boolean isCrashOnly() {
+        return getInstance().crashOnly;
+    }
+
+    public static String getStatsStr() {
+        FileLog instance = getInstance();
+        return "mode=" + (instance.crashOnly ? "crashOnly" : "file") + ", records=" + instance.records + ", pending=" + (instance.ringHead.get() - instance.ringTail)
+                + ", dropped=" + (instance.droppedTotal + instance.dropped.get()) + ", batches=" + instance.batches + ", flushes=" + instance.flushes + ", files=" + instance.files + ", dumps=" + instance.dumps;
+    }
 }
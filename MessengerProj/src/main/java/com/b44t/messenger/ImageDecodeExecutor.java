@@ -0,0 +1,148 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    ImageDecodeExecutor.java
+ * Purpose: Run the image decoding tasks of the ImageLoader on several threads;
+ *          thumbnails and recently requested images are decoded first.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+public class ImageDecodeExecutor {
+
+    public final static int PRIORITY_IMAGE = 0;
+    public final static int PRIORITY_THUMB = 1;
+
+    private class Job implements Runnable, Comparable<Job> {
+        Runnable m_task;
+        int      m_priority;
+        long     m_seq;
+        long     m_queuedMs;
+
+        @Override
+        public int compareTo(Job other) {
+            // higher priority first; within the same priority, the newest job first as it belongs
+            // most probably to a visible view - views scrolled out of sight cancel their jobs anyway.
+            if( m_priority != other.m_priority ) {
+                return m_priority > other.m_priority ? -1 : 1;
+            }
+            return m_seq > other.m_seq ? -1 : (m_seq < other.m_seq ? 1 : 0);
+        }
+
+        @Override
+        public void run() {
+            synchronized (m_jobs) {
+                if( m_jobs.get(m_task) != this ) {
+                    return; // cancelled meanwhile
+                }
+                m_jobs.remove(m_task);
+            }
+
+            long startMs = System.currentTimeMillis();
+            m_task.run();
+            long endMs = System.currentTimeMillis();
+
+            synchronized (m_jobs) {
+                m_started++;
+                m_waitMsSum += startMs - m_queuedMs;
+                m_waitMsMax  = Math.max(m_waitMsMax, startMs - m_queuedMs);
+                m_runMsSum  += endMs - startMs;
+                m_runMsMax   = Math.max(m_runMsMax, endMs - startMs);
+            }
+        }
+    }
+
+    private final ThreadPoolExecutor     m_executor;
+    private final HashMap<Runnable, Job> m_jobs = new HashMap<>(); // also used as lock for the statistics
+    private long                         m_seq;
+
+    private int  m_posted, m_started, m_cancelled, m_delivered;
+    private long m_waitMsSum, m_waitMsMax, m_runMsSum, m_runMsMax, m_deliverMsSum, m_deliverMsMax;
+
+    public ImageDecodeExecutor(final String threadName) {
+        // one core is left for the UI; decoding is mostly limited by memory bandwidth, so more than 6 threads do not help
+        int threadCnt = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 6));
+        m_executor = new ThreadPoolExecutor(threadCnt, threadCnt, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int m_threadNum;
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName + (++m_threadNum));
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+        m_executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void postRunnable(Runnable task, int priority) {
+        Job job = new Job();
+        job.m_task     = task;
+        job.m_priority = priority;
+        job.m_queuedMs = System.currentTimeMillis();
+        synchronized (m_jobs) {
+            job.m_seq = ++m_seq;
+            m_jobs.put(task, job);
+            m_posted++;
+        }
+        m_executor.execute(job);
+    }
+
+    public void cancelRunnable(Runnable task) {
+        // removes the task if it is not yet started; a running task must check for cancellation itself
+        Job job;
+        synchronized (m_jobs) {
+            job = m_jobs.remove(task);
+            if( job != null ) {
+                m_cancelled++;
+            }
+        }
+        if( job != null ) {
+            m_executor.remove(job);
+        }
+    }
+
+    public void addDeliverTime(long deliverMs) {
+        // time from the end of decoding until the result is handed over on the UI thread
+        synchronized (m_jobs) {
+            m_delivered++;
+            m_deliverMsSum += deliverMs;
+            m_deliverMsMax  = Math.max(m_deliverMsMax, deliverMs);
+        }
+    }
+
+    public String getStatsStr() {
+        synchronized (m_jobs) {
+            return "threads=" + m_executor.getMaximumPoolSize() + ", posted=" + m_posted + ", started=" + m_started + ", cancelled=" + m_cancelled
+                    + ", waitMs=" + (m_started>0? m_waitMsSum/m_started : 0) + "/" + m_waitMsMax
+                    + ", decodeMs=" + (m_started>0? m_runMsSum/m_started : 0) + "/" + m_runMsMax
+                    + ", deliverMs=" + (m_delivered>0? m_deliverMsSum/m_delivered : 0) + "/" + m_deliverMsMax;
+        }
+    }
+}
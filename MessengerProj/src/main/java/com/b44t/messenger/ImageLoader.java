@@ -40,6 +40,7 @@ import android.provider.MediaStore;
 
 import com.b44t.ui.Components.AnimatedFileDrawable;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -55,24 +56,28 @@ public class ImageLoader {
 
     private HashMap<String, Integer> bitmapUseCounts = new HashMap<>();
     private LruCache memCache;
+    private final Object requestSync = new Object(); // guards imageLoadingBy*, requestSeqByTag and the receivers of each CacheImage
     private HashMap<String, CacheImage> imageLoadingByUrl = new HashMap<>();
     private HashMap<String, CacheImage> imageLoadingByKeys = new HashMap<>();
     private HashMap<Integer, CacheImage> imageLoadingByTag = new HashMap<>();
+    private HashMap<Integer, Integer> requestSeqByTag = new HashMap<>();
+    private int requestSeq;
+    private int dedupedRequests, droppedRequests, cancelledDecodes;
+    private long wastedDecodeMs;
     private HashMap<String, ThumbGenerateInfo> waitingForQualityThumb = new HashMap<>();
     private HashMap<Integer, String> waitingForQualityThumbByTag = new HashMap<>();
-    private DispatchQueue cacheOutQueue = new DispatchQueue("cacheOutQueue");
-    private DispatchQueue cacheThumbOutQueue = new DispatchQueue("cacheThumbOutQueue");
+    private ImageDecodeExecutor cacheOutExecutor = new ImageDecodeExecutor("cacheOut");
+    private ThumbPack thumbPack;
     private DispatchQueue thumbGeneratingQueue = new DispatchQueue("thumbGeneratingQueue");
     private DispatchQueue imageLoadQueue = new DispatchQueue("imageLoadQueue");
     private HashMap<String, ThumbGenerateTask> thumbGenerateTasks = new HashMap<>();
-    private static byte[] bytes;
-    private static byte[] bytesThumb;
+    private static ThreadLocal<byte[]> bytes = new ThreadLocal<>(); // the decoding threads run in parallel, each one has its own buffer
+    private static ThreadLocal<byte[]> bytesThumb = new ThreadLocal<>();
     //private static byte[] header = new byte[12];
     //private static byte[] headerThumb = new byte[12];
 
     private String ignoreRemoval = null;
 
-    private volatile long lastCacheOutTime = 0;
     private int lastImageNum = 0;
 
     private class ThumbGenerateInfo {
@@ -180,6 +185,43 @@ public class ImageLoader {
         }
     }
 
+    private static Bitmap decodeStreamReusing(File file, BitmapFactory.Options opts) throws Exception {
+        // decode into a bitmap from the BitmapPool if possible; purgeable bitmaps cannot be reused.
+        // the result is mutable, so that it can go back to the pool when it is removed from the memory cache.
+        if (BitmapPool.SUPPORTED && !opts.inPurgeable) {
+            if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+                opts.inJustDecodeBounds = true;
+                FileInputStream is = new FileInputStream(file);
+                BitmapFactory.decodeStream(is, null, opts);
+                is.close();
+                opts.inJustDecodeBounds = false;
+            }
+            opts.inMutable = true;
+            int sample = Integer.highestOneBit(Math.max(1, opts.inSampleSize));
+            Bitmap.Config config = opts.inPreferredConfig != null ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888;
+            opts.inBitmap = BitmapPool.get((opts.outWidth + sample - 1) / sample, (opts.outHeight + sample - 1) / sample, config);
+            if (opts.inBitmap != null) {
+                Bitmap reusable = opts.inBitmap;
+                try {
+                    FileInputStream is = new FileInputStream(file);
+                    Bitmap image = BitmapFactory.decodeStream(is, null, opts);
+                    is.close();
+                    if (image != null) {
+                        return image;
+                    }
+                } catch (IllegalArgumentException e) {
+                    // the bitmap does not fit, eg. the image has another config than expected; decode into a new one below
+                }
+                opts.inBitmap = null;
+                BitmapPool.put(reusable);
+            }
+        }
+        FileInputStream is = new FileInputStream(file);
+        Bitmap image = BitmapFactory.decodeStream(is, null, opts);
+        is.close();
+        return image;
+    }
+
     private class CacheOutTask implements Runnable {
         private Thread runningThread;
         private final Object sync = new Object();
@@ -193,6 +235,25 @@ public class ImageLoader {
 
         @Override
         public void run() {
+            long startTime = System.currentTimeMillis();
+            try {
+                runInThread();
+            } finally {
+                boolean cancelled;
+                synchronized (sync) {
+                    runningThread = null; // the thread is reused for other tasks, do not interrupt it on cancel() anymore
+                    cancelled = isCancelled;
+                }
+                Thread.interrupted();
+                if (cancelled) {
+                    synchronized (requestSync) {
+                        wastedDecodeMs += System.currentTimeMillis() - startTime;
+                    }
+                }
+            }
+        }
+
+        private void runInThread() {
             synchronized (sync) {
                 runningThread = Thread.currentThread();
                 Thread.interrupted();
@@ -261,7 +322,6 @@ public class ImageLoader {
                     }
 
                     try {
-                        lastCacheOutTime = System.currentTimeMillis();
                         synchronized (sync) {
                             if (isCancelled) {
                                 return;
@@ -290,16 +350,15 @@ public class ImageLoader {
                             if (opts.inPurgeable) {
                                 RandomAccessFile f = new RandomAccessFile(cacheFileFinal, "r");
                                 int len = (int) f.length();
-                                byte[] data = bytesThumb != null && bytesThumb.length >= len ? bytesThumb : null;
-                                if (data == null) {
-                                    bytesThumb = data = new byte[len];
+                                byte[] data = bytesThumb.get();
+                                if (data == null || data.length < len) {
+                                    data = new byte[len];
+                                    bytesThumb.set(data);
                                 }
                                 f.readFully(data, 0, len);
                                 image = BitmapFactory.decodeByteArray(data, 0, len, opts);
                             } else {
-                                FileInputStream is = new FileInputStream(cacheFileFinal);
-                                image = BitmapFactory.decodeStream(is, null, opts);
-                                is.close();
+                                image = decodeStreamReusing(cacheFileFinal, opts);
                             }
                         }
 
@@ -351,14 +410,6 @@ public class ImageLoader {
                             }
                         }
 
-                        int delay = 20;
-                        if (mediaId != null) {
-                            delay = 0;
-                        }
-                        if (delay != 0 && lastCacheOutTime != 0 && lastCacheOutTime > System.currentTimeMillis() - delay && Build.VERSION.SDK_INT < 21) {
-                            Thread.sleep(delay);
-                        }
-                        lastCacheOutTime = System.currentTimeMillis();
                         synchronized (sync) {
                             if (isCancelled) {
                                 return;
@@ -371,6 +422,8 @@ public class ImageLoader {
                         float w_filter = 0;
                         float h_filter = 0;
                         boolean blur = false;
+                        String packKey = null;
+                        byte[] packed = null;
                         if (cacheImage.filter != null) {
                             String args[] = cacheImage.filter.split("_");
                             if (args.length >= 2) {
@@ -380,7 +433,13 @@ public class ImageLoader {
                             if (cacheImage.filter.contains("b")) {
                                 blur = true;
                             }
-                            if (w_filter != 0 && h_filter != 0) {
+                            if (mediaId == null && w_filter != 0 && h_filter != 0) {
+                                // scaled-down images are kept in the thumbnail pack; the key changes if the file is modified.
+                                // the first byte of the data is the blur decision made on the image before it was scaled down.
+                                packKey = cacheFileFinal.getPath() + "|" + cacheFileFinal.lastModified() + "|" + cacheFileFinal.length() + "|" + (int) w_filter + "x" + (int) h_filter + "|b";
+                                packed = thumbPack.get(packKey);
+                            }
+                            if (w_filter != 0 && h_filter != 0 && packed == null) {
                                 opts.inJustDecodeBounds = true;
 
                                 if (mediaId != null) {
@@ -428,6 +487,12 @@ public class ImageLoader {
                                 image = MediaStore.Images.Thumbnails.getThumbnail(ApplicationLoader.applicationContext.getContentResolver(), mediaId, MediaStore.Images.Thumbnails.MINI_KIND, opts);
                             }
                         }
+                        if (packed != null) {
+                            opts.inSampleSize = 1;
+                            opts.inMutable = BitmapPool.SUPPORTED && !opts.inPurgeable;
+                            image = BitmapFactory.decodeByteArray(packed, 1, packed.length - 1, opts);
+                            packKey = null;
+                        }
                         if (image == null) {
                             /*if (useNativeWebpLoaded) {
                                 RandomAccessFile file = new RandomAccessFile(cacheFileFinal, "r");
@@ -444,16 +509,15 @@ public class ImageLoader {
                                 if (opts.inPurgeable) {
                                     RandomAccessFile f = new RandomAccessFile(cacheFileFinal, "r");
                                     int len = (int) f.length();
-                                    byte[] data = bytes != null && bytes.length >= len ? bytes : null;
-                                    if (data == null) {
-                                        bytes = data = new byte[len];
+                                    byte[] data = bytes.get();
+                                    if (data == null || data.length < len) {
+                                        data = new byte[len];
+                                        bytes.set(data);
                                     }
                                     f.readFully(data, 0, len);
                                     image = BitmapFactory.decodeByteArray(data, 0, len, opts);
                                 } else {
-                                    FileInputStream is = new FileInputStream(cacheFileFinal);
-                                    image = BitmapFactory.decodeStream(is, null, opts);
-                                    is.close();
+                                    image = decodeStreamReusing(cacheFileFinal, opts);
                                 }
                             }
                         }
@@ -466,15 +530,23 @@ public class ImageLoader {
                             if (cacheImage.filter != null) {
                                 float bitmapW = image.getWidth();
                                 float bitmapH = image.getHeight();
+                                boolean smallImage = packed != null ? packed[0] != 0 : bitmapW < 100 && bitmapH < 100;
                                 if (!opts.inPurgeable && w_filter != 0 && bitmapW != w_filter && bitmapW > w_filter + 20) {
                                     float scaleFactor = bitmapW / w_filter;
                                     Bitmap scaledBitmap = Bitmaps.createScaledBitmap(image, (int) w_filter, (int) (bitmapH / scaleFactor), true);
                                     if (image != scaledBitmap) {
-                                        image.recycle();
+                                        BitmapPool.put(image);
                                         image = scaledBitmap;
                                     }
                                 }
-                                if (image != null && blur && bitmapH < 100 && bitmapW < 100) {
+                                if (packKey != null && opts.outWidth > image.getWidth() * 2) {
+                                    // stored before blurring, so the blur radius may change without invalidating the pack
+                                    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                                    stream.write(smallImage ? 1 : 0);
+                                    image.compress(image.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 87, stream);
+                                    thumbPack.put(packKey, stream.toByteArray());
+                                }
+                                if (image != null && blur && smallImage) {
                                     if (image.getConfig() == Bitmap.Config.ARGB_8888) {
                                         Utilities.blurBitmap(image, 3, opts.inPurgeable ? 0 : 1, image.getWidth(), image.getHeight(), image.getRowBytes());
                                     }
@@ -495,9 +567,11 @@ public class ImageLoader {
         }
 
         private void onPostExecute(final BitmapDrawable bitmapDrawable) {
+            final long decodedTime = System.currentTimeMillis();
             AndroidUtilities.runOnUIThread(new Runnable() {
                 @Override
                 public void run() {
+                    cacheOutExecutor.addDeliverTime(System.currentTimeMillis() - decodedTime);
                     BitmapDrawable toSet = null;
                     if (bitmapDrawable instanceof AnimatedFileDrawable) {
                         toSet = bitmapDrawable;
@@ -508,7 +582,7 @@ public class ImageLoader {
                             toSet = bitmapDrawable;
                         } else {
                             Bitmap image = bitmapDrawable.getBitmap();
-                            image.recycle();
+                            BitmapPool.put(image);
                         }
                     }
                     final BitmapDrawable toSetFinal = toSet;
@@ -603,20 +677,28 @@ public class ImageLoader {
         protected ArrayList<ImageReceiver> imageReceiverArray = new ArrayList<>();
 
         public void addImageReceiver(ImageReceiver imageReceiver) {
-            boolean exist = false;
-            for (ImageReceiver v : imageReceiverArray) {
-                if (v == imageReceiver) {
-                    exist = true;
-                    break;
+            synchronized (requestSync) {
+                boolean exist = false;
+                for (ImageReceiver v : imageReceiverArray) {
+                    if (v == imageReceiver) {
+                        exist = true;
+                        break;
+                    }
+                }
+                if (!exist) {
+                    imageReceiverArray.add(imageReceiver);
+                    imageLoadingByTag.put(imageReceiver.getTag(thumb), this);
                 }
-            }
-            if (!exist) {
-                imageReceiverArray.add(imageReceiver);
-                imageLoadingByTag.put(imageReceiver.getTag(thumb), this);
             }
         }
 
         public void removeImageReceiver(ImageReceiver imageReceiver) {
+            synchronized (requestSync) {
+                removeImageReceiverLocked(imageReceiver);
+            }
+        }
+
+        private void removeImageReceiverLocked(ImageReceiver imageReceiver) {
             for (int a = 0; a < imageReceiverArray.size(); a++) {
                 ImageReceiver obj = imageReceiverArray.get(a);
                 if (obj == null || obj == imageReceiver) {
@@ -640,13 +722,10 @@ public class ImageLoader {
                     }
                 }
                 if (cacheTask != null) {
-                    if (thumb) {
-                        cacheThumbOutQueue.cancelRunnable(cacheTask);
-                    } else {
-                        cacheOutQueue.cancelRunnable(cacheTask);
-                    }
+                    cacheOutExecutor.cancelRunnable(cacheTask);
                     cacheTask.cancel();
                     cacheTask = null;
+                    cancelledDecodes++;
                 }
                 //if (httpTask != null) {
                 //    httpTasks.remove(httpTask);
@@ -663,6 +742,12 @@ public class ImageLoader {
         }
 
         public void setImageAndClear(final BitmapDrawable image) {
+            synchronized (requestSync) {
+                setImageAndClearLocked(image);
+            }
+        }
+
+        private void setImageAndClearLocked(final BitmapDrawable image) {
             if (image != null) {
                 final ArrayList<ImageReceiver> finalImageReceiverArray = new ArrayList<>(imageReceiverArray);
                 AndroidUtilities.runOnUIThread(new Runnable() {
@@ -720,13 +805,14 @@ public class ImageLoader {
 
     public ImageLoader() {
 
-        cacheOutQueue.setPriority(Thread.MIN_PRIORITY);
-        cacheThumbOutQueue.setPriority(Thread.MIN_PRIORITY);
         thumbGeneratingQueue.setPriority(Thread.MIN_PRIORITY);
         imageLoadQueue.setPriority(Thread.MIN_PRIORITY);
 
         int cacheSize = Math.min(15, ((ActivityManager) ApplicationLoader.applicationContext.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass() / 7) * 1024 * 1024;
 
+        BitmapPool.setMaxBytes(cacheSize / 4);
+        thumbPack = new ThumbPack(new File(ApplicationLoader.applicationContext.getCacheDir(), "thumbs"));
+
         memCache = new LruCache(cacheSize) {
             @Override
             protected int sizeOf(String key, BitmapDrawable value) {
@@ -742,7 +828,7 @@ public class ImageLoader {
                 if (count == null || count == 0) {
                     Bitmap b = oldValue.getBitmap();
                     if (!b.isRecycled()) {
-                        b.recycle();
+                        BitmapPool.put(b); // recycles the bitmap if it cannot be reused
                     }
                 }
             }
@@ -828,6 +914,28 @@ public class ImageLoader {
         memCache.evictAll();
     }
 
+    public String getMemCacheStatsStr() {
+        return memCache.getStatsStr();
+    }
+
+    public String getDecodeStatsStr() {
+        return cacheOutExecutor.getStatsStr();
+    }
+
+    public String getRequestStatsStr() {
+        synchronized (requestSync) {
+            return "deduped=" + dedupedRequests + ", dropped=" + droppedRequests + ", cancelledDecodes=" + cancelledDecodes + ", wastedDecodeMs=" + wastedDecodeMs;
+        }
+    }
+
+    public String getThumbPackStatsStr() {
+        return thumbPack.getStatsStr();
+    }
+
+    public String getBitmapPoolStatsStr() {
+        return BitmapPool.getStatsStr();
+    }
+
     private void removeFromWaitingForThumb(Integer TAG) {
         String location = waitingForQualityThumbByTag.get(TAG);
         if (location != null) {
@@ -846,30 +954,41 @@ public class ImageLoader {
         if (imageReceiver == null) {
             return;
         }
-        imageLoadQueue.postRunnable(new Runnable() {
-            @Override
-            public void run() {
-                int start = 0;
-                int count = 2;
-                if (type == 1) {
-                    count = 1;
-                } else if (type == 2) {
-                    start = 1;
-                }
-                for (int a = start; a < count; a++) {
-                    Integer TAG = imageReceiver.getTag(a == 0);
-                    if (a == 0) {
-                        removeFromWaitingForThumb(TAG);
-                    }
-                    if (TAG != null) {
-                        CacheImage ei = imageLoadingByTag.get(TAG);
-                        if (ei != null) {
-                            ei.removeImageReceiver(imageReceiver);
-                        }
+        int start = 0;
+        int count = 2;
+        if (type == 1) {
+            count = 1;
+        } else if (type == 2) {
+            start = 1;
+        }
+        // the receivers are detached at once, so that a following request for the same receiver
+        // may attach to a running decode without waiting for imageLoadQueue
+        synchronized (requestSync) {
+            for (int a = start; a < count; a++) {
+                Integer TAG = imageReceiver.getTag(a == 0);
+                if (TAG != null) {
+                    requestSeqByTag.put(TAG, ++requestSeq); // requests still waiting in imageLoadQueue are outdated now
+                    CacheImage ei = imageLoadingByTag.get(TAG);
+                    if (ei != null) {
+                        ei.removeImageReceiver(imageReceiver);
                     }
                 }
             }
-        });
+        }
+        if (start == 0) {
+            final Integer thumbTag = imageReceiver.getTag(true);
+            imageLoadQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    removeFromWaitingForThumb(thumbTag);
+                }
+            });
+        }
+    }
+
+    private boolean isLatestRequest(Integer TAG, int seq) {
+        Integer latestSeq = requestSeqByTag.get(TAG);
+        return latestSeq != null && latestSeq == seq;
     }
 
     private void generateThumb(int mediaType, File originalPath, TLRPC.FileLocation thumbLocation, String filter) {
@@ -898,6 +1017,25 @@ public class ImageLoader {
         }
 
         final Integer finalTag = TAG;
+        final int seq;
+        synchronized (requestSync) {
+            seq = ++requestSeq;
+            requestSeqByTag.put(TAG, seq);
+            if (thumb != 2) {
+                // if the image is already being decoded, just attach the receiver, there is no need to go through imageLoadQueue
+                CacheImage alreadyLoadingCache = imageLoadingByKeys.get(key);
+                if (alreadyLoadingCache != null) {
+                    CacheImage alreadyLoadingImage = imageLoadingByTag.get(TAG);
+                    if (alreadyLoadingImage != null && alreadyLoadingImage != alreadyLoadingCache) {
+                        alreadyLoadingImage.removeImageReceiver(imageReceiver);
+                    }
+                    alreadyLoadingCache.addImageReceiver(imageReceiver);
+                    dedupedRequests++;
+                    return;
+                }
+            }
+        }
+
         final boolean finalIsNeedsQualityThumb = imageReceiver.isNeedsQualityThumb();
         final MessageObject parentMessageObject = imageReceiver.getParentMessageObject();
         final boolean shouldGenerateQualityThumb = imageReceiver.isShouldGenerateQualityThumb();
@@ -905,25 +1043,34 @@ public class ImageLoader {
             @Override
             public void run() {
                 boolean added = false;
-                if (thumb != 2) {
-                    CacheImage alreadyLoadingUrl = imageLoadingByUrl.get(url);
-                    CacheImage alreadyLoadingCache = imageLoadingByKeys.get(key);
-                    CacheImage alreadyLoadingImage = imageLoadingByTag.get(finalTag);
-                    if (alreadyLoadingImage != null) {
-                        if (alreadyLoadingImage == alreadyLoadingUrl || alreadyLoadingImage == alreadyLoadingCache) {
-                            added = true;
-                        } else {
-                            alreadyLoadingImage.removeImageReceiver(imageReceiver);
-                        }
+                synchronized (requestSync) {
+                    if (!isLatestRequest(finalTag, seq)) {
+                        droppedRequests++;
+                        return;
                     }
+                    if (thumb != 2) {
+                        CacheImage alreadyLoadingUrl = imageLoadingByUrl.get(url);
+                        CacheImage alreadyLoadingCache = imageLoadingByKeys.get(key);
+                        CacheImage alreadyLoadingImage = imageLoadingByTag.get(finalTag);
+                        if (alreadyLoadingImage != null) {
+                            if (alreadyLoadingImage == alreadyLoadingUrl || alreadyLoadingImage == alreadyLoadingCache) {
+                                added = true;
+                            } else {
+                                alreadyLoadingImage.removeImageReceiver(imageReceiver);
+                            }
+                        }
 
-                    if (!added && alreadyLoadingCache != null) {
-                        alreadyLoadingCache.addImageReceiver(imageReceiver);
-                        added = true;
-                    }
-                    if (!added && alreadyLoadingUrl != null) {
-                        alreadyLoadingUrl.addImageReceiver(imageReceiver);
-                        added = true;
+                        if (!added && alreadyLoadingCache != null) {
+                            alreadyLoadingCache.addImageReceiver(imageReceiver);
+                            added = true;
+                        }
+                        if (!added && alreadyLoadingUrl != null) {
+                            alreadyLoadingUrl.addImageReceiver(imageReceiver);
+                            added = true;
+                        }
+                        if (added) {
+                            dedupedRequests++;
+                        }
                     }
                 }
 
@@ -1011,35 +1158,37 @@ public class ImageLoader {
                         img.filter = filter;
                         img.httpUrl = httpLocation;
                         img.ext = ext;
-                        img.addImageReceiver(imageReceiver);
-                        if (onlyCache || cacheFile.exists()) {
-                            img.finalFilePath = cacheFile;
-                            img.cacheTask = new CacheOutTask(img);
-                            imageLoadingByKeys.put(key, img);
-                            if (thumb != 0) {
-                                cacheThumbOutQueue.postRunnable(img.cacheTask);
-                            } else {
-                                cacheOutQueue.postRunnable(img.cacheTask);
+                        boolean cacheFileExists = onlyCache || cacheFile.exists();
+                        synchronized (requestSync) {
+                            if (!isLatestRequest(finalTag, seq)) {
+                                return; // cancelled or replaced while the files were checked
                             }
-                        } else {
-                            img.url = url;
-                            img.location = imageLocation;
-                            imageLoadingByUrl.put(url, img);
-                            if (httpLocation == null) {
-                                if (imageLocation instanceof TLRPC.FileLocation) {
-                                    TLRPC.FileLocation location = (TLRPC.FileLocation) imageLocation;
-                                    //FileLoader.getInstance().loadFile(location, ext, size, size == 0 || location.key != null || cacheOnly);
-                                } else if (imageLocation instanceof TLRPC.Document) {
-                                    //FileLoader.getInstance().loadFile((TLRPC.Document) imageLocation, true, cacheOnly);
-                                }
-                            } else {
-                                String file = Utilities.MD5(httpLocation);
-                                File cacheDir = FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE);
-                                img.tempFilePath = new File(cacheDir, file + "_temp.jpg");
+                            img.addImageReceiver(imageReceiver);
+                            if (cacheFileExists) {
                                 img.finalFilePath = cacheFile;
-                                //img.httpTask = new HttpImageTask(img, size);
-                                //httpTasks.add(img.httpTask);
-                                //runHttpTasks(false);
+                                img.cacheTask = new CacheOutTask(img);
+                                imageLoadingByKeys.put(key, img);
+                                cacheOutExecutor.postRunnable(img.cacheTask, thumb != 0 ? ImageDecodeExecutor.PRIORITY_THUMB : ImageDecodeExecutor.PRIORITY_IMAGE);
+                            } else {
+                                img.url = url;
+                                img.location = imageLocation;
+                                imageLoadingByUrl.put(url, img);
+                                if (httpLocation == null) {
+                                    if (imageLocation instanceof TLRPC.FileLocation) {
+                                        TLRPC.FileLocation location = (TLRPC.FileLocation) imageLocation;
+                                        //FileLoader.getInstance().loadFile(location, ext, size, size == 0 || location.key != null || cacheOnly);
+                                    } else if (imageLocation instanceof TLRPC.Document) {
+                                        //FileLoader.getInstance().loadFile((TLRPC.Document) imageLocation, true, cacheOnly);
+                                    }
+                                } else {
+                                    String file = Utilities.MD5(httpLocation);
+                                    File cacheDir = FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE);
+                                    img.tempFilePath = new File(cacheDir, file + "_temp.jpg");
+                                    img.finalFilePath = cacheFile;
+                                    //img.httpTask = new HttpImageTask(img, size);
+                                    //httpTasks.add(img.httpTask);
+                                    //runHttpTasks(false);
+                                }
                             }
                         }
                     }
@@ -1299,8 +1448,7 @@ public class ImageLoader {
         TLRPC.TL_fileLocation location = new TLRPC.TL_fileLocation();
         location.volume_id = Integer.MIN_VALUE;
         location.dc_id = Integer.MIN_VALUE;
-        location.local_id = UserConfig.lastLocalId;
-        UserConfig.lastLocalId--;
+        location.local_id = UserConfig.getNextLocalId();
         TLRPC.PhotoSize size = new TLRPC.TL_photoSize();
         size.location = location;
         size.w = scaledBitmap.getWidth();
@@ -1322,15 +1470,18 @@ public class ImageLoader {
             cacheFile = new File(FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE), fileName);
         }
 
+        // the image is compressed only once; if the bytes are needed in memory, they're written to the file from there
         FileOutputStream stream = new FileOutputStream(cacheFile);
-        scaledBitmap.compress(Bitmap.CompressFormat.JPEG, quality, stream);
         if (cache) {
             ByteArrayOutputStream stream2 = new ByteArrayOutputStream();
             scaledBitmap.compress(Bitmap.CompressFormat.JPEG, quality, stream2);
             size.bytes = stream2.toByteArray();
             size.size = size.bytes.length;
-            stream2.close();
+            stream.write(size.bytes);
         } else {
+            BufferedOutputStream buffered = new BufferedOutputStream(stream, 32 * 1024);
+            scaledBitmap.compress(Bitmap.CompressFormat.JPEG, quality, buffered);
+            buffered.flush();
             size.size = (int) stream.getChannel().size();
         }
         stream.close();
@@ -35,7 +35,6 @@ import android.view.View;
 import com.b44t.messenger.time.FastDateFormat;
 
 import java.util.Calendar;
-import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
 
@@ -52,6 +51,48 @@ public class LocaleController {
 
     private String formattersCreatedFor = "";
 
+    // the date strings of the chatlist and the date headlines only depend on the day (or on the minute for times of today),
+    // so they are formatted once per day resp. minute and cached; the boundaries of today and of this year are updated
+    // at most once a minute. a cache hit creates no objects.
+    private static final long MINUTE_MS = 60 * 1000L;
+    private static final long DAY_MS = 24 * 60 * MINUTE_MS;
+    private static final int DATE_CACHE_SIZE = 128; // a power of two
+
+    private static final class DateCache {
+        private final long[] keys = new long[DATE_CACHE_SIZE];
+        private final String[] values = new String[DATE_CACHE_SIZE];
+
+        String get(long key) {
+            int index = (int) (key & (DATE_CACHE_SIZE - 1));
+            return keys[index] == key ? values[index] : null;
+        }
+
+        void put(long key, String value) {
+            int index = (int) (key & (DATE_CACHE_SIZE - 1));
+            keys[index] = key;
+            values[index] = value;
+        }
+
+        void clear() {
+            for (int i = 0; i < DATE_CACHE_SIZE; i++) {
+                values[i] = null;
+            }
+        }
+    }
+
+    private final DateCache timeCache = new DateCache(); // key: minute, formatterDay
+    private final DateCache weekCache = new DateCache(); // keys of all other caches: day
+    private final DateCache monthCache = new DateCache();
+    private final DateCache yearCache = new DateCache();
+    private final DateCache chatDateCache = new DateCache();
+    private final DateCache chatFullDateCache = new DateCache();
+    private TimeZone dateTimeZone;
+    private Calendar dateCalendar; // reused for computing the boundaries and for formatting
+    private final StringBuffer dateBuffer = new StringBuffer(32);
+    private long nextBoundariesMs;
+    private long today, thisYearFirstDay, nextYearFirstDay;
+    private int dateHits, dateMisses;
+
     private class TimeZoneChangedReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -117,20 +158,91 @@ public class LocaleController {
 
     public static String formatDateChat(long date) {
         try {
-            Calendar rightNow = Calendar.getInstance();
-            int year = rightNow.get(Calendar.YEAR);
+            return getInstance().formatDateChatCached(date * 1000);
+        } catch (Exception e) {
 
-            rightNow.setTimeInMillis(date * 1000);
-            int dateYear = rightNow.get(Calendar.YEAR);
+        }
+        return "LOC_ERR: formatDateChat";
+    }
 
-            if (year == dateYear) {
-                return getInstance().chatDate.format(date * 1000);
-            }
-            return getInstance().chatFullDate.format(date * 1000);
+    public static String formatTime(long date) {
+        // the time of a message as shown in the chat, eg. 12:34
+        try {
+            return getInstance().formatTimeCached(date * 1000);
         } catch (Exception e) {
 
         }
-        return "LOC_ERR: formatDateChat";
+        return "LOC_ERR";
+    }
+
+    private long getDay(long ms) {
+        // number of the day in the local time zone; days are counted from 1970-01-01
+        long local = ms + dateTimeZone.getOffset(ms);
+        return local >= 0 ? local / DAY_MS : (local + 1) / DAY_MS - 1;
+    }
+
+    private void updateBoundaries(long nowMs) {
+        if (nowMs < nextBoundariesMs && nowMs >= nextBoundariesMs - MINUTE_MS) {
+            return;
+        }
+        today = getDay(nowMs);
+        dateCalendar.setTimeInMillis(nowMs);
+        dateCalendar.set(Calendar.DAY_OF_YEAR, 1);
+        dateCalendar.set(Calendar.HOUR_OF_DAY, 12); // noon is not affected by daylight saving time
+        thisYearFirstDay = getDay(dateCalendar.getTimeInMillis());
+        dateCalendar.add(Calendar.YEAR, 1);
+        nextYearFirstDay = getDay(dateCalendar.getTimeInMillis());
+        long midnightMs = (today + 1) * DAY_MS - dateTimeZone.getOffset(nowMs);
+        nextBoundariesMs = Math.min(nowMs + MINUTE_MS, Math.max(midnightMs, nowMs + 1000));
+    }
+
+    private String format(DateCache cache, long key, FastDateFormat formatter, long ms) {
+        String ret = cache.get(key);
+        if (ret != null) {
+            dateHits++;
+            return ret;
+        }
+        dateMisses++;
+        dateCalendar.setTimeInMillis(ms);
+        dateBuffer.setLength(0);
+        ret = formatter.format(dateCalendar, dateBuffer).toString();
+        cache.put(key, ret);
+        return ret;
+    }
+
+    private synchronized String formatTimeCached(long ms) {
+        long local = ms + dateTimeZone.getOffset(ms);
+        long minute = local >= 0 ? local / MINUTE_MS : (local + 1) / MINUTE_MS - 1;
+        return format(timeCache, minute, formatterDay, ms);
+    }
+
+    private synchronized String formatDateChatCached(long ms) {
+        updateBoundaries(System.currentTimeMillis());
+        long day = getDay(ms);
+        if (day >= thisYearFirstDay && day < nextYearFirstDay) {
+            return format(chatDateCache, day, chatDate, ms);
+        }
+        return format(chatFullDateCache, day, chatFullDate, ms);
+    }
+
+    private synchronized String stringForMessageListDateCached(long ms) {
+        long nowMs = System.currentTimeMillis();
+        updateBoundaries(nowMs);
+        long day = getDay(ms);
+        if (day < thisYearFirstDay || day >= nextYearFirstDay) {
+            return format(yearCache, day, formatterYear, ms);
+        }
+        long dayDiff = day - today;
+        if (dayDiff == 0 || dayDiff == -1 && nowMs - ms < 8 * 60 * MINUTE_MS) {
+            return formatTimeCached(ms);
+        } else if (dayDiff > -7 && dayDiff <= -1) {
+            return format(weekCache, day, formatterWeek, ms);
+        }
+        return format(monthCache, day, formatterMonth, ms);
+    }
+
+    public synchronized String getDateStatsStr() {
+        return "hits=" + dateHits + ", misses=" + dateMisses;
     }
 
     private FastDateFormat createFormatter(Locale locale, String format, String defaultFormat) {
@@ -147,7 +259,7 @@ public class LocaleController {
         return formatter;
     }
 
-    private void recreateFormatters() {
+    private synchronized void recreateFormatters() {
         Locale locale = Locale.getDefault();
 
         isRTL = false;
@@ -170,29 +282,21 @@ public class LocaleController {
         formatterDay = createFormatter(locale, is24HourFormat ? ApplicationLoader.applicationContext.getString(R.string.formatterDay24H) : ApplicationLoader.applicationContext.getString(R.string.formatterDay12H), is24HourFormat ? "HH:mm" : "h:mm a");
 
         formattersCreatedFor = locale.getDisplayName();
+
+        dateTimeZone = TimeZone.getDefault();
+        dateCalendar = Calendar.getInstance(dateTimeZone, locale);
+        nextBoundariesMs = 0;
+        timeCache.clear();
+        weekCache.clear();
+        monthCache.clear();
+        yearCache.clear();
+        chatDateCache.clear();
+        chatFullDateCache.clear();
     }
 
     public static String stringForMessageListDate(long date) {
         try {
-            Calendar rightNow = Calendar.getInstance();
-            int day = rightNow.get(Calendar.DAY_OF_YEAR);
-            int year = rightNow.get(Calendar.YEAR);
-            rightNow.setTimeInMillis(date * 1000);
-            int dateDay = rightNow.get(Calendar.DAY_OF_YEAR);
-            int dateYear = rightNow.get(Calendar.YEAR);
-
-            if (year != dateYear) {
-                return getInstance().formatterYear.format(new Date(date * 1000));
-            } else {
-                int dayDiff = dateDay - day;
-                if(dayDiff == 0 || dayDiff == -1 && (int)(System.currentTimeMillis() / 1000) - date < 60 * 60 * 8) {
-                    return getInstance().formatterDay.format(new Date(date * 1000));
-                } else if(dayDiff > -7 && dayDiff <= -1) {
-                    return getInstance().formatterWeek.format(new Date(date * 1000));
-                } else {
-                    return getInstance().formatterMonth.format(new Date(date * 1000));
-                }
-            }
+            return getInstance().stringForMessageListDateCached(date * 1000);
         } catch (Exception e) {
 
         }
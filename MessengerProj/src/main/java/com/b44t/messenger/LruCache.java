@@ -26,24 +26,76 @@ package com.b44t.messenger;
 import android.graphics.drawable.BitmapDrawable;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Static library version of {@link android.util.LruCache}. Used to write apps
- * that run on API levels prior to 12. When running on API level 12 or above,
- * this implementation is still used; it does not try to switch to the
- * framework's implementation. See the framework SDK documentation for a class
- * overview.
+ * Based on the static library version of {@link android.util.LruCache}.
+ * The cache is split into segments with their own lock, so that the UI thread
+ * and the decoding queues rarely wait for each other. The segment is selected
+ * by the part of the key before the "@", so all filters of an image are kept
+ * in the same segment. The size is accounted over all segments and eviction
+ * removes the least recently used entry of all segments.
  */
 public class LruCache {
-    private final LinkedHashMap<String, BitmapDrawable> map;
-    private final LinkedHashMap<String, ArrayList<String>> mapFilters;
+
+    private static final int SEGMENTS = 8;
+
+    private static class Entry {
+        final String url;    // the key is split only once, when the entry is added
+        final String filter; // null if the key has no "@"
+        final BitmapDrawable value;
+        final int size;
+        long lastAccess;
+
+        Entry(String url, String filter, BitmapDrawable value, int size) {
+            this.url = url;
+            this.filter = filter;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private static class Segment {
+        final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(0, 0.75f, true);
+        final LinkedHashMap<String, ArrayList<String>> mapFilters = new LinkedHashMap<>();
+        int hits, misses, evictions;
+
+        void addFilter(Entry entry) {
+            if (entry.filter != null) {
+                ArrayList<String> arr = mapFilters.get(entry.url);
+                if (arr == null) {
+                    arr = new ArrayList<>();
+                    mapFilters.put(entry.url, arr);
+                }
+                if (!arr.contains(entry.filter)) {
+                    arr.add(entry.filter);
+                }
+            }
+        }
+
+        void removeFilter(Entry entry) {
+            if (entry.filter != null) {
+                ArrayList<String> arr = mapFilters.get(entry.url);
+                if (arr != null) {
+                    arr.remove(entry.filter);
+                    if (arr.isEmpty()) {
+                        mapFilters.remove(entry.url);
+                    }
+                }
+            }
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong accessCounter = new AtomicLong();
 
     /** Size of this cache in units. Not necessarily the number of elements. */
-    private int size;
-    private int maxSize;
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxSize;
 
     /**
      * @param maxSize for caches that do not override {@link #sizeOf}, this is
@@ -55,35 +107,52 @@ public class LruCache {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         this.maxSize = maxSize;
-        this.map = new LinkedHashMap<>(0, 0.75f, true);
-        this.mapFilters = new LinkedHashMap<>();
+        for (int a = 0; a < SEGMENTS; a++) {
+            segments[a] = new Segment();
+        }
+    }
+
+    private static String urlOf(String key) {
+        int pos = key.indexOf('@');
+        return pos == -1 ? key : key.substring(0, pos);
+    }
+
+    private Segment segmentFor(String url) {
+        int h = url.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % SEGMENTS];
     }
 
     /**
-     * Returns the value for {@code key} if it exists in the cache or can be
-     * created by {@code #create}. If a value was returned, it is moved to the
-     * head of the queue. This returns null if a value is not cached and cannot
-     * be created.
+     * Returns the value for {@code key} if it exists in the cache. If a value
+     * was returned, it is moved to the head of the queue. This returns null if
+     * a value is not cached.
      */
     public final BitmapDrawable get(String key) {
         if (key == null) {
             throw new NullPointerException("key == null");
         }
 
-        BitmapDrawable mapValue;
-        synchronized (this) {
-            mapValue = map.get(key);
-            if (mapValue != null) {
-                return mapValue;
+        Segment segment = segmentFor(urlOf(key));
+        synchronized (segment) {
+            Entry entry = segment.map.get(key);
+            if (entry != null) {
+                entry.lastAccess = accessCounter.incrementAndGet();
+                segment.hits++;
+                return entry.value;
             }
+            segment.misses++;
         }
         return null;
     }
 
     public ArrayList<String> getFilterKeys(String key) {
-        ArrayList<String> arr = mapFilters.get(key);
-        if (arr != null) {
-            return new ArrayList<>(arr);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            ArrayList<String> arr = segment.mapFilters.get(key);
+            if (arr != null) {
+                return new ArrayList<>(arr);
+            }
         }
         return null;
     }
@@ -99,33 +168,24 @@ public class LruCache {
             throw new NullPointerException("key == null || value == null");
         }
 
-        BitmapDrawable previous;
-        synchronized (this) {
-            size += safeSizeOf(key, value);
-            previous = map.put(key, value);
-            if (previous != null) {
-                size -= safeSizeOf(key, previous);
-            }
-        }
+        int pos = key.indexOf('@');
+        Entry entry = new Entry(pos == -1 ? key : key.substring(0, pos), pos == -1 ? null : key.substring(pos + 1), value, safeSizeOf(key, value));
+        entry.lastAccess = accessCounter.incrementAndGet();
 
-        String[] args = key.split("@");
-        if (args.length > 1) {
-            ArrayList<String> arr = mapFilters.get(args[0]);
-            if (arr == null) {
-                arr = new ArrayList<>();
-                mapFilters.put(args[0], arr);
-            }
-            if (!arr.contains(args[1])) {
-                arr.add(args[1]);
-            }
+        Entry previous;
+        Segment segment = segmentFor(entry.url);
+        synchronized (segment) {
+            previous = segment.map.put(key, entry);
+            size.addAndGet(entry.size - (previous != null ? previous.size : 0));
+            segment.addFilter(entry);
         }
 
         if (previous != null) {
-            entryRemoved(false, key, previous, value);
+            entryRemoved(false, key, previous.value, value);
         }
 
         trimToSize(maxSize, key);
-        return previous;
+        return previous != null ? previous.value : null;
     }
 
     /**
@@ -133,34 +193,50 @@ public class LruCache {
      *     to evict even 0-sized elements.
      */
     private void trimToSize(int maxSize, String justAdded) {
-        synchronized (this) {
-            Iterator<HashMap.Entry<String, BitmapDrawable>> iterator = map.entrySet().iterator();
-            while (iterator.hasNext()) {
-                if (size <= maxSize || map.isEmpty()) {
-                    break;
+        while (size.get() > maxSize) {
+            // the eldest entry of each segment is its least recently used one; find the oldest of them.
+            // the segments are locked one after another, never at the same time.
+            Segment oldestSegment = null;
+            long oldestAccess = Long.MAX_VALUE;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    for (Map.Entry<String, Entry> e : segment.map.entrySet()) {
+                        if (e.getKey().equals(justAdded)) {
+                            continue;
+                        }
+                        if (e.getValue().lastAccess < oldestAccess) {
+                            oldestAccess = e.getValue().lastAccess;
+                            oldestSegment = segment;
+                        }
+                        break;
+                    }
                 }
-                HashMap.Entry<String, BitmapDrawable> entry = iterator.next();
+            }
+            if (oldestSegment == null) {
+                break;
+            }
 
-                String key = entry.getKey();
-                if (justAdded != null && justAdded.equals(key)) {
-                    continue;
-                }
-                BitmapDrawable value = entry.getValue();
-                size -= safeSizeOf(key, value);
-                iterator.remove();
-
-                String[] args = key.split("@");
-                if (args.length > 1) {
-                    ArrayList<String> arr = mapFilters.get(args[0]);
-                    if (arr != null) {
-                        arr.remove(args[1]);
-                        if (arr.isEmpty()) {
-                            mapFilters.remove(args[0]);
-                        }
+            String key = null;
+            Entry removed = null;
+            synchronized (oldestSegment) {
+                Iterator<Map.Entry<String, Entry>> iterator = oldestSegment.map.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry<String, Entry> e = iterator.next();
+                    if (e.getKey().equals(justAdded)) {
+                        continue;
                     }
+                    key = e.getKey();
+                    removed = e.getValue();
+                    iterator.remove();
+                    size.addAndGet(-removed.size);
+                    oldestSegment.removeFilter(removed);
+                    oldestSegment.evictions++;
+                    break;
                 }
+            }
 
-                entryRemoved(true, key, value, null);
+            if (removed != null) {
+                entryRemoved(true, key, removed.value, null);
             }
         }
     }
@@ -175,34 +251,28 @@ public class LruCache {
             throw new NullPointerException("key == null");
         }
 
-        BitmapDrawable previous;
-        synchronized (this) {
-            previous = map.remove(key);
+        Entry previous;
+        Segment segment = segmentFor(urlOf(key));
+        synchronized (segment) {
+            previous = segment.map.remove(key);
             if (previous != null) {
-                size -= safeSizeOf(key, previous);
+                size.addAndGet(-previous.size);
+                segment.removeFilter(previous);
             }
         }
 
         if (previous != null) {
-            String[] args = key.split("@");
-            if (args.length > 1) {
-                ArrayList<String> arr = mapFilters.get(args[0]);
-                if (arr != null) {
-                    arr.remove(args[1]);
-                    if (arr.isEmpty()) {
-                        mapFilters.remove(args[0]);
-                    }
-                }
-            }
-
-            entryRemoved(false, key, previous, null);
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
         }
-
-        return previous;
+        return null;
     }
-    
-    public boolean contains(String key){
-    	return map.containsKey(key);
+
+    public boolean contains(String key) {
+        Segment segment = segmentFor(urlOf(key));
+        synchronized (segment) {
+            return segment.map.containsKey(key);
+        }
     }
 
     /**
@@ -235,7 +305,7 @@ public class LruCache {
      * user-defined units.  The default implementation returns 1 so that size
      * is the number of entries and max size is the maximum number of entries.
      *
-     * <p>An entry's size must not change while it is in the cache.
+     * <p>The size is calculated once when the entry is added.
      */
     protected int sizeOf(String key, BitmapDrawable value) {
         return 1;
@@ -253,8 +323,8 @@ public class LruCache {
      * of entries in the cache. For all other caches, this returns the sum of
      * the sizes of the entries in this cache.
      */
-    public synchronized final int size() {
-        return size;
+    public final int size() {
+        return size.get();
     }
 
     /**
@@ -262,7 +332,24 @@ public class LruCache {
      * number of entries in the cache. For all other caches, this returns the
      * maximum sum of the sizes of the entries in this cache.
      */
-    public synchronized final int maxSize() {
+    public final int maxSize() {
         return maxSize;
     }
+
+    /**
+     * Returns the number of entries and the hits, misses and evictions summed
+     * up over all segments, used to tune the maximum size.
+     */
+    public String getStatsStr() {
+        int entries = 0, hits = 0, misses = 0, evictions = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                entries += segment.map.size();
+                hits += segment.hits;
+                misses += segment.misses;
+                evictions += segment.evictions;
+            }
+        }
+        return "entries=" + entries + ", bytes=" + size.get() + "/" + maxSize + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions;
+    }
 }
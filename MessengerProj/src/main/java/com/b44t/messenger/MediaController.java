@@ -66,9 +66,7 @@ import com.b44t.messenger.video.OutputSurface;
 import com.b44t.ui.ChatActivity;
 import com.b44t.ui.PhotoViewer;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
@@ -80,6 +78,7 @@ import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class MediaController implements AudioManager.OnAudioFocusChangeListener, NotificationCenter.NotificationCenterDelegate, SensorEventListener {
@@ -94,6 +93,10 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     private native void readOpusFile(ByteBuffer buffer, int capacity, int[] args);
     private native long getTotalPcmDuration();
     public native byte[] getWaveform(String path);
+    native static long   openWaveform(String path); // returns a handle for the following functions or 0 on errors
+    native static int    stepWaveform(long handle, int maxSamples); // returns 0 if the end of the file is reached
+    native static byte[] getWaveformResult(long handle); // may be called before the end is reached
+    native static void   closeWaveform(long handle);
     public native byte[] getWaveform2(short[] array, int length);
 
     public static int[] readArgs = new int[3];
@@ -106,19 +109,6 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         int getObserverTag();
     }
 
-    private class AudioBuffer {
-        public AudioBuffer(int capacity) {
-            buffer = ByteBuffer.allocateDirect(capacity);
-            bufferBytes = new byte[capacity];
-        }
-
-        ByteBuffer buffer;
-        byte[] bufferBytes;
-        int size;
-        int finished;
-        long pcmOffset;
-    }
-
     private static final String[] projectionPhotos = {
             MediaStore.Images.Media._ID,
             MediaStore.Images.Media.BUCKET_ID,
@@ -289,7 +279,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     private int playerBufferSize = 0;
     private boolean decodingFinished = false;
     private long currentTotalPcmDuration;
-    private long lastPlayPcm;
+    private volatile long lastPlayPcm;
     private int ignoreFirstProgress = 0;
     private Timer progressTimer = null;
     private final Object progressTimerSync = new Object();
@@ -305,9 +295,9 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     private long recordDialogId;
     private DispatchQueue fileDecodingQueue;
     private DispatchQueue playerQueue;
-    private ArrayList<AudioBuffer> usedPlayerBuffers = new ArrayList<>();
-    private ArrayList<AudioBuffer> freePlayerBuffers = new ArrayList<>();
-    private final Object playerSync = new Object();
+    private AudioRing playerRing; // decoded opus data, written on fileDecodingQueue, read on playerQueue
+    private final AtomicBoolean decoderScheduled = new AtomicBoolean();
+    private final AtomicBoolean playerScheduled = new AtomicBoolean();
     private final Object playerObjectSync = new Object();
     private short[] recordSamples = new short[1024];
     private long samplesCount;
@@ -493,12 +483,11 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                 buffer.order(ByteOrder.nativeOrder());
                 recordBuffers.add(buffer);
             }
-            for (int a = 0; a < 3; a++) {
-                freePlayerBuffers.add(new AudioBuffer(playerBufferSize));
-            }
         } catch (Exception e) {
 
         }
+        // each slot holds about 40 ms; some more slots bridge short stalls of the decoding thread
+        playerRing = new AudioRing(6, playerBufferSize > 0 ? playerBufferSize : 3840);
         try {
             sensorManager = (SensorManager) ApplicationLoader.applicationContext.getSystemService(Context.SENSOR_SERVICE);
             linearSensor = sensorManager.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION);
@@ -716,7 +705,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         audioInfo = null;
         playMusicAgain = false;
         videoConvertQueue.clear();
-        generatingWaveform.clear();
+        WaveformStore.clearPending();
         typingTimes.clear();
         cancelVideoConvert(null);
     }
@@ -803,118 +792,110 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     }
 
     private void checkDecoderQueue() {
-        fileDecodingQueue.postRunnable(new Runnable() {
-            @Override
-            public void run() {
-                if (decodingFinished) {
-                    checkPlayerQueue();
-                    return;
-                }
-                boolean was = false;
-                while (true) {
-                    AudioBuffer buffer = null;
-                    synchronized (playerSync) {
-                        if (!freePlayerBuffers.isEmpty()) {
-                            buffer = freePlayerBuffers.get(0);
-                            freePlayerBuffers.remove(0);
-                        }
-                        if (!usedPlayerBuffers.isEmpty()) {
-                            was = true;
-                        }
-                    }
-                    if (buffer != null) {
-                        readOpusFile(buffer.buffer, playerBufferSize, readArgs);
-                        buffer.size = readArgs[0];
-                        buffer.pcmOffset = readArgs[1];
-                        buffer.finished = readArgs[2];
-                        if (buffer.finished == 1) {
-                            decodingFinished = true;
-                        }
-                        if (buffer.size != 0) {
-                            buffer.buffer.rewind();
-                            buffer.buffer.get(buffer.bufferBytes);
-                            synchronized (playerSync) {
-                                usedPlayerBuffers.add(buffer);
-                            }
-                        } else {
-                            synchronized (playerSync) {
-                                freePlayerBuffers.add(buffer);
-                                break;
-                            }
-                        }
-                        was = true;
-                    } else {
-                        break;
-                    }
+        if (decoderScheduled.compareAndSet(false, true)) {
+            fileDecodingQueue.postRunnable(decoderRunnable);
+        }
+    }
+
+    private final Runnable decoderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            decoderScheduled.set(false);
+            if (decodingFinished) {
+                checkPlayerQueue();
+                return;
+            }
+            AudioRing.Slot slot;
+            while (!decodingFinished && (slot = playerRing.beginWrite()) != null) {
+                readOpusFile(slot.m_buffer, playerBufferSize, readArgs);
+                slot.m_size = readArgs[0];
+                slot.m_pcmOffset = readArgs[1];
+                slot.m_finished = readArgs[2] == 1;
+                if (slot.m_finished) {
+                    decodingFinished = true;
                 }
-                if (was) {
-                    checkPlayerQueue();
+                if (slot.m_size == 0) {
+                    break;
                 }
+                playerRing.endWrite();
             }
-        });
-    }
+            checkPlayerQueue();
+        }
+    };
 
     private void checkPlayerQueue() {
-        playerQueue.postRunnable(new Runnable() {
-            @Override
-            public void run() {
+        if (playerScheduled.compareAndSet(false, true)) {
+            playerQueue.postRunnable(playerRunnable);
+        }
+    }
+
+    private final Runnable playerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // write all decoded slots at once; AudioTrack.write() blocks until there is space in the track
+            playerScheduled.set(false);
+            while (true) {
                 synchronized (playerObjectSync) {
                     if (audioTrackPlayer == null || audioTrackPlayer.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
                         return;
                     }
                 }
-                AudioBuffer buffer = null;
-                synchronized (playerSync) {
-                    if (!usedPlayerBuffers.isEmpty()) {
-                        buffer = usedPlayerBuffers.get(0);
-                        usedPlayerBuffers.remove(0);
+                AudioRing.Slot slot = playerRing.beginRead();
+                if (slot == null) {
+                    if (!decodingFinished) {
+                        if (buffersWrited > 0) {
+                            playerRing.countUnderrun(); // the decoder did not keep up; the track may still play its own buffer
+                        }
+                        checkDecoderQueue();
                     }
+                    return;
                 }
 
-                if (buffer != null) {
-                    int count = 0;
-                    try {
-                        count = audioTrackPlayer.write(buffer.bufferBytes, 0, buffer.size);
-                    } catch (Exception e) {
-
+                int count = 0;
+                try {
+                    slot.m_buffer.rewind();
+                    if (Build.VERSION.SDK_INT >= 21) {
+                        count = audioTrackPlayer.write(slot.m_buffer, slot.m_size, AudioTrack.WRITE_BLOCKING);
+                    } else {
+                        slot.m_buffer.get(slot.m_bytes, 0, slot.m_size);
+                        count = audioTrackPlayer.write(slot.m_bytes, 0, slot.m_size);
                     }
-                    buffersWrited++;
+                } catch (Exception e) {
 
-                    if (count > 0) {
-                        final long pcm = buffer.pcmOffset;
-                        final int marker = buffer.finished == 1 ? count : -1;
+                }
+                buffersWrited++;
+                final boolean finished = slot.m_finished;
+                long pcm = slot.m_pcmOffset;
+                playerRing.endRead();
+
+                if (count > 0) {
+                    lastPlayPcm = pcm;
+                    if (finished) {
                         final int finalBuffersWrited = buffersWrited;
                         AndroidUtilities.runOnUIThread(new Runnable() {
                             @Override
                             public void run() {
-                                lastPlayPcm = pcm;
-                                if (marker != -1) {
-                                    if (audioTrackPlayer != null) {
-                                        audioTrackPlayer.setNotificationMarkerPosition(1);
-                                    }
-                                    if (finalBuffersWrited == 1) {
-                                        cleanupPlayer(true, true, true);
-                                    }
+                                if (audioTrackPlayer != null) {
+                                    audioTrackPlayer.setNotificationMarkerPosition(1);
+                                }
+                                if (finalBuffersWrited == 1) {
+                                    cleanupPlayer(true, true, true);
                                 }
                             }
                         });
                     }
-
-                    if (buffer.finished != 1) {
-                        checkPlayerQueue();
-                    }
-                }
-                if (buffer == null || buffer != null && buffer.finished != 1) {
-                    checkDecoderQueue();
                 }
 
-                if (buffer != null) {
-                    synchronized (playerSync) {
-                        freePlayerBuffers.add(buffer);
-                    }
+                if (finished) {
+                    return;
                 }
+                checkDecoderQueue(); // the slot is free again
             }
-        });
+        }
+    };
+
+    public String getPlayerStatsStr() {
+        return playerRing.getStatsStr();
     }
 
     protected boolean isRecordingAudio() {
@@ -1288,10 +1269,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
             @Override
             public void run() {
                 seekOpusFile(progress);
-                synchronized (playerSync) {
-                    freePlayerBuffers.addAll(usedPlayerBuffers);
-                    usedPlayerBuffers.clear();
-                }
+                playerRing.clear();
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
@@ -1542,10 +1520,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                     } catch (Exception e) {
 
                     }
-                    synchronized (playerSync) {
-                        freePlayerBuffers.addAll(usedPlayerBuffers);
-                        usedPlayerBuffers.clear();
-                    }
+                    playerRing.clear();
                     decodingFinished = false;
                     checkPlayerQueue();
                 }
@@ -1764,51 +1739,17 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         }
     }
 
-    private HashMap<String, Integer> generatingWaveform = new HashMap<>();
     public void loadOrGenerateWaveform(final String path, boolean doGenerate, MessageObject setToObj) // we may call this function without setToObj to just generate the waveform
     {
-        File testfile = new File(path + ".waveform");
-        if (testfile.exists() && testfile.length() > 0) {
-            byte[] waveform = new byte[(int) testfile.length()];
-            try {
-                DataInputStream dis = new DataInputStream(new FileInputStream(testfile));
-                dis.readFully(waveform);
-                dis.close();
-                if( setToObj != null ) {
-                    setWaveformToMessageObject(setToObj, waveform);
-                }
-            } catch(Exception e) {}
-            return;
-        }
-
-        if( doGenerate ) {
-            final int setToObj_id = setToObj==null? 0 : setToObj.getId();
-            if (generatingWaveform.containsKey(path)) {
-                return;
+        // no file access here, this function is called for each voice message shown
+        byte[] waveform = WaveformStore.get(path);
+        if (waveform != null) {
+            if( setToObj != null ) {
+                setWaveformToMessageObject(setToObj, waveform);
             }
-            generatingWaveform.put(path, 1);
-            Utilities.globalQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    final byte[] waveform = MediaController.getInstance().getWaveform(path);
-                    if (waveform != null && waveform.length > 0) {
-                        try {
-                            FileOutputStream out = new FileOutputStream(path + ".waveform");
-                            out.write(waveform);
-                            out.close();
-                        } catch (Exception e) { }
-                        AndroidUtilities.runOnUIThread(new Runnable() {
-                            @Override
-                            public void run() {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.waveformCalculated, setToObj_id);
-                            }
-                        });
-                    }
-
-                    generatingWaveform.remove(path);
-                }
-            });
+            return;
         }
+        WaveformStore.request(path, setToObj==null? 0 : setToObj.getId(), doGenerate);
     }
 
     private void stopRecordingInternal(final int send) {
@@ -1976,42 +1917,8 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     }
 
     public static String copyFileToCache(Uri uri, String ext) {
-        InputStream inputStream = null;
-        FileOutputStream output = null;
-        try {
-            String name = getFileName(uri);
-            if (name == null) {
-                int id = UserConfig.lastLocalId;
-                UserConfig.lastLocalId--;
-                UserConfig.saveConfig();
-                name = String.format(Locale.US, "%d.%s", id, ext);
-            }
-            inputStream = ApplicationLoader.applicationContext.getContentResolver().openInputStream(uri);
-            File f = new File(FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE), name);
-            output = new FileOutputStream(f);
-            byte[] buffer = new byte[1024 * 20];
-            int len;
-            while ((len = inputStream.read(buffer)) != -1) {
-                output.write(buffer, 0, len);
-            }
-            return f.getAbsolutePath();
-        } catch (Exception e) {
-
-        } finally {
-            try {
-                if (inputStream != null) {
-                    inputStream.close();
-                }
-            } catch (Exception e2) {
-            }
-            try {
-                if (output != null) {
-                    output.close();
-                }
-            } catch (Exception e2) {
-            }
-        }
-        return null;
+        AttachmentImporter.Result result = AttachmentImporter.importUri(uri, ext);
+        return result != null ? result.m_file.getAbsolutePath() : null;
     }
 
     public void toggleAutoplayGifs() {
@@ -2051,7 +1958,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     }
 
     public static void loadGalleryPhotosAlbums(final int guid) {
-        Thread thread = new Thread(new Runnable() {
+        MediaExecutor.post("loadGalleryPhotosAlbums", MediaExecutor.PRIORITY_NORMAL, new Runnable() {
             @Override
             public void run() {
                 final ArrayList<AlbumEntry> albumsSorted = new ArrayList<>();
@@ -2197,8 +2104,6 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                 });
             }
         });
-        thread.setPriority(Thread.MIN_PRIORITY);
-        thread.start();
     }
 
     public void scheduleVideoConvert(MessageObject messageObject) {
@@ -2418,19 +2323,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         }
 
         public static void runConversion(final MessageObject obj) {
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        VideoConvertRunnable wrapper = new VideoConvertRunnable(obj);
-                        Thread th = new Thread(wrapper, "VideoConvertRunnable");
-                        th.start();
-                        th.join();
-                    } catch (Exception e) {
-
-                    }
-                }
-            }).start();
+            MediaExecutor.post("convertVideo", MediaExecutor.PRIORITY_NORMAL, new VideoConvertRunnable(obj));
         }
     }
 
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MediaExecutor.java
+ * Purpose: Run the preparation of media (sending photos, videos and documents,
+ *          loading the gallery, converting videos etc.) on a few shared
+ *          background threads instead of starting a new thread for each job.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+public class MediaExecutor {
+
+    public final static int PRIORITY_NORMAL = 1; // eg. preparing media for sending
+    public final static int PRIORITY_HIGH   = 2; // the user waits for the result, eg. saving a file
+
+    private static class Task implements Runnable, Comparable<Task> {
+        private final String   m_name;
+        private final int      m_priority;
+        private final Runnable m_runnable;
+        private long           m_seq;
+        private long           m_queuedMs;
+
+        private Task(String name, int priority, Runnable runnable) {
+            m_name     = name;
+            m_priority = priority;
+            m_runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            // higher priority first, tasks of the same priority in the order of posting
+            if( m_priority != other.m_priority ) {
+                return m_priority > other.m_priority ? -1 : 1;
+            }
+            return m_seq < other.m_seq ? -1 : (m_seq > other.m_seq ? 1 : 0);
+        }
+
+        @Override
+        public void run() {
+            long startMs = System.currentTimeMillis();
+            try {
+                m_runnable.run();
+            }
+            catch( Throwable e ) {
+                FileLog.e("messenger", "Media task " + m_name + " failed: " + e);
+            }
+            taskDone(this, startMs - m_queuedMs, System.currentTimeMillis() - startMs);
+        }
+    }
+
+    private final static ThreadPoolExecutor s_executor;
+    static {
+        // one core is left for the UI; the threads run with background priority so that bulk operations do not make the UI stutter
+        int threadCnt = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+        s_executor = new ThreadPoolExecutor(threadCnt, threadCnt, 10, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int m_threadNum;
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "mediaExecutor" + (++m_threadNum));
+            }
+        });
+        s_executor.allowCoreThreadTimeOut(true);
+    }
+
+    private final static Object s_lock = new Object();
+    private static long s_seq;
+    private static int  s_posted, s_maxQueued;
+    private final static HashMap<String, long[]> s_timings = new HashMap<>(); // name -> count, wait ms, run ms, max run ms
+
+    public static void post(String name, int priority, Runnable runnable) {
+        // the queue is not limited; a task is small, only the number of tasks running at the same time is
+        Task task = new Task(name, priority, runnable);
+        synchronized (s_lock) {
+            task.m_seq      = ++s_seq;
+            task.m_queuedMs = System.currentTimeMillis();
+            s_posted++;
+            s_maxQueued = Math.max(s_maxQueued, s_executor.getQueue().size() + 1);
+        }
+        s_executor.execute(task);
+    }
+
+    private static void taskDone(Task task, long waitMs, long runMs) {
+        synchronized (s_lock) {
+            long[] timing = s_timings.get(task.m_name);
+            if( timing == null ) {
+                timing = new long[4];
+                s_timings.put(task.m_name, timing);
+            }
+            timing[0]++;
+            timing[1] += waitMs;
+            timing[2] += runMs;
+            timing[3]  = Math.max(timing[3], runMs);
+        }
+    }
+
+    public static String getStatsStr() {
+        synchronized (s_lock) {
+            String ret = "threads=" + s_executor.getMaximumPoolSize() + ", posted=" + s_posted + ", maxQueued=" + s_maxQueued;
+            for( Map.Entry<String, long[]> e : s_timings.entrySet() ) {
+                long[] t = e.getValue();
+                ret += ", " + e.getKey() + "=" + t[0] + "x/wait" + (t[1]/t[0]) + "ms/run" + (t[2]/t[0]) + "ms/max" + t[3] + "ms";
+            }
+            return ret;
+        }
+    }
+}
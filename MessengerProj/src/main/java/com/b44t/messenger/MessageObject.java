@@ -25,6 +25,7 @@ package com.b44t.messenger;
 
 import android.content.Context;
 import android.graphics.Paint;
+import android.os.Looper;
 import android.text.Layout;
 import android.text.Spannable;
 import android.text.StaticLayout;
@@ -71,7 +72,18 @@ public class MessageObject {
 
     public boolean forceUpdate;
 
-    private static TextPaint textPaint;
+    private static TextPaint textPaint; // used on the UI thread and by the cells
+    private static final ThreadLocal<TextPaint> workerTextPaint = new ThreadLocal<TextPaint>() {
+        @Override protected TextPaint initialValue() {
+            // used if MessageObjects are created in the background, see MessageObjectPrefetcher;
+            // the layouts keep a reference to the paint, so it must not be shared with the UI thread.
+            TextPaint paint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+            paint.setColor(Theme.MSG_TEXT_COLOR);
+            paint.linkColor = Theme.MSG_LINK_TEXT_COLOR;
+            return paint;
+        }
+    };
+    private TextPaint layoutTextPaint;
     public int lastLineWidth;
     public int textWidth;
     public int textHeight;
@@ -89,13 +101,18 @@ public class MessageObject {
     public ArrayList<TextLayoutBlock> textLayoutBlocks;
 
     public MessageObject(TLRPC.Message message, boolean generateLayout) {
-        if (textPaint == null) {
-            textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
-            textPaint.setColor(Theme.MSG_TEXT_COLOR);
-            textPaint.linkColor = Theme.MSG_LINK_TEXT_COLOR;
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            if (textPaint == null) {
+                textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+                textPaint.setColor(Theme.MSG_TEXT_COLOR);
+                textPaint.linkColor = Theme.MSG_LINK_TEXT_COLOR;
+            }
+            layoutTextPaint = textPaint;
+        } else {
+            layoutTextPaint = workerTextPaint.get();
         }
 
-        textPaint.setTextSize(AndroidUtilities.dp(ApplicationLoader.fontSize));
+        layoutTextPaint.setTextSize(AndroidUtilities.dp(ApplicationLoader.fontSize));
 
         messageOwner = message;
 
@@ -108,7 +125,7 @@ public class MessageObject {
 
         generateCaption();
         if (generateLayout) {
-            messageText = Emoji.replaceEmoji(messageText, textPaint.getFontMetricsInt(), AndroidUtilities.dp(20), false);
+            messageText = Emoji.replaceEmoji(messageText, layoutTextPaint.getFontMetricsInt(), AndroidUtilities.dp(20), false);
             generateLayout();
         }
         generateThumbs(false);
@@ -293,7 +310,7 @@ public class MessageObject {
             return;
         }
         if (messageOwner.media != null && messageOwner.media.caption != null && messageOwner.media.caption.length() > 0) {
-            caption = Emoji.replaceEmoji(messageOwner.media.caption, textPaint.getFontMetricsInt(), AndroidUtilities.dp(20), false);
+            caption = Emoji.replaceEmoji(messageOwner.media.caption, layoutTextPaint.getFontMetricsInt(), AndroidUtilities.dp(20), false);
             if (containsUrls(caption)) {
                 try {
                     Linkify.addLinks((Spannable) caption, Linkify.WEB_URLS | Linkify.PHONE_NUMBERS | Linkify.EMAIL_ADDRESSES);
@@ -323,26 +340,13 @@ public class MessageObject {
 
         addLinks(messageText);
 
-        int maxWidth;
         boolean substractAvatar = !isOut() && MrMailbox.getChat((int)messageOwner.dialog_id).getType()==MrChat.MR_CHAT_GROUP;
-        if (AndroidUtilities.isTablet()) {
-            if (substractAvatar) {
-                maxWidth = AndroidUtilities.getMinTabletSide() - AndroidUtilities.dp(122);
-            } else {
-                maxWidth = AndroidUtilities.getMinTabletSide() - AndroidUtilities.dp(80);
-            }
-        } else {
-            if (substractAvatar) {
-                maxWidth = Math.min(AndroidUtilities.displaySize.x, AndroidUtilities.displaySize.y) - AndroidUtilities.dp(122);
-            } else {
-                maxWidth = Math.min(AndroidUtilities.displaySize.x, AndroidUtilities.displaySize.y) - AndroidUtilities.dp(80);
-            }
-        }
+        int maxWidth = getMaxTextWidth(substractAvatar);
 
         StaticLayout textLayout;
 
         try {
-            textLayout = new StaticLayout(messageText, textPaint, maxWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+            textLayout = new StaticLayout(messageText, layoutTextPaint, maxWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
         } catch (Exception e) {
 
             return;
@@ -373,7 +377,7 @@ public class MessageObject {
                 block.charactersOffset = startCharacter;
                 try {
                     CharSequence str = messageText.subSequence(startCharacter, endCharacter);
-                    block.textLayout = new StaticLayout(str, textPaint, maxWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+                    block.textLayout = new StaticLayout(str, layoutTextPaint, maxWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
                     block.textYOffset = textLayout.getLineTop(linesOffset);
                     if (a != 0) {
                         block.height = (int) (block.textYOffset - prevOffset);
@@ -476,6 +480,23 @@ public class MessageObject {
         }
     }
 
+    public static int getMaxTextWidth(boolean substractAvatar) {
+        // the width available for the text of a message, substractAvatar is true for incoming messages in groups
+        if (AndroidUtilities.isTablet()) {
+            if (substractAvatar) {
+                return AndroidUtilities.getMinTabletSide() - AndroidUtilities.dp(122);
+            } else {
+                return AndroidUtilities.getMinTabletSide() - AndroidUtilities.dp(80);
+            }
+        } else {
+            if (substractAvatar) {
+                return Math.min(AndroidUtilities.displaySize.x, AndroidUtilities.displaySize.y) - AndroidUtilities.dp(122);
+            } else {
+                return Math.min(AndroidUtilities.displaySize.x, AndroidUtilities.displaySize.y) - AndroidUtilities.dp(80);
+            }
+        }
+    }
+
     public boolean isOut() {
         return messageOwner.out;
     }
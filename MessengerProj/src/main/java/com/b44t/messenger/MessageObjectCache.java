@@ -0,0 +1,151 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MessageObjectCache.java
+ * Purpose: Keep MessageObjects including their text layout, so that scrolling
+ *          back to a message does not layout it again.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+public class MessageObjectCache {
+
+    private final static int MAX_BYTES = 2*1024*1024;
+
+    private static class Entry {
+        MessageObject m_obj;
+        int           m_chatId;
+        int           m_bytes;
+    }
+
+    private final static LinkedHashMap<Long, Entry> s_map = new LinkedHashMap<>(0, 0.75f, true /*access order*/);
+    private static int s_bytes;
+    private static int s_hits, s_misses;
+    private static int s_generation; // incremented on each invalidation
+
+    private static long makeKey(int msgId, int maxWidth) {
+        // msg_id, maxWidth and font size are combined to a single key;
+        // maxWidth and font size are far below the limits of 24 and 8 bits.
+        return ((long)msgId<<32) | ((maxWidth&0xFFFFFFL)<<8) | (ApplicationLoader.fontSize&0xFF);
+    }
+
+    public static synchronized MessageObject get(int msgId, int maxWidth) {
+        Entry entry = s_map.get(makeKey(msgId, maxWidth));
+        if( entry == null ) {
+            s_misses++;
+            return null;
+        }
+        s_hits++;
+        return entry.m_obj;
+    }
+
+    public static synchronized boolean contains(int msgId, int maxWidth) {
+        return s_map.containsKey(makeKey(msgId, maxWidth)); // does not affect the order or the statistics
+    }
+
+    public static synchronized int getGeneration() {
+        return s_generation;
+    }
+
+    public static synchronized boolean putIfUnchanged(MessageObject obj, int maxWidth, int generation) {
+        // used for objects created in the background: if there was an invalidation since `generation`
+        // was read, the object may be outdated and is not added.
+        if( generation != s_generation ) {
+            return false;
+        }
+        put(obj, maxWidth);
+        return true;
+    }
+
+    public static synchronized void put(MessageObject obj, int maxWidth) {
+        Entry entry = new Entry();
+        entry.m_obj    = obj;
+        entry.m_chatId = (int)obj.messageOwner.dialog_id;
+        entry.m_bytes  = sizeOf(obj);
+
+        Entry previous = s_map.put(makeKey(obj.getId(), maxWidth), entry);
+        if( previous != null ) {
+            s_bytes -= previous.m_bytes;
+        }
+        s_bytes += entry.m_bytes;
+
+        Iterator<Entry> it = s_map.values().iterator();
+        while( s_bytes > MAX_BYTES && it.hasNext() ) {
+            Entry oldest = it.next();
+            if( oldest != entry ) {
+                s_bytes -= oldest.m_bytes;
+                it.remove();
+            }
+        }
+    }
+
+    public static synchronized void invalidate(int chatId, int msgId) {
+        // remove the given message in all sizes; if msgId is 0, all messages of the chat are removed,
+        // if chatId is 0 as well, everything is removed.
+        s_generation++;
+        Iterator<Map.Entry<Long, Entry>> it = s_map.entrySet().iterator();
+        while( it.hasNext() ) {
+            Map.Entry<Long, Entry> e = it.next();
+            boolean remove;
+            if( msgId != 0 ) {
+                remove = (int)(e.getKey()>>32) == msgId;
+            }
+            else {
+                remove = chatId == 0 || e.getValue().m_chatId == chatId;
+            }
+            if( remove ) {
+                s_bytes -= e.getValue().m_bytes;
+                it.remove();
+            }
+        }
+    }
+
+    public static synchronized String getStatsStr() {
+        return "entries=" + s_map.size() + ", bytes=" + s_bytes + ", hits=" + s_hits + ", misses=" + s_misses;
+    }
+
+    private static int sizeOf(MessageObject obj) {
+        // a rough estimation of the memory used; the text is usually stored twice, in the message and in the layouts
+        int bytes = 512;
+        if( obj.messageText != null ) {
+            bytes += obj.messageText.length() * 4;
+        }
+        if( obj.caption != null ) {
+            bytes += obj.caption.length() * 4;
+        }
+        if( obj.textLayoutBlocks != null ) {
+            for( MessageObject.TextLayoutBlock block : obj.textLayoutBlocks ) {
+                bytes += 128;
+                if( block.textLayout != null ) {
+                    bytes += block.textLayout.getLineCount() * 64;
+                }
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MessageObjectPrefetcher.java
+ * Purpose: Load and layout the messages ahead of the viewport of a chat in the
+ *          background; the results are added to the MessageObjectCache where
+ *          the adapter picks them up on binding.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+
+public class MessageObjectPrefetcher {
+
+    private final static int PREFETCH_CNT = 12; // number of rows prepared in scroll direction
+
+    private final boolean    m_isGroupChat;
+    private int[]            m_msglist = {};   // only accessed from the UI thread
+    private int              m_lastFirst = -1; // - " -
+
+    private final Object     m_pendingLock = new Object();
+    private int[]            m_pendingMsglist;
+    private int              m_pendingFirst, m_pendingCnt;
+    private boolean          m_runnablePosted;
+    private volatile boolean m_cancelled;
+
+    private static int       s_prepared, s_outdated;
+
+    public MessageObjectPrefetcher(boolean isGroupChat) {
+        m_isGroupChat = isGroupChat;
+    }
+
+    public void setMsglist(int[] msglist) {
+        m_msglist   = msglist;
+        m_lastFirst = -1;
+    }
+
+    public void onScrolled(int firstVisible, int lastVisible, int dy) {
+        // called from the UI thread; dy>0 means, we're scrolling towards the end of the list
+        if( firstVisible < 0 || lastVisible < 0 || dy == 0 ) {
+            return;
+        }
+
+        int first = dy > 0? lastVisible+1 : firstVisible-PREFETCH_CNT;
+        int cnt   = PREFETCH_CNT;
+        if( first < 0 ) {
+            cnt  += first;
+            first = 0;
+        }
+        if( first+cnt > m_msglist.length ) {
+            cnt = m_msglist.length-first;
+        }
+        if( cnt <= 0 || first == m_lastFirst ) {
+            return;
+        }
+        m_lastFirst = first;
+
+        synchronized (m_pendingLock) {
+            // if the runnable is not yet executed, it just takes the updated range
+            m_pendingMsglist = m_msglist;
+            m_pendingFirst   = first;
+            m_pendingCnt     = cnt;
+            if( m_runnablePosted ) {
+                return;
+            }
+            m_runnablePosted = true;
+        }
+        Utilities.layoutQueue.postRunnable(m_prefetchRunnable);
+    }
+
+    public void cancel() {
+        m_cancelled = true;
+    }
+
+    private final Runnable m_prefetchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int[] msglist;
+            int   first, cnt;
+            synchronized (m_pendingLock) {
+                msglist = m_pendingMsglist;
+                first   = m_pendingFirst;
+                cnt     = m_pendingCnt;
+                m_runnablePosted = false;
+            }
+            if( !m_cancelled ) {
+                prefetch(msglist, first, cnt);
+            }
+        }
+    };
+
+    private void prefetch(int[] msglist, int first, int cnt) {
+        // read the generation before loading, so that objects loaded before an invalidation are dropped
+        int generation = MessageObjectCache.getGeneration();
+
+        MrMsgRange range = MrMailbox.getMsgRange(msglist, first, cnt);
+        for( int i = range.getFirst(); i < range.getFirst()+range.getCnt(); i++ ) {
+            if( m_cancelled ) {
+                break;
+            }
+
+            if( msglist[i] <= MrMsg.MR_MSG_ID_DAYMARKER ) {
+                continue;
+            }
+
+            MrMsg mrMsg = range.getMsg(i);
+            int maxWidth = MessageObject.getMaxTextWidth(m_isGroupChat && mrMsg.getFromId()!=MrContact.MR_CONTACT_ID_SELF);
+            if( !MessageObjectCache.contains(msglist[i], maxWidth) ) {
+                MessageObject obj = new MessageObject(mrMsg.get_TLRPC_Message(), true);
+                synchronized (MessageObjectPrefetcher.class) {
+                    if( MessageObjectCache.putIfUnchanged(obj, maxWidth, generation) ) {
+                        s_prepared++;
+                    }
+                    else {
+                        s_outdated++;
+                    }
+                }
+            }
+            mrMsg.close();
+        }
+    }
+
+    public static synchronized String getStatsStr() {
+        return "prepared=" + s_prepared + ", outdated=" + s_outdated;
+    }
+}
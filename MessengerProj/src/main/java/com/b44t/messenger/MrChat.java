@@ -28,7 +28,9 @@ package com.b44t.messenger;
 
 import android.text.TextUtils;
 
-public class MrChat {
+import java.io.Closeable;
+
+public class MrChat implements Closeable {
 
     public final static int      MR_CHAT_UNDEFINED          =   0;
     public final static int      MR_CHAT_NORMAL             = 100;
@@ -38,11 +40,16 @@ public class MrChat {
 
     public MrChat(long hChat) {
         m_hChat = hChat;
+        m_ref = MrNativeRef.track(this, hChat, MrNativeRef.MR_CHAT);
     }
 
-    @Override protected void finalize() throws Throwable {
-        super.finalize();
-        MrChatUnref(m_hChat);
+    @Override public void close() {
+        // release the C-object now; if close() is not called, this is done by MrNativeRef after the object becomes unreachable
+        if( m_ref != null ) {
+            m_hChat = 0;
+            m_ref.release();
+            m_ref = null;
+        }
     }
 
     public native int    getId();
@@ -81,7 +88,8 @@ public class MrChat {
     public native int sendMedia(int type, String file, String mime, int w, int h, int time_ms, String author, String trackname);
 
     private long                  m_hChat;  // must not be renamed as referenced by JNI under the name "m_hChat"
-    private native static void    MrChatUnref                (long hChat);
+    private MrNativeRef           m_ref;
+    native static void            MrChatUnref                (long hChat); // also called by MrNativeRef
     private native static String  MrChatGetDraft             (long hChat); // returns null for "no draft"
     private native static long    MrChatGetDraftTimestamp    (long hChat); // returns 0 for "no draft"
     private native static int     MrChatGetDraftReplyToMsgId (long hChat); // returns 0 for "no draft"
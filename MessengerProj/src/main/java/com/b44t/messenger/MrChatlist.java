@@ -27,15 +27,22 @@
 
 package com.b44t.messenger;
 
+import java.io.Closeable;
 
-public class MrChatlist {
+
+public class MrChatlist implements Closeable {
     public MrChatlist(long hChatlist) {
         m_hChatlist = hChatlist;
+        m_ref = MrNativeRef.track(this, hChatlist, MrNativeRef.MR_CHATLIST);
     }
 
-    @Override protected void finalize() throws Throwable {
-        super.finalize();
-        MrChatlistUnref(m_hChatlist);
+    @Override public void close() {
+        // release the C-object now; if close() is not called, this is done by MrNativeRef after the object becomes unreachable
+        if( m_ref != null ) {
+            m_hChatlist = 0;
+            m_ref.release();
+            m_ref = null;
+        }
     }
 
     public int getCnt() {
@@ -50,11 +57,32 @@ public class MrChatlist {
         return new MrPoortext(MrChatlistGetSummaryByIndex(m_hChatlist, index, chat.getCPtr()));
     }
 
+    public int[] getIds() {
+        // returns pairs of chat_id and last msg_id; the chatlist is a snapshot, so the array is loaded only once
+        if( m_ids == null ) {
+            m_ids = m_hChatlist==0? new int[0] : MrChatlistGetIds(m_hChatlist);
+        }
+        return m_ids;
+    }
+
+    public int getIndexByChatId(int chatId) {
+        int[] ids = getIds();
+        for( int i = 0; i < ids.length; i += 2 ) {
+            if( ids[i] == chatId ) {
+                return i/2;
+            }
+        }
+        return -1;
+    }
+
     private long                  m_hChatlist;
-    private native static void    MrChatlistUnref            (long hChatlist);
+    private MrNativeRef           m_ref;
+    private int[]                 m_ids;
+    native static void            MrChatlistUnref            (long hChatlist); // also called by MrNativeRef
     private native static int     MrChatlistGetCnt           (long hChatlist);
     private native static long    MrChatlistGetChatByIndex   (long hChatlist, int index); // returns hChat which must be unref'd after usage
     private native static long    MrChatlistGetSummaryByIndex(long hChatlist, int index, long hChat);
+    private native static int[]   MrChatlistGetIds           (long hChatlist);
 
 
     /* additional functions that are not 1:1 available in the backend
@@ -64,6 +92,7 @@ public class MrChatlist {
     {
         MrChat chat = getChatByIndex(index);
         TLRPC.TL_dialog dlg = chat.get_TLRPC_TL_dialog();
+        chat.close();
         return dlg;
     }
 }
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MrChatlistDiff.java
+ * Purpose: Compare two chatlists by their ids and tell a RecyclerView adapter
+ *          which rows were removed, inserted, moved or changed.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.util.SparseIntArray;
+
+import com.b44t.messenger.support.widget.RecyclerView;
+
+
+public class MrChatlistDiff {
+
+    // if more rows are affected, a single notifyDataSetChanged() is cheaper than animating each row
+    private final static int MAX_OPS = 32;
+
+    private static int s_diffs, s_ops, s_fullReloads;
+
+    public static void apply(int[] oldIds, int[] newIds, RecyclerView.Adapter adapter) {
+        // oldIds and newIds are pairs of chat_id and last msg_id as returned by MrChatlist.getIds();
+        // the adapter must already return the data of the new chatlist when this function is called.
+        int ops = run(oldIds, newIds, null);
+        synchronized (MrChatlistDiff.class) {
+            s_diffs++;
+            if( ops > MAX_OPS ) {
+                s_fullReloads++;
+            }
+            else {
+                s_ops += ops;
+            }
+        }
+
+        if( ops > MAX_OPS ) {
+            adapter.notifyDataSetChanged();
+        }
+        else if( ops > 0 ) {
+            run(oldIds, newIds, adapter);
+        }
+    }
+
+    private static int run(int[] oldIds, int[] newIds, RecyclerView.Adapter adapter) {
+        // transform a copy of the old list step by step to the new list; if adapter is null, the operations are only counted.
+        int newCnt = newIds.length/2, ops = 0;
+
+        SparseIntArray inNewList = new SparseIntArray(newCnt);
+        for( int i = 0; i < newCnt; i++ ) {
+            inNewList.put(newIds[i*2], 1);
+        }
+
+        int[] curr = new int[Math.max(oldIds.length, newIds.length) + 2];
+        int currCnt = 0;
+
+        // remove chats that are no longer in the list, the remaining chats keep their order
+        for( int i = 0; i < oldIds.length/2; i++ ) {
+            if( inNewList.get(oldIds[i*2]) != 0 ) {
+                curr[currCnt*2]   = oldIds[i*2];
+                curr[currCnt*2+1] = oldIds[i*2+1];
+                currCnt++;
+            }
+            else {
+                if( adapter != null ) {
+                    adapter.notifyItemRemoved(currCnt);
+                }
+                ops++;
+            }
+        }
+
+        // insert and move chats to their new position; usually, only few chats move to the top of the list
+        for( int i = 0; i < newCnt; i++ ) {
+            int chatId = newIds[i*2], lastMsgId = newIds[i*2+1];
+
+            int j = i;
+            while( j < currCnt && curr[j*2] != chatId ) {
+                j++;
+            }
+
+            if( j == currCnt ) {
+                System.arraycopy(curr, i*2, curr, i*2+2, (currCnt-i)*2);
+                currCnt++;
+                curr[i*2] = chatId;
+                curr[i*2+1] = lastMsgId;
+                if( adapter != null ) {
+                    adapter.notifyItemInserted(i);
+                }
+                ops++;
+                continue;
+            }
+
+            if( j != i ) {
+                int oldLastMsgId = curr[j*2+1];
+                System.arraycopy(curr, i*2, curr, i*2+2, (j-i)*2);
+                curr[i*2] = chatId;
+                curr[i*2+1] = oldLastMsgId;
+                if( adapter != null ) {
+                    adapter.notifyItemMoved(j, i);
+                }
+                ops++;
+            }
+
+            if( curr[i*2+1] != lastMsgId ) {
+                curr[i*2+1] = lastMsgId;
+                if( adapter != null ) {
+                    adapter.notifyItemChanged(i);
+                }
+                ops++;
+            }
+        }
+
+        return ops;
+    }
+
+    public static synchronized String getStatsStr() {
+        return "diffs=" + s_diffs + ", ops=" + s_ops + ", fullReloads=" + s_fullReloads;
+    }
+}
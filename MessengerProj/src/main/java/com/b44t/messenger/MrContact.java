@@ -27,19 +27,26 @@
 
 package com.b44t.messenger;
 
+import java.io.Closeable;
 
-public class MrContact {
+
+public class MrContact implements Closeable {
 
     public final static int MR_CONTACT_ID_SELF = 1;
     public final static int MR_CONTACT_ID_LAST_SPECIAL = 9;
 
     public MrContact(long hContact) {
         m_hContact = hContact;
+        m_ref = MrNativeRef.track(this, hContact, MrNativeRef.MR_CONTACT);
     }
 
-    @Override protected void finalize() throws Throwable {
-        super.finalize();
-        MrContactUnref(m_hContact);
+    @Override public void close() {
+        // release the C-object now; if close() is not called, this is done by MrNativeRef after the object becomes unreachable
+        if( m_ref != null ) {
+            m_hContact = 0;
+            m_ref.release();
+            m_ref = null;
+        }
     }
 
     public String getName() {
@@ -56,7 +63,8 @@ public class MrContact {
     }
 
     private long                  m_hContact;
-    private native static void    MrContactUnref             (long hContact);
+    private MrNativeRef           m_ref;
+    native static void            MrContactUnref             (long hContact); // also called by MrNativeRef
     private native static String  MrContactGetName           (long hContact);
     private native static String  MrContactGetAddr           (long hContact);
     private native static int     MrContactIsBlocked         (long hContact);
@@ -0,0 +1,254 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MrEventDispatcher.java
+ * Purpose: Collect the message-, chat- and contact-events sent by the backend
+ *          for a short time and forward them merged to the NotificationCenter;
+ *          the chatlist is reloaded at most once per batch.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+public class MrEventDispatcher {
+
+    private final static int WINDOW_MS = 32; // events arriving within this time are delivered together
+
+    private static class ChatUpdate {
+        int   m_event;                  // the most important event of the chat, see rank()
+        int   m_lastMsgId;
+        int   m_invalidateMsgId = -1;   // -1=nothing to invalidate, 0=all messages of the chat
+        int[] m_newMsgIds = new int[0]; // messages that may be added to the chat, in the order of arrival
+        int   m_newMsgCnt;
+    }
+
+    private static class Batch {
+        LinkedHashMap<Integer, ChatUpdate> m_chats = new LinkedHashMap<>();
+        boolean m_needsReload;
+        boolean m_sentOrRead;
+        boolean m_contactsChanged;
+        boolean m_chatModified;
+        int[]   m_incoming = new int[0];  // pairs of chat_id and msg_id
+        int     m_incomingCnt;
+    }
+
+    private final static Object s_lock = new Object();
+    private static int[]        s_pending = new int[3*16]; // triples of event, data1 and data2
+    private static int          s_pendingCnt;
+    private static boolean      s_flushPosted;
+
+    private static int          s_received, s_delivered, s_batches;
+
+    static void post(int event, int data1, int data2) {
+        // called from the backend threads
+        synchronized (s_lock) {
+            if( s_pendingCnt*3+3 > s_pending.length ) {
+                s_pending = Arrays.copyOf(s_pending, s_pending.length*2);
+            }
+            s_pending[s_pendingCnt*3  ] = event;
+            s_pending[s_pendingCnt*3+1] = data1;
+            s_pending[s_pendingCnt*3+2] = data2;
+            s_pendingCnt++;
+            s_received++;
+            if( s_flushPosted ) {
+                return;
+            }
+            s_flushPosted = true;
+        }
+        AndroidUtilities.runOnUIThread(s_flushRunnable, WINDOW_MS);
+    }
+
+    private final static Runnable s_flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private static int rank(int event) {
+        switch( event ) {
+            case MrMailbox.MR_EVENT_INCOMING_MSG:  return 4;
+            case MrMailbox.MR_EVENT_MSGS_CHANGED:  return 3;
+            case MrMailbox.MR_EVENT_MSG_DELIVERED:
+            case MrMailbox.MR_EVENT_MSG_READ:      return 2;
+            default:                               return 1;
+        }
+    }
+
+    private static void flush() {
+        // called on the UI thread
+        int[] pending;
+        int   pendingCnt;
+        synchronized (s_lock) {
+            pending      = s_pending;
+            pendingCnt   = s_pendingCnt;
+            s_pending    = new int[3*16];
+            s_pendingCnt = 0;
+            s_flushPosted = false;
+            s_batches++;
+        }
+
+        final Batch batch = new Batch();
+        for( int i = 0; i < pendingCnt; i++ ) {
+            merge(batch, pending[i*3], pending[i*3+1], pending[i*3+2]);
+        }
+
+        if( batch.m_needsReload ) {
+            MrMailbox.reloadMainChatlistInBackground(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(batch);
+                }
+            });
+        }
+        else {
+            deliver(batch);
+        }
+    }
+
+    private static void merge(Batch batch, int event, int chatId, int msgId) {
+        switch( event ) {
+            case MrMailbox.MR_EVENT_CONTACTS_CHANGED:
+                // blocking or unblocking contacts may add or remove chats
+                batch.m_contactsChanged = true;
+                batch.m_needsReload = true;
+                return;
+
+            case MrMailbox.MR_EVENT_CHAT_MODIFIED:
+                batch.m_chatModified = true;
+                if( MrMailbox.m_currChatlist.getIndexByChatId(chatId) < 0 ) {
+                    batch.m_needsReload = true; // the chat is not yet in the chatlist, eg. it was just created
+                }
+                break;
+
+            case MrMailbox.MR_EVENT_MSGS_CHANGED:
+            case MrMailbox.MR_EVENT_INCOMING_MSG:
+                batch.m_needsReload = true; // the order of the chatlist may change
+                if( event == MrMailbox.MR_EVENT_INCOMING_MSG ) {
+                    if( batch.m_incomingCnt*2+2 > batch.m_incoming.length ) {
+                        batch.m_incoming = Arrays.copyOf(batch.m_incoming, batch.m_incoming.length*2+16);
+                    }
+                    batch.m_incoming[batch.m_incomingCnt*2  ] = chatId;
+                    batch.m_incoming[batch.m_incomingCnt*2+1] = msgId;
+                    batch.m_incomingCnt++;
+                }
+                break;
+
+            case MrMailbox.MR_EVENT_MSG_DELIVERED:
+            case MrMailbox.MR_EVENT_MSG_READ:
+                batch.m_sentOrRead = true; // the chatlist stays the same, only the summary of the chat needs to be redrawn
+                break;
+        }
+
+        ChatUpdate chat = batch.m_chats.get(chatId);
+        if( chat == null ) {
+            chat = new ChatUpdate();
+            chat.m_event = event;
+            batch.m_chats.put(chatId, chat);
+        }
+        else if( rank(event) > rank(chat.m_event) ) {
+            chat.m_event = event;
+        }
+
+        if( msgId > 0 ) {
+            chat.m_lastMsgId = msgId;
+        }
+
+        if( event != MrMailbox.MR_EVENT_CHAT_MODIFIED && event != MrMailbox.MR_EVENT_INCOMING_MSG ) {
+            if( chat.m_invalidateMsgId == -1 ) {
+                chat.m_invalidateMsgId = msgId;
+            }
+            else if( chat.m_invalidateMsgId != msgId ) {
+                chat.m_invalidateMsgId = 0; // different messages, drop the whole chat from the cache
+            }
+        }
+
+        if( (event == MrMailbox.MR_EVENT_MSGS_CHANGED || event == MrMailbox.MR_EVENT_INCOMING_MSG) && msgId > 0 ) {
+            for( int i = 0; i < chat.m_newMsgCnt; i++ ) {
+                if( chat.m_newMsgIds[i] == msgId ) {
+                    return; // duplicate
+                }
+            }
+            if( chat.m_newMsgCnt >= chat.m_newMsgIds.length ) {
+                chat.m_newMsgIds = Arrays.copyOf(chat.m_newMsgIds, chat.m_newMsgIds.length*2+4);
+            }
+            chat.m_newMsgIds[chat.m_newMsgCnt++] = msgId;
+        }
+    }
+
+    private static void deliver(Batch batch) {
+        NotificationCenter nc = NotificationCenter.getInstance();
+        int delivered = 0;
+
+        for( Map.Entry<Integer, ChatUpdate> e : batch.m_chats.entrySet() ) {
+            if( e.getValue().m_invalidateMsgId != -1 ) {
+                MessageObjectCache.invalidate(e.getKey(), e.getValue().m_invalidateMsgId);
+            }
+        }
+
+        if( batch.m_sentOrRead ) {
+            nc.postNotificationName(NotificationCenter.messagesSentOrRead);
+            delivered++;
+        }
+
+        if( batch.m_contactsChanged ) {
+            nc.postNotificationName(NotificationCenter.contactsDidLoaded);
+            nc.postNotificationName(NotificationCenter.blockedUsersDidLoaded);
+            nc.postNotificationName(NotificationCenter.dialogsNeedReload, MrMailbox.MR_EVENT_CONTACTS_CHANGED, 0, 0);
+            delivered += 3;
+        }
+
+        if( batch.m_chatModified ) {
+            nc.postNotificationName(NotificationCenter.updateInterfaces,
+                    MrMailbox.UPDATE_MASK_NAME|MrMailbox.UPDATE_MASK_CHAT_NAME|
+                    MrMailbox.UPDATE_MASK_CHAT_MEMBERS|MrMailbox.UPDATE_MASK_AVATAR);
+            delivered++;
+        }
+
+        // one notification per chat; the new messages are given as an additional array
+        for( Map.Entry<Integer, ChatUpdate> e : batch.m_chats.entrySet() ) {
+            ChatUpdate chat = e.getValue();
+            nc.postNotificationName(NotificationCenter.dialogsNeedReload, chat.m_event, (int)e.getKey(), chat.m_lastMsgId,
+                    Arrays.copyOf(chat.m_newMsgIds, chat.m_newMsgCnt));
+            delivered++;
+        }
+
+        for( int i = 0; i < batch.m_incomingCnt; i++ ) {
+            NotificationsController.getInstance().processNewMessages(batch.m_incoming[i*2], batch.m_incoming[i*2+1]);
+        }
+
+        synchronized (s_lock) {
+            s_delivered += delivered;
+        }
+    }
+
+    public static String getStatsStr() {
+        synchronized (s_lock) {
+            return "received=" + s_received + ", delivered=" + s_delivered + ", batches=" + s_batches;
+        }
+    }
+}
@@ -43,6 +43,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MrMailbox {
 
@@ -152,11 +153,27 @@ public class MrMailbox {
         return MrMailboxGetMsgInfo(m_hMailbox, id);
     }
 
+    public static MrMsgRange getMsgRange(int msg_ids[], int first, int cnt) {
+        // load the messages msg_ids[first..first+cnt-1] with a single call to the backend;
+        // special IDs as markers are kept in the range but contain no further data.
+        if( first < 0 ) { first = 0; }
+        if( first+cnt > msg_ids.length ) { cnt = msg_ids.length-first; }
+        if( cnt < 0 ) { cnt = 0; }
+        int      ints[]       = new int[cnt*MrMsgRange.INT_COLS];
+        long     timestamps[] = new long[cnt];
+        String   strings[]    = new String[cnt*MrMsgRange.STR_COLS];
+        if( cnt > 0 ) {
+            MrMailboxGetMsgRange(m_hMailbox, msg_ids, first, cnt, ints, timestamps, strings);
+        }
+        return new MrMsgRange(first, cnt, ints, timestamps, strings);
+    }
+
     public native static void deleteMsgs(int msg_ids[]);
     public native static void forwardMsgs(int msg_ids[], int chat_ids);
 
     private native static long    MrMailboxGetMsg            (long hMailbox, int id); // return hMsg which must be unref'd after usage
     private native static String  MrMailboxGetMsgInfo        (long hMailbox, int id);
+    private native static void    MrMailboxGetMsgRange       (long hMailbox, int msg_ids[], int first, int cnt, int ret_ints[], long ret_timestamps[], String ret_strings[]); // the arrays are filled column by column, see MrMsgRange
 
     // static
     public native static String   MrGetVersionStr            ();
@@ -217,52 +234,13 @@ public class MrMailbox {
 
             case MR_EVENT_MSGS_CHANGED:
             case MR_EVENT_INCOMING_MSG:
-                AndroidUtilities.runOnUIThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        reloadMainChatlist();
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload, event, (int)data1, (int)data2);
-                        if( event == MR_EVENT_INCOMING_MSG ) {
-                            NotificationsController.getInstance().processNewMessages((int)data1, (int)data2);
-                        }
-                    }
-                });
-                return 0;
-
             case MR_EVENT_MSG_DELIVERED:
             case MR_EVENT_MSG_READ:
-                AndroidUtilities.runOnUIThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        reloadMainChatlist();
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesSentOrRead, event, (int)data1, (int)data2);
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
-                    }
-                });
-                return 0;
-
             case MR_EVENT_CONTACTS_CHANGED:
-                AndroidUtilities.runOnUIThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        reloadMainChatlist();
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.contactsDidLoaded);
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.blockedUsersDidLoaded);
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
-                    }
-                });
-                return 0;
-
             case MR_EVENT_CHAT_MODIFIED:
-                AndroidUtilities.runOnUIThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        reloadMainChatlist();
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.updateInterfaces,
-                                UPDATE_MASK_NAME|UPDATE_MASK_CHAT_NAME|
-                                UPDATE_MASK_CHAT_MEMBERS|UPDATE_MASK_AVATAR);
-                    }
-                });
+                // these events may arrive in bursts, eg. while fetching messages; the dispatcher merges them
+                // and reloads the chatlist only once per batch.
+                MrEventDispatcher.post(event, (int)data1, (int)data2);
                 return 0;
 
             case MR_EVENT_INFO:
@@ -391,11 +369,45 @@ public class MrMailbox {
         }
     }
 
-    public static MrChatlist     m_currChatlist = new MrChatlist(0);
+    public static MrChatlist     m_currChatlist = new MrChatlist(0); // only accessed from the UI thread
     public native static int     getCurrentTime             ();
+    private static final AtomicInteger s_chatlistLoadId = new AtomicInteger();
+    private static int           s_chatlistShownId;
     public static void reloadMainChatlist()
     {
-        m_currChatlist = getChatlist(null);
+        setMainChatlist(getChatlist(null), s_chatlistLoadId.incrementAndGet());
+    }
+
+    static void reloadMainChatlistInBackground(final Runnable onReloaded)
+    {
+        // load the chatlist incl. its ids outside the UI thread, onReloaded is called on the UI thread afterwards.
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                final int loadId = s_chatlistLoadId.incrementAndGet();
+                final MrChatlist chatlist = getChatlist(null);
+                chatlist.getIds();
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        setMainChatlist(chatlist, loadId);
+                        onReloaded.run();
+                    }
+                });
+            }
+        });
+    }
+
+    private static void setMainChatlist(MrChatlist chatlist, int loadId)
+    {
+        // a chatlist loaded in the background must not replace a chatlist loaded later in the UI thread
+        if( loadId > s_chatlistShownId ) {
+            s_chatlistShownId = loadId;
+            m_currChatlist = chatlist;
+        }
+        else {
+            chatlist.close();
+        }
     }
 
     public final static int MEDIA_PHOTOVIDEO = 0;
@@ -32,9 +32,10 @@ import android.media.ThumbnailUtils;
 import android.provider.MediaStore;
 import android.util.Log;
 
+import java.io.Closeable;
 import java.io.File;
 
-public class MrMsg {
+public class MrMsg implements Closeable {
 
     private static final String TAG = "MrMsg";
 
@@ -61,11 +62,16 @@ public class MrMsg {
 
     public MrMsg(long hMsg) {
         m_hMsg = hMsg;
+        m_ref = MrNativeRef.track(this, hMsg, MrNativeRef.MR_MSG);
     }
 
-    @Override protected void finalize() throws Throwable {
-        super.finalize();
-        MrMsgUnref(m_hMsg);
+    @Override public void close() {
+        // release the C-object now; if close() is not called, this is done by MrNativeRef after the object becomes unreachable
+        if( m_ref != null ) {
+            m_hMsg = 0;
+            m_ref.release();
+            m_ref = null;
+        }
     }
 
     public int getId() {
@@ -112,7 +118,8 @@ public class MrMsg {
     public native int    isIncreation();
 
     private long                  m_hMsg; // must not be renamed as referenced by JNI under the name "m_hMsg"
-    private native static void    MrMsgUnref                 (long hMsg);
+    private MrNativeRef           m_ref;
+    native static void            MrMsgUnref                 (long hMsg); // also called by MrNativeRef
     private native static int     MrMsgGetId                 (long hMsg);
     private native static String  MrMsgGetText               (long hMsg);
     private native static long    MrMsgGetTimestamp          (long hMsg);
@@ -221,6 +228,9 @@ public class MrMsg {
                     TLRPC.TL_documentAttributeAudio attr = new TLRPC.TL_documentAttributeAudio();
                     attr.voice = type == MR_MSG_VOICE;
                     attr.duration = getParamInt('d', 0) / 1000;
+                    if( type == MR_MSG_AUDIO ) {
+                        fillMediainfo(attr);
+                    }
                     ret.media.document.attributes.add(attr);
                 }
                 else if( type == MR_MSG_VIDEO ) {
@@ -256,6 +266,8 @@ public class MrMsg {
                     attr.w = getParamInt('w', 320);
                     attr.h = getParamInt('h', 240);
                     ret.media.document.attributes.add(attr);
+
+                    ret.mr_increation = isIncreation()!=0;
                 }
                 else {
                     ret.media.document.mime_type = getParam('m', "application/octet-stream");
@@ -281,4 +293,11 @@ public class MrMsg {
 
         return ret;
     }
+
+    void fillMediainfo(TLRPC.DocumentAttribute attr)
+    {
+        MrPoortext pt = getMediainfo();
+        attr.performer = pt.getText1();
+        attr.title     = pt.getText2();
+    }
 };
@@ -0,0 +1,228 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MrMsgRange.java
+ * Purpose: Columnar snapshot of several messages, loaded by a single call to
+ *          MrMailbox.getMsgRange() instead of one MrMsg plus several JNI calls
+ *          per message.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+
+public class MrMsgRange {
+
+    // the columns of the int- and the string-table; the order must match MrMailboxGetMsgRange() in mrwrapper.c.
+    // the tables are stored column by column, so the value of row `r` in column `c` is found at `c*m_cnt+r`.
+    final static int   INT_COL_ID         = 0;
+    final static int   INT_COL_FROM_ID    = 1;
+    final static int   INT_COL_TO_ID      = 2;
+    final static int   INT_COL_CHAT_ID    = 3;
+    final static int   INT_COL_TYPE       = 4;
+    final static int   INT_COL_STATE      = 5;
+    final static int   INT_COL_BYTES      = 6;
+    final static int   INT_COL_INCREATION = 7;
+    final static int   INT_COLS           = 8;
+
+    final static int   STR_COL_TEXT       = 0;
+    final static int   STR_COL_PARAM      = 1; // the packed mrparam_t, lines of `key=value`
+    final static int   STR_COL_FILENAME   = 2;
+    final static int   STR_COL_MEDIAINFO1 = 3; // only set for MR_MSG_AUDIO
+    final static int   STR_COL_MEDIAINFO2 = 4; // - " -
+    final static int   STR_COLS           = 5;
+
+    MrMsgRange(int first, int cnt, int[] ints, long[] timestamps, String[] strings) {
+        m_first      = first;
+        m_cnt        = cnt;
+        m_ints       = ints;
+        m_timestamps = timestamps;
+        m_strings    = strings;
+    }
+
+    public int getFirst() {
+        return m_first;
+    }
+
+    public int getCnt() {
+        return m_cnt;
+    }
+
+    public boolean contains(int index) {
+        return index >= m_first && index < m_first+m_cnt;
+    }
+
+    public MrMsg getMsg(int index) {
+        // index is an index to the array given to MrMailbox.getMsgRange(), not a row
+        return new RangeMsg(this, index-m_first);
+    }
+
+    private int                   m_first;
+    private int                   m_cnt;
+    private int[]                 m_ints;
+    private long[]                m_timestamps;
+    private String[]              m_strings;
+
+    int getInt(int row, int col) {
+        return m_ints[col*m_cnt+row];
+    }
+
+    String getString(int row, int col) {
+        String ret = m_strings[col*m_cnt+row];
+        return ret==null? "" : ret;
+    }
+
+    void setString(int row, int col, String value) {
+        m_strings[col*m_cnt+row] = value;
+    }
+
+
+    /* access the packed parameters, the format is the same as used by mrparam_t
+     **********************************************************************************************/
+
+    static String getParam(String packed, int key, String def) {
+        int pos = findParam(packed, key);
+        if( pos < 0 ) {
+            return def;
+        }
+        int end = packed.indexOf('\n', pos);
+        return packed.substring(pos+2, end<0? packed.length() : end);
+    }
+
+    static int getParamInt(String packed, int key, int def) {
+        String str = getParam(packed, key, null);
+        if( str == null ) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(str.trim());
+        }
+        catch(NumberFormatException e) {
+            return def;
+        }
+    }
+
+    static String setParam(String packed, int key, String value) {
+        int pos = findParam(packed, key);
+        if( pos >= 0 ) {
+            int end = packed.indexOf('\n', pos);
+            packed = packed.substring(0, pos) + (end<0? "" : packed.substring(end+1));
+        }
+        if( !packed.isEmpty() && !packed.endsWith("\n") ) {
+            packed += "\n";
+        }
+        return packed + (char)key + "=" + value;
+    }
+
+    private static int findParam(String packed, int key) {
+        int pos = 0, len = packed.length();
+        while( pos+1 < len ) {
+            if( packed.charAt(pos)==key && packed.charAt(pos+1)=='=' ) {
+                return pos;
+            }
+            pos = packed.indexOf('\n', pos);
+            if( pos < 0 ) {
+                break;
+            }
+            pos++;
+        }
+        return -1;
+    }
+
+
+    /* a MrMsg that reads its data from the range; functions not covered by the range
+    are forwarded to a real MrMsg which is loaded only if needed
+     **********************************************************************************************/
+
+    private static class RangeMsg extends MrMsg {
+
+        private MrMsgRange m_range;
+        private int        m_row;
+        private MrMsg      m_backingMsg;
+
+        RangeMsg(MrMsgRange range, int row) {
+            super(0);
+            m_range = range;
+            m_row   = row;
+        }
+
+        private MrMsg getBackingMsg() {
+            if( m_backingMsg == null ) {
+                m_backingMsg = MrMailbox.getMsg(getId());
+            }
+            return m_backingMsg;
+        }
+
+        @Override public void close() {
+            if( m_backingMsg != null ) {
+                m_backingMsg.close();
+                m_backingMsg = null;
+            }
+        }
+
+        @Override public int    getId()        { return m_range.getInt(m_row, INT_COL_ID); }
+        @Override public String getText()      { return m_range.getString(m_row, STR_COL_TEXT); }
+        @Override public long   getTimestamp() { return m_range.m_timestamps[m_row]; }
+        @Override public int    getType()      { return m_range.getInt(m_row, INT_COL_TYPE); }
+        @Override public int    getState()     { return m_range.getInt(m_row, INT_COL_STATE); }
+        @Override public int    getChatId()    { return m_range.getInt(m_row, INT_COL_CHAT_ID); }
+        @Override public int    getFromId()    { return m_range.getInt(m_row, INT_COL_FROM_ID); }
+        @Override public int    getToId()      { return m_range.getInt(m_row, INT_COL_TO_ID); }
+        @Override public int    getBytes()     { return m_range.getInt(m_row, INT_COL_BYTES); }
+        @Override public String getFilename()  { return m_range.getString(m_row, STR_COL_FILENAME); }
+        @Override public int    isIncreation() { return m_range.getInt(m_row, INT_COL_INCREATION); }
+
+        @Override public String getParam(int key, String def) {
+            return MrMsgRange.getParam(m_range.getString(m_row, STR_COL_PARAM), key, def);
+        }
+
+        @Override public int getParamInt(int key, int def) {
+            return MrMsgRange.getParamInt(m_range.getString(m_row, STR_COL_PARAM), key, def);
+        }
+
+        @Override public void setParamInt(int key, int value) {
+            m_range.setString(m_row, STR_COL_PARAM, MrMsgRange.setParam(m_range.getString(m_row, STR_COL_PARAM), key, Integer.toString(value)));
+            getBackingMsg().setParamInt(key, value);
+        }
+
+        @Override public void saveParamToDisk() {
+            getBackingMsg().saveParamToDisk();
+        }
+
+        @Override public MrPoortext getSummary(MrChat chat) {
+            return getBackingMsg().getSummary(chat);
+        }
+
+        @Override public String getSummarytext(int approx_characters) {
+            return getBackingMsg().getSummarytext(approx_characters);
+        }
+
+        @Override public MrPoortext getMediainfo() {
+            return getBackingMsg().getMediainfo();
+        }
+
+        @Override void fillMediainfo(TLRPC.DocumentAttribute attr) {
+            attr.performer = m_range.getString(m_row, STR_COL_MEDIAINFO1);
+            attr.title     = m_range.getString(m_row, STR_COL_MEDIAINFO2);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MrNativeRef.java
+ * Purpose: Track the C-objects owned by MrMsg, MrChat, MrChatlist, MrContact
+ *          and MrPoortext and unref them when the owner is closed or becomes
+ *          unreachable.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+
+
+public class MrNativeRef extends PhantomReference<Object> {
+
+    final static int MR_MSG      = 1;
+    final static int MR_CHAT     = 2;
+    final static int MR_CHATLIST = 3;
+    final static int MR_CONTACT  = 4;
+    final static int MR_POORTEXT = 5;
+
+    private long        m_handle;
+    private int         m_type;
+    private MrNativeRef m_prev, m_next; // all living references are kept in a list, otherwise they would be collected together with their owners
+
+    private MrNativeRef(Object owner, long handle, int type) {
+        super(owner, s_queue);
+        m_handle = handle;
+        m_type   = type;
+    }
+
+    static MrNativeRef track(Object owner, long handle, int type) {
+        // returns null for handle 0, there is nothing to release then
+        if( handle == 0 ) {
+            return null;
+        }
+        MrNativeRef ref = new MrNativeRef(owner, handle, type);
+        synchronized (s_lock) {
+            ref.m_next = s_first;
+            if( s_first != null ) {
+                s_first.m_prev = ref;
+            }
+            s_first = ref;
+            s_liveCnt++;
+            startReclaimerIfNeeded();
+        }
+        return ref;
+    }
+
+    void release() {
+        // called by the owners' close(); the C-object is released at once and the owner must not use the handle afterwards
+        clear();
+        long handle = unlink();
+        if( handle != 0 ) {
+            unref(m_type, handle);
+            synchronized (s_lock) {
+                s_closedCnt++;
+            }
+        }
+    }
+
+    private long unlink() {
+        // returns the handle to release or 0 if this is already done
+        synchronized (s_lock) {
+            long handle = m_handle;
+            if( handle == 0 ) {
+                return 0;
+            }
+            if( m_prev != null ) {
+                m_prev.m_next = m_next;
+            }
+            else {
+                s_first = m_next;
+            }
+            if( m_next != null ) {
+                m_next.m_prev = m_prev;
+            }
+            m_prev   = null;
+            m_next   = null;
+            m_handle = 0;
+            s_liveCnt--;
+            return handle;
+        }
+    }
+
+    private static void unref(int type, long handle) {
+        switch( type ) {
+            case MR_MSG:      MrMsg.MrMsgUnref(handle);             break;
+            case MR_CHAT:     MrChat.MrChatUnref(handle);           break;
+            case MR_CHATLIST: MrChatlist.MrChatlistUnref(handle);   break;
+            case MR_CONTACT:  MrContact.MrContactUnref(handle);     break;
+            case MR_POORTEXT: MrPoortext.MrPoortextUnref(handle);   break;
+        }
+    }
+
+
+    /* the reclaimer thread releases the objects of unreachable owners, several at once
+     **********************************************************************************************/
+
+    private final static int                    RECLAIM_BATCH = 64;
+    private final static ReferenceQueue<Object> s_queue = new ReferenceQueue<>();
+    private final static Object                 s_lock = new Object();
+    private static MrNativeRef                  s_first;
+    private static Thread                       s_reclaimer;
+    private static int                          s_liveCnt, s_closedCnt, s_reclaimedCnt;
+
+    private static void startReclaimerIfNeeded() {
+        // s_lock must be held
+        if( s_reclaimer == null ) {
+            s_reclaimer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    reclaimLoop();
+                }
+            }, "MrNativeRefReclaimer");
+            s_reclaimer.setDaemon(true);
+            s_reclaimer.start();
+        }
+    }
+
+    private static void reclaimLoop() {
+        long[] handles = new long[RECLAIM_BATCH];
+        int[]  types   = new int[RECLAIM_BATCH];
+        while( true ) {
+            int cnt = 0;
+            try {
+                MrNativeRef ref = (MrNativeRef)s_queue.remove();
+                while( ref != null ) {
+                    long handle = ref.unlink();
+                    if( handle != 0 ) {
+                        handles[cnt] = handle;
+                        types[cnt]   = ref.m_type;
+                        cnt++;
+                    }
+                    ref = cnt < RECLAIM_BATCH? (MrNativeRef)s_queue.poll() : null;
+                }
+            }
+            catch( InterruptedException e ) {
+                // go on with what we have
+            }
+
+            for( int i = 0; i < cnt; i++ ) {
+                unref(types[i], handles[i]);
+            }
+
+            synchronized (s_lock) {
+                s_reclaimedCnt += cnt;
+            }
+        }
+    }
+
+
+    /* statistics
+     **********************************************************************************************/
+
+    public static int getLiveCnt() {
+        synchronized (s_lock) {
+            return s_liveCnt;
+        }
+    }
+
+    public static String getStatsStr() {
+        synchronized (s_lock) {
+            return "live=" + s_liveCnt + ", closed=" + s_closedCnt + ", reclaimed=" + s_reclaimedCnt;
+        }
+    }
+}
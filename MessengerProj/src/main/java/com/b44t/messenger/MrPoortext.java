@@ -27,8 +27,10 @@
 
 package com.b44t.messenger;
 
+import java.io.Closeable;
 
-public class MrPoortext {
+
+public class MrPoortext implements Closeable {
 
     public final static int      MR_TEXT1_NORMAL            = 0;
     public final static int      MR_TEXT1_DRAFT             = 1;
@@ -37,11 +39,16 @@ public class MrPoortext {
 
     public MrPoortext(long hPoortext) {
         m_hPoortext = hPoortext;
+        m_ref = MrNativeRef.track(this, hPoortext, MrNativeRef.MR_POORTEXT);
     }
 
-    @Override protected void finalize() throws Throwable {
-        super.finalize();
-        MrPoortextUnref(m_hPoortext);
+    @Override public void close() {
+        // release the C-object now; if close() is not called, this is done by MrNativeRef after the object becomes unreachable
+        if( m_ref != null ) {
+            m_hPoortext = 0;
+            m_ref.release();
+            m_ref = null;
+        }
     }
 
     public String getText1() {
@@ -65,7 +72,8 @@ public class MrPoortext {
     }
 
     private long                  m_hPoortext;
-    private native static void    MrPoortextUnref            (long hPoortext);
+    private MrNativeRef           m_ref;
+    native static void            MrPoortextUnref            (long hPoortext); // also called by MrNativeRef
     private native static String  MrPoortextGetText1         (long hPoortext);
     private native static int     MrPoortextGetText1Meaning  (long hPoortext);
     private native static String  MrPoortextGetText2         (long hPoortext);
@@ -52,6 +52,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class NotificationsController {
 
@@ -60,9 +61,9 @@ public class NotificationsController {
     public static final String EXTRA_VOICE_REPLY = "extra_voice_reply";
 
     private DispatchQueue notificationsQueue = new DispatchQueue("notificationsQueue");
-    private ArrayList<MessageObject> pushMessages = new ArrayList<>();
-    private ArrayList<MessageObject> delayedPushMessages = new ArrayList<>();
-    private HashMap<Long, MessageObject> pushMessagesDict = new HashMap<>();
+    private ArrayList<PushMessage> pushMessages = new ArrayList<>();
+    private ArrayList<PushMessage> delayedPushMessages = new ArrayList<>();
+    private HashMap<Long, PushMessage> pushMessagesDict = new HashMap<>();
     private HashMap<Long, Point> smartNotificationsDialogs = new HashMap<>();
     private NotificationManagerCompat notificationManager = null;
     private HashMap<Integer, Integer> pushDialogs = new HashMap<>();
@@ -92,6 +93,82 @@ public class NotificationsController {
 
     public static final int DEF_LED_COLOR = 0xffffffff;
 
+    // what is needed to show a message in a notification; the texts are loaded when the notification is built
+    private static class PushMessage {
+        final int id;
+        final long dialog_id;
+        final int from_id;
+        final int date;
+        final boolean silent;
+
+        PushMessage(MrMsg mrMsg) {
+            id = mrMsg.getId();
+            dialog_id = mrMsg.getChatId();
+            from_id = mrMsg.getFromId();
+            date = (int) mrMsg.getTimestamp();
+            silent = false;
+        }
+
+        int getId() {
+            return id;
+        }
+
+        long getDialogId() {
+            return dialog_id;
+        }
+    }
+
+    // immutable copy of the settings checked for each incoming message; a new copy is created on the next use
+    // after the settings are changed, readers still using the old copy are not affected
+    private static class NotifySettings {
+        final boolean enableAll;
+        final boolean enableGroup;
+        final HashMap<Long, Integer> notifyOverrides = new HashMap<>();
+        final HashMap<Long, Integer> muteUntil = new HashMap<>();
+
+        NotifySettings(SharedPreferences preferences) {
+            enableAll = preferences.getBoolean("EnableAll", true);
+            enableGroup = preferences.getBoolean("EnableGroup", true);
+            for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+                String key = entry.getKey();
+                try {
+                    if (key.startsWith("notify2_")) {
+                        notifyOverrides.put(Long.parseLong(key.substring(8)), (Integer) entry.getValue());
+                    } else if (key.startsWith("notifyuntil_")) {
+                        muteUntil.put(Long.parseLong(key.substring(12)), (Integer) entry.getValue());
+                    }
+                } catch (Exception e) {
+
+                }
+            }
+        }
+    }
+
+    private volatile NotifySettings notifySettings;
+    private final Object settingsSync = new Object();
+    private volatile int settingsGeneration; // incremented on each change, a snapshot read before a change is not published
+    private int settingsLoads;
+    private int notificationUpdates;
+    private boolean notificationUpdateScheduled; // only used on the notificationsQueue
+    private final Runnable notificationUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            notificationUpdateScheduled = false;
+            notificationUpdates++;
+            showOrUpdateNotification(true /*play sound*/);
+        }
+    };
+    private final SharedPreferences.OnSharedPreferenceChangeListener settingsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+            // not all settings dialogs post notificationsSettingsUpdated, so the preferences are watched directly
+            synchronized (settingsSync) {
+                settingsGeneration++;
+                notifySettings = null;
+            }
+        }
+    };
+
     private static volatile NotificationsController Instance = null;
     public static NotificationsController getInstance() {
         NotificationsController localInstance = Instance;
@@ -111,6 +188,7 @@ public class NotificationsController {
         notificationManager = NotificationManagerCompat.from(ApplicationLoader.applicationContext);
         SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("Notifications", Context.MODE_PRIVATE);
         inChatSoundEnabled = preferences.getBoolean("EnableInChatSound", true);
+        preferences.registerOnSharedPreferenceChangeListener(settingsListener);
 
         try {
             audioManager = (AudioManager) ApplicationLoader.applicationContext.getSystemService(Context.AUDIO_SERVICE);
@@ -390,37 +468,43 @@ public class NotificationsController {
                     return; // already added
                 }
 
-                SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("Notifications", Context.MODE_PRIVATE);
-                int notifyOverride = getNotifyOverride(preferences, chat_id);
+                NotifySettings settings = getSettings();
+                int notifyOverride = getNotifyOverride(settings, chat_id);
                 if (notifyOverride == 2) {
                     return; // muted
                 }
 
-                MrChat mrChat = MrMailbox.getChat(chat_id);
-                if (mrChat.getId() == 0) {
-                    return;
+                boolean value = settings.enableAll && settings.enableGroup || notifyOverride != 0;
+                if (!value && settings.enableAll) {
+                    // only groups are disabled, the chat type is needed
+                    MrChat mrChat = MrMailbox.getChat(chat_id);
+                    if (mrChat.getId() == 0) {
+                        return;
+                    }
+                    value = mrChat.getType() != MrChat.MR_CHAT_GROUP;
                 }
-                boolean isGroupChat = mrChat.getType() == MrChat.MR_CHAT_GROUP;
-                boolean value = !((!preferences.getBoolean("EnableAll", true) || isGroupChat && !preferences.getBoolean("EnableGroup", true)) && notifyOverride == 0);
 
                 if (value) {
                     MrMsg mrMsg = MrMailbox.getMsg(msg_id);
                     if (mrMsg.getId() == 0 || mrMsg.getFromId() == MrContact.MR_CONTACT_ID_SELF) {
                         return;
                     }
-                    TLRPC.Message tmsg = mrMsg.get_TLRPC_Message();
-                    MessageObject msgDrawObj = new MessageObject(tmsg, true);
+                    PushMessage pushMessage = new PushMessage(mrMsg);
 
-                    delayedPushMessages.add(msgDrawObj);
-                    pushMessages.add(0, msgDrawObj);
-                    pushMessagesDict.put((long) msg_id, msgDrawObj);
+                    delayedPushMessages.add(pushMessage);
+                    pushMessages.add(0, pushMessage);
+                    pushMessagesDict.put((long) msg_id, pushMessage);
 
                     int chat_id = mrMsg.getChatId();
                     int old_cnt = pushDialogs.get(chat_id)==null? 0 : pushDialogs.get(chat_id);
                     pushDialogs.put(chat_id, old_cnt+1);
                     total_unread_count++;
 
-                    showOrUpdateNotification(true /*play sound*/);
+                    // the notification is updated once for all messages already waiting in the queue, eg. when many mails are fetched at once
+                    if (!notificationUpdateScheduled) {
+                        notificationUpdateScheduled = true;
+                        notificationsQueue.postRunnable(notificationUpdateRunnable);
+                    }
                 }
             }
         });
@@ -512,12 +596,12 @@ public class NotificationsController {
         // go through all objects and check if they're still unread
         boolean sthRemoved = false;
         for( int i = 0; i < pushMessages.size() /*do no cache, size may shrink in loop*/; i++ ) {
-            MessageObject messageObject = pushMessages.get(i);
-            if( unseenHash.get(messageObject.messageOwner.id)==null ) {
+            PushMessage pushMessage = pushMessages.get(i);
+            if( unseenHash.get(pushMessage.id)==null ) {
                 // this message is no longer unseen
-                int dialog_id = (int)messageObject.messageOwner.dialog_id;
-                pushMessagesDict.remove((long)messageObject.messageOwner.id);
-                delayedPushMessages.remove(messageObject);
+                int dialog_id = (int)pushMessage.dialog_id;
+                pushMessagesDict.remove((long)pushMessage.id);
+                delayedPushMessages.remove(pushMessage);
                 pushMessages.remove(i);
                 i--;
                 total_unread_count--;
@@ -784,16 +868,16 @@ public class NotificationsController {
 
     private final int ADD_USER = 0x01;
     private final int ADD_GROUP = 0x02;
-    private String getStringForMessage(MessageObject messageObject, int flags) {
-        long dialog_id = messageObject.messageOwner.dialog_id;
-        int from_id = messageObject.messageOwner.from_id;
+    private String getStringForMessage(PushMessage pushMessage, int flags) {
+        long dialog_id = pushMessage.dialog_id;
+        int from_id = pushMessage.from_id;
 
         MrChat mrChat = MrMailbox.getChat((int)dialog_id);
         MrContact mrContact = MrMailbox.getContact(from_id);
         String name = mrContact.getDisplayName();
         boolean is_group = mrChat.getType()==MrChat.MR_CHAT_GROUP;
 
-        MrMsg  mrMsg = MrMailbox.getMsg(messageObject.getId());
+        MrMsg  mrMsg = MrMailbox.getMsg(pushMessage.getId());
         String msg = mrMsg.getSummarytext(160);
 
         String ret;
@@ -845,17 +929,39 @@ public class NotificationsController {
         return null;
     }
 
-    private int getNotifyOverride(SharedPreferences preferences, long dialog_id) {
-        int notifyOverride = preferences.getInt("notify2_" + dialog_id, 0);
+    private int getNotifyOverride(NotifySettings settings, long dialog_id) {
+        Integer notifyOverride = settings.notifyOverrides.get(dialog_id);
+        if (notifyOverride == null) {
+            return 0;
+        }
         if (notifyOverride == 3) {
-            int muteUntil = preferences.getInt("notifyuntil_" + dialog_id, 0);
-            if (muteUntil >= MrMailbox.getCurrentTime()) {
-                notifyOverride = 2;
+            Integer muteUntil = settings.muteUntil.get(dialog_id);
+            if (muteUntil != null && muteUntil >= MrMailbox.getCurrentTime()) {
+                return 2;
             }
         }
         return notifyOverride;
     }
 
+    private NotifySettings getSettings() {
+        NotifySettings settings = notifySettings;
+        if (settings == null) {
+            int generation = settingsGeneration;
+            settings = new NotifySettings(ApplicationLoader.applicationContext.getSharedPreferences("Notifications", Context.MODE_PRIVATE));
+            synchronized (settingsSync) {
+                if (generation == settingsGeneration) {
+                    notifySettings = settings; // otherwise, the settings were changed while reading, the next call reads them again
+                }
+            }
+            settingsLoads++;
+        }
+        return settings;
+    }
+
+    public String getStatsStr() {
+        return "settingsLoads=" + settingsLoads + ", notificationUpdates=" + notificationUpdates + ", pending=" + pushMessages.size();
+    }
+
     private void dismissNotification() {
         try {
             notificationManager.cancel(1);
@@ -895,8 +1001,7 @@ public class NotificationsController {
         }
 
         try {
-            SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("Notifications", Context.MODE_PRIVATE);
-            int notifyOverride = getNotifyOverride(preferences, opened_dialog_id);
+            int notifyOverride = getNotifyOverride(getSettings(), opened_dialog_id);
             if (notifyOverride == 2) {
                 return;
             }
@@ -970,18 +1075,18 @@ public class NotificationsController {
         }
 
         try {
-            MessageObject lastMessageObject = pushMessages.get(0);
+            PushMessage lastPushMessage = pushMessages.get(0);
             SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("Notifications", Context.MODE_PRIVATE);
             int dismissDate = preferences.getInt("dismissDate", 0);
-            if (lastMessageObject.messageOwner.date <= dismissDate) {
+            if (lastPushMessage.date <= dismissDate) {
                 dismissNotification();
                 return;
             }
 
-            final long dialog_id = lastMessageObject.getDialogId();
+            final long dialog_id = lastPushMessage.getDialogId();
 
-            //int mid = lastMessageObject.getId();
-            final int user_id = lastMessageObject.messageOwner.from_id;
+            //int mid = lastPushMessage.getId();
+            final int user_id = lastPushMessage.from_id;
 
             //TLRPC.User user = MessagesController.getInstance().getUser(user_id);
 
@@ -1002,8 +1107,9 @@ public class NotificationsController {
             int priorityOverride;
             int vibrateOverride;
 
-            int notifyOverride = getNotifyOverride(preferences, dialog_id);
-            if (!notifyAboutLast || notifyOverride == 2 || (!preferences.getBoolean("EnableAll", true) || isGroupChat && !preferences.getBoolean("EnableGroup", true)) && notifyOverride == 0) {
+            NotifySettings settings = getSettings();
+            int notifyOverride = getNotifyOverride(settings, dialog_id);
+            if (!notifyAboutLast || notifyOverride == 2 || (!settings.enableAll || isGroupChat && !settings.enableGroup) && notifyOverride == 0) {
                 notifyDisabled = true;
             }
 
@@ -1145,9 +1251,9 @@ public class NotificationsController {
                 lastMessage = detailText;
             }
             else if (pushMessages.size() == 1 ) {
-                MessageObject messageObject = pushMessages.get(0);
-                String message = lastMessage = getStringForMessage(messageObject, isGroupChat? ADD_USER : 0);
-                silent = messageObject.messageOwner.silent ? 1 : 0;
+                PushMessage pushMessage = pushMessages.get(0);
+                String message = lastMessage = getStringForMessage(pushMessage, isGroupChat? ADD_USER : 0);
+                silent = pushMessage.silent ? 1 : 0;
                 if (message == null) {
                     return;
                 }
@@ -1165,22 +1271,22 @@ public class NotificationsController {
                     string_flags |= ADD_GROUP;
                 }
                 for (int i = 1/*user_id is #0*/; i < pushMessages.size(); i++) {
-                    MessageObject messageObject = pushMessages.get(i);
-                    if( messageObject.messageOwner.from_id != user_id ) {
+                    PushMessage pushMessage = pushMessages.get(i);
+                    if( pushMessage.from_id != user_id ) {
                         string_flags |= ADD_USER;
                         break;
                     }
                 }
 
                 for (int i = 0; i < count; i++) {
-                    MessageObject messageObject = pushMessages.get(i);
-                    String message = getStringForMessage(messageObject, string_flags);
-                    if (message == null || messageObject.messageOwner.date <= dismissDate) {
+                    PushMessage pushMessage = pushMessages.get(i);
+                    String message = getStringForMessage(pushMessage, string_flags);
+                    if (message == null || pushMessage.date <= dismissDate) {
                         continue;
                     }
                     if (silent == 2) {
                         lastMessage = message;
-                        silent = messageObject.messageOwner.silent ? 1 : 0;
+                        silent = pushMessage.silent ? 1 : 0;
                     }
                     /*if (pushDialogs.size() == 1) {
                         if (replace) {
@@ -1198,7 +1304,7 @@ public class NotificationsController {
             }
 
             Intent dismissIntent = new Intent(ApplicationLoader.applicationContext, NotificationDismissReceiver.class);
-            dismissIntent.putExtra("messageDate", lastMessageObject.messageOwner.date);
+            dismissIntent.putExtra("messageDate", lastPushMessage.date);
             mBuilder.setDeleteIntent(PendingIntent.getBroadcast(ApplicationLoader.applicationContext, 1, dismissIntent, PendingIntent.FLAG_UPDATE_CURRENT));
 
             /*if (photoPath != null) {
@@ -1287,21 +1393,21 @@ public class NotificationsController {
         }
 
         ArrayList<Long> sortedDialogs = new ArrayList<>();
-        HashMap<Long, ArrayList<MessageObject>> messagesByDialogs = new HashMap<>();
+        HashMap<Long, ArrayList<PushMessage>> messagesByDialogs = new HashMap<>();
         for (int a = 0; a < pushMessages.size(); a++) {
-            MessageObject messageObject = pushMessages.get(a);
-            long dialog_id = messageObject.getDialogId();
+            PushMessage pushMessage = pushMessages.get(a);
+            long dialog_id = pushMessage.getDialogId();
             if ((int)dialog_id == 0) {
                 continue;
             }
 
-            ArrayList<MessageObject> arrayList = messagesByDialogs.get(dialog_id);
+            ArrayList<PushMessage> arrayList = messagesByDialogs.get(dialog_id);
             if (arrayList == null) {
                 arrayList = new ArrayList<>();
                 messagesByDialogs.put(dialog_id, arrayList);
                 sortedDialogs.add(0, dialog_id);
             }
-            arrayList.add(messageObject);
+            arrayList.add(pushMessage);
         }
 
         HashMap<Long, Integer> oldIdsWear = new HashMap<>();
@@ -1314,9 +1420,9 @@ public class NotificationsController {
 
         for (int b = 0; b < sortedDialogs.size(); b++) {
             long dialog_id = sortedDialogs.get(b);
-            ArrayList<MessageObject> messageObjects = messagesByDialogs.get(dialog_id);
-            int max_id = messageObjects.get(0).getId();
-            int max_date = messageObjects.get(0).messageOwner.date;
+            ArrayList<PushMessage> dialogMessages = messagesByDialogs.get(dialog_id);
+            int max_id = dialogMessages.get(0).getId();
+            int max_date = dialogMessages.get(0).date;
             TLRPC.Chat chat = null;
             TLRPC.User user = null;
             String name;
@@ -1402,9 +1508,9 @@ public class NotificationsController {
             }
 
             String text = "";
-            for (int a = messageObjects.size() - 1; a >= 0; a--) {
-                MessageObject messageObject = messageObjects.get(a);
-                String message = getStringForMessage(messageObject, ADD_GROUP|ADD_USER);
+            for (int a = dialogMessages.size() - 1; a >= 0; a--) {
+                PushMessage pushMessage = dialogMessages.get(a);
+                String message = getStringForMessage(pushMessage, ADD_GROUP|ADD_USER);
                 if (message == null) {
                     continue;
                 }
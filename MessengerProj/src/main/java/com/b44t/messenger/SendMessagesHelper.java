@@ -272,6 +272,7 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
         }
         MimeTypeMap myMime = MimeTypeMap.getSingleton();
         TLRPC.TL_documentAttributeAudio attributeAudio = null;
+        String sniffedMime = null;
         if (uri != null) {
             String extension = null;
             if (mime != null) {
@@ -280,10 +281,12 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
             if (extension == null) {
                 extension = "txt";
             }
-            path = MediaController.copyFileToCache(uri, extension);
-            if (path == null) {
+            AttachmentImporter.Result imported = AttachmentImporter.importUri(uri, extension);
+            if (imported == null) {
                 return false;
             }
+            path = imported.m_file.getAbsolutePath();
+            sniffedMime = imported.m_sniffedMime;
         }
         final File f = new File(path);
         if (!f.exists() || f.length() == 0) {
@@ -349,6 +352,9 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
             } else {
                 document.mime_type = "application/octet-stream";
             }
+            if (sniffedMime != null && document.mime_type.equals("application/octet-stream")) {
+                document.mime_type = sniffedMime; // the name of the shared file has no or an unknown extension
+            }
             if (document.mime_type.equals("image/gif")) {
                 try {
                     Bitmap bitmap = ImageLoader.loadBitmap(f.getAbsolutePath(), null, 90, 90, true);
@@ -424,7 +430,7 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
         if (paths == null && originalPaths == null && uris == null || paths != null && originalPaths != null && paths.size() != originalPaths.size()) {
             return;
         }
-        new Thread(new Runnable() {
+        MediaExecutor.post("prepareSendingDocuments", MediaExecutor.PRIORITY_NORMAL, new Runnable() {
             @Override
             public void run() {
                 boolean error = false;
@@ -454,7 +460,7 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                     });
                 }
             }
-        }).start();
+        });
     }
 
     public static void prepareSendingPhoto(String imageFilePath, Uri imageUri, long dialog_id, CharSequence caption) {
@@ -519,13 +525,16 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
         if (uris != null) {
             urisCopy.addAll(uris);
         }
-        new Thread(new Runnable() {
+        MediaExecutor.post("prepareSendingPhotos", MediaExecutor.PRIORITY_NORMAL, new Runnable() {
             @Override
             public void run() {
 
                 ArrayList<String> sendAsDocuments = null;
                 ArrayList<String> sendAsDocumentsOriginal = null;
                 ArrayList<String> sendAsDocumentsCaptions = null;
+                ArrayList<String> photoPaths = new ArrayList<>();
+                ArrayList<Uri> photoUris = new ArrayList<>();
+                ArrayList<String> photoCaptions = new ArrayList<>();
                 int count = !pathsCopy.isEmpty() ? pathsCopy.size() : urisCopy.size();
                 String path = null;
                 Uri uri = null;
@@ -588,40 +597,106 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                             }
                         }
                         if (photo == null) {
-                            photo = SendMessagesHelper.getInstance().generatePhotoSizes(path, uri);
+                            photoPaths.add(path);
+                            photoUris.add(uri);
+                            photoCaptions.add(captions != null ? captions.get(a) : null);
                         }
-                        if (photo != null) {
-                            if (captions != null) {
-                                photo.caption = captions.get(a);
+                    }
+                }
+
+                final ArrayList<String> sendAsDocumentsFinal = sendAsDocuments;
+                final ArrayList<String> sendAsDocumentsOriginalFinal = sendAsDocumentsOriginal;
+                final ArrayList<String> sendAsDocumentsCaptionsFinal = sendAsDocumentsCaptions;
+                final String extensionFinal = extension;
+                Runnable sendDocuments = new Runnable() {
+                    @Override
+                    public void run() {
+                        if (sendAsDocumentsFinal != null && !sendAsDocumentsFinal.isEmpty()) {
+                            for (int a = 0; a < sendAsDocumentsFinal.size(); a++) {
+                                prepareSendingDocumentInternal(sendAsDocumentsFinal.get(a), sendAsDocumentsOriginalFinal.get(a), null, extensionFinal, dialog_id, sendAsDocumentsCaptionsFinal.get(a));
                             }
-                            final TLRPC.TL_photo photoFinal = photo;
-                            /*final HashMap<String, String> params = new HashMap<>();
-                            if (originalPath != null) {
-                                params.put("originalPath", originalPath);
-                            }*/
-                            AndroidUtilities.runOnUIThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    SendMessagesHelper.getInstance().sendMessagePhoto(photoFinal, null, dialog_id, null);
-                                }
-                            });
                         }
                     }
+                };
+
+                if (photoPaths.isEmpty()) {
+                    sendDocuments.run();
+                    return;
                 }
-                if (sendAsDocuments != null && !sendAsDocuments.isEmpty()) {
-                    for (int a = 0; a < sendAsDocuments.size(); a++) {
-                        prepareSendingDocumentInternal(sendAsDocuments.get(a), sendAsDocumentsOriginal.get(a), null, extension, dialog_id, sendAsDocumentsCaptions.get(a));
+
+                // the photos are generated in parallel, each one as a separate task, so that we never wait for other tasks
+                // on the MediaExecutor threads; PhotoSendQueue sends them in the order of selection.
+                final PhotoSendQueue sendQueue = new PhotoSendQueue(photoPaths.size(), dialog_id, sendDocuments);
+                for (int a = 0; a < photoPaths.size(); a++) {
+                    final int index = a;
+                    final String photoPath = photoPaths.get(a);
+                    final Uri photoUri = photoUris.get(a);
+                    final String photoCaption = photoCaptions.get(a);
+                    MediaExecutor.post("generatePhoto", MediaExecutor.PRIORITY_NORMAL, new Runnable() {
+                        @Override
+                        public void run() {
+                            TLRPC.TL_photo photo = null;
+                            try {
+                                photo = SendMessagesHelper.getInstance().generatePhotoSizes(photoPath, photoUri);
+                                if (photo != null) {
+                                    photo.caption = photoCaption;
+                                }
+                            } finally {
+                                sendQueue.setPhoto(index, photo);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private static class PhotoSendQueue {
+        private TLRPC.TL_photo[] photos;
+        private boolean[] ready;
+        private int nextToSend;
+        private long dialog_id;
+        private Runnable onAllSent;
+
+        private PhotoSendQueue(int count, long dialog_id, Runnable onAllSent) {
+            photos = new TLRPC.TL_photo[count];
+            ready = new boolean[count];
+            this.dialog_id = dialog_id;
+            this.onAllSent = onAllSent;
+        }
+
+        private void setPhoto(int index, TLRPC.TL_photo photo) {
+            // photo may be null if it could not be generated, it is skipped then
+            boolean allSent;
+            synchronized (this) {
+                photos[index] = photo;
+                ready[index] = true;
+                while (nextToSend < ready.length && ready[nextToSend]) {
+                    final TLRPC.TL_photo photoFinal = photos[nextToSend];
+                    photos[nextToSend] = null;
+                    nextToSend++;
+                    if (photoFinal != null) {
+                        AndroidUtilities.runOnUIThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                SendMessagesHelper.getInstance().sendMessagePhoto(photoFinal, null, dialog_id, null);
+                            }
+                        });
                     }
                 }
+                allSent = nextToSend == ready.length;
             }
-        }).start();
+            if (allSent) {
+                onAllSent.run();
+            }
+        }
     }
 
     public static void prepareSendingVideo(final String videoPath, final long estimatedSize, final long duration, final int width, final int height, final VideoEditedInfo videoEditedInfo, final long dialog_id) {
         if (videoPath == null || videoPath.length() == 0) {
             return;
         }
-        new Thread(new Runnable() {
+        MediaExecutor.post("prepareSendingVideo", MediaExecutor.PRIORITY_NORMAL, new Runnable() {
             @Override
             public void run() {
 
@@ -728,6 +803,6 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                     prepareSendingDocumentInternal(videoPath, videoPath, null, null, dialog_id, null);
                 }
             }
-        }).start();
+        });
     }
 }
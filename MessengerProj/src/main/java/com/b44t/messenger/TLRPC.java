@@ -291,6 +291,7 @@ public class TLRPC {
         public long dialog_id; //custom
         public final int layer = 0; //custom
 		public boolean created_by_mr;
+		public boolean mr_increation; // set for videos that are still being converted
     }
 
 	public static class TL_message extends Message {
@@ -0,0 +1,310 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    ThumbPack.java
+ * Purpose: Persistent cache for scaled-down images; the images are appended to
+ *          a single pack file and found by a memory-mapped hash index, so that
+ *          the original images need not to be decoded again after a restart.
+ *          Other small, rebuildable data as waveforms are stored the same way.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+public class ThumbPack {
+
+    // the index is a hash table with open addressing; each slot contains the 64 bit hash of the key
+    // (0=unused) and the offset and the length of the record in the pack file.
+    private final static int  INDEX_MAGIC    = 0x54504b31;
+    private final static int  HEADER_BYTES   = 16; // magic, slot count, entry count, reserved
+    private final static int  SLOT_BYTES     = 16;
+    private final static int  SLOT_CNT       = 8192;
+    private final static int  MAX_ENTRIES    = SLOT_CNT*3/4;
+    private final static long MAX_PACK_BYTES = 48*1024*1024;
+
+    // a record in the pack file is the magic, the key (checked on reading, hashes may collide) and the data
+    private final static int  RECORD_MAGIC   = 0x54484d42;
+
+    // the lock only guards the index; records are read and written without holding it, so several
+    // decoding threads can use the pack at the same time.  the pack is only appended to, so a record
+    // does not change until the next reset, which is detected by the generation.
+    private final File         m_dir, m_packFile, m_indexFile;
+    private RandomAccessFile   m_pack;
+    private MappedByteBuffer   m_index;
+    private long               m_packEnd;
+    private int                m_generation, m_openCnt;
+    private boolean            m_failed;
+
+    // each thread uses its own file, so the file pointers do not interfere.  unlike a FileChannel, a
+    // RandomAccessFile is not closed when the thread is interrupted, as done when an image load is cancelled.
+    private static class ThreadFile {
+        RandomAccessFile file;
+        int              openCnt;
+    }
+    private final ThreadLocal<ThreadFile> m_threadFile = new ThreadLocal<ThreadFile>() {
+        @Override
+        protected ThreadFile initialValue() {
+            return new ThreadFile();
+        }
+    };
+
+    private int m_hits, m_misses, m_stored, m_resets;
+
+    public ThumbPack(File dir) {
+        this(dir, "thumbs");
+    }
+
+    public ThumbPack(File dir, String name) {
+        // the files are opened on first use, so the constructor may be called from the UI thread
+        m_dir       = dir;
+        m_packFile  = new File(dir, name + ".pack");
+        m_indexFile = new File(dir, name + ".idx");
+    }
+
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L; // FNV-1a
+        for( int i = 0; i < key.length(); i++ ) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h==0? 1 : h;
+    }
+
+    private boolean open() {
+        if( m_pack != null && m_packFile.exists() ) {
+            return true;
+        }
+        if( m_failed ) {
+            return false; // do not try again on each image
+        }
+
+        close(); // the files may have been deleted by the system as they're in the cache directory
+        try {
+            m_dir.mkdirs();
+            int indexBytes = HEADER_BYTES + SLOT_CNT*SLOT_BYTES;
+            RandomAccessFile index = new RandomAccessFile(m_indexFile, "rw");
+            boolean valid = index.length() == indexBytes && index.readInt() == INDEX_MAGIC && index.readInt() == SLOT_CNT
+                    && m_packFile.exists();
+            if( !valid ) {
+                index.setLength(0);
+                index.setLength(indexBytes);
+            }
+            m_index = index.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexBytes);
+            index.close(); // the mapping stays valid
+            m_pack = new RandomAccessFile(m_packFile, "rw");
+            m_packEnd = m_pack.length();
+            m_generation++; // records read or written with the previous files are dropped
+            m_openCnt++;    // the threads open the new files
+            if( !valid ) {
+                reset();
+            }
+            return true;
+        }
+        catch( Exception e ) {
+            FileLog.e("messenger", "Cannot open thumbnail pack: " + e);
+            close();
+            m_failed = true;
+            return false;
+        }
+    }
+
+    private void close() {
+        try {
+            if( m_pack != null ) {
+                m_pack.close();
+            }
+        }
+        catch( Exception e ) {
+        }
+        m_pack  = null;
+        m_index = null;
+    }
+
+    private void reset() throws Exception {
+        // drop all thumbnails; they're rebuilt on demand
+        m_pack.setLength(0);
+        m_packEnd = 0;
+        m_generation++;
+        for( int i = 0; i < HEADER_BYTES + SLOT_CNT*SLOT_BYTES; i += 8 ) {
+            m_index.putLong(i, 0);
+        }
+        m_index.putInt(0, INDEX_MAGIC);
+        m_index.putInt(4, SLOT_CNT);
+        m_resets++;
+    }
+
+    private int findSlot(long hash) {
+        // returns the slot with the given hash or the first unused slot; the table is never full, see MAX_ENTRIES
+        int slot = (int)((hash>>>1) % SLOT_CNT);
+        while( true ) {
+            long slotHash = m_index.getLong(HEADER_BYTES + slot*SLOT_BYTES);
+            if( slotHash == hash || slotHash == 0 ) {
+                return slot;
+            }
+            slot = (slot+1) % SLOT_CNT;
+        }
+    }
+
+    private RandomAccessFile getThreadFile(int openCnt) throws Exception {
+        ThreadFile threadFile = m_threadFile.get();
+        if( threadFile.file == null || threadFile.openCnt != openCnt ) {
+            if( threadFile.file != null ) {
+                try {
+                    threadFile.file.close();
+                }
+                catch( Exception e ) {
+                }
+                threadFile.file = null;
+            }
+            threadFile.file    = new RandomAccessFile(m_packFile, "rw");
+            threadFile.openCnt = openCnt;
+        }
+        return threadFile.file;
+    }
+
+    public byte[] get(String key) {
+        long hash = hash(key);
+        long offset;
+        int  length, generation, openCnt;
+        synchronized( this ) {
+            if( !open() ) {
+                return null;
+            }
+            int pos = HEADER_BYTES + findSlot(hash)*SLOT_BYTES;
+            offset = m_index.getInt(pos+8) & 0xFFFFFFFFL;
+            length = m_index.getInt(pos+12);
+            if( m_index.getLong(pos) != hash || length <= 0 || offset+length > m_packEnd ) {
+                m_misses++;
+                return null;
+            }
+            generation = m_generation;
+            openCnt    = m_openCnt;
+        }
+
+        byte[] data = null;
+        try {
+            byte[] record = new byte[length];
+            RandomAccessFile file = getThreadFile(openCnt);
+            file.seek(offset);
+            file.readFully(record);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            if( in.readInt() == RECORD_MAGIC && in.readUTF().equals(key) ) {
+                int dataLength = in.readInt();
+                if( dataLength > 0 && dataLength <= length ) {
+                    data = new byte[dataLength];
+                    in.readFully(data);
+                }
+            }
+        }
+        catch( Exception e ) {
+            FileLog.e("messenger", "Cannot read thumbnail: " + e);
+            data = null;
+        }
+
+        synchronized( this ) {
+            if( data != null && generation == m_generation ) {
+                m_hits++;
+                return data;
+            }
+            m_misses++;
+            return null;
+        }
+    }
+
+    public void put(String key, byte[] data) {
+        byte[] record;
+        long   offset;
+        int    generation, openCnt;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + key.length() + 16);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(RECORD_MAGIC);
+            out.writeUTF(key);
+            out.writeInt(data.length);
+            out.write(data);
+            record = bytes.toByteArray();
+        }
+        catch( Exception e ) {
+            FileLog.e("messenger", "Cannot write thumbnail: " + e);
+            return;
+        }
+
+        synchronized( this ) {
+            if( !open() ) {
+                return;
+            }
+            try {
+                if( m_index.getInt(8) >= MAX_ENTRIES || m_packEnd + record.length > MAX_PACK_BYTES ) {
+                    reset();
+                }
+            }
+            catch( Exception e ) {
+                FileLog.e("messenger", "Cannot write thumbnail: " + e);
+                return;
+            }
+            offset     = m_packEnd; // reserve the space, other records may be written meanwhile
+            m_packEnd += record.length;
+            generation = m_generation;
+            openCnt    = m_openCnt;
+        }
+
+        try {
+            RandomAccessFile file = getThreadFile(openCnt);
+            file.seek(offset);
+            file.write(record);
+        }
+        catch( Exception e ) {
+            FileLog.e("messenger", "Cannot write thumbnail: " + e);
+            return;
+        }
+
+        synchronized( this ) {
+            if( generation != m_generation ) {
+                return; // the pack was reset while writing, the space is no longer ours
+            }
+            // the index is written after the record, so an interrupted write is never referenced
+            long hash = hash(key);
+            int pos = HEADER_BYTES + findSlot(hash)*SLOT_BYTES;
+            if( m_index.getLong(pos) == 0 ) {
+                m_index.putInt(8, m_index.getInt(8)+1);
+            }
+            m_index.putInt(pos+8, (int)offset);
+            m_index.putInt(pos+12, record.length);
+            m_index.putLong(pos, hash);
+            m_stored++;
+        }
+    }
+
+    public synchronized String getStatsStr() {
+        return "entries=" + (m_index!=null? m_index.getInt(8) : 0) + ", bytes=" + m_packFile.length() + ", hits=" + m_hits + ", misses=" + m_misses + ", stored=" + m_stored + ", resets=" + m_resets;
+    }
+}
@@ -42,6 +42,13 @@ public class UserConfig {
     public static boolean isWaitingForPasscodeEnter;
     public static boolean useFingerprint = true;
 
+    public static int getNextLocalId() {
+        // photos may be encoded on several threads at the same time
+        synchronized (sync) {
+            return lastLocalId--;
+        }
+    }
+
     public static void saveConfig() {
         synchronized (sync) {
             try {
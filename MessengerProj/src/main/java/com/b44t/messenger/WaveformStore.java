@@ -0,0 +1,328 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    WaveformStore.java
+ * Purpose: Load and generate the waveforms of voice messages; the waveforms
+ *          are kept in a single pack file and in memory, the UI thread only
+ *          accesses the memory.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.util.LruCache;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class WaveformStore {
+
+    private final static int MEM_CACHE_ENTRIES = 256; // a waveform has about 64 bytes
+    private final static int STEP_SAMPLES      = 48000; // one second of audio is decoded between checking for cancellation
+    private final static int PARTIAL_MS        = 250;   // minimal time between showing partial waveforms
+
+    private static class Request {
+        boolean            m_generate;
+        ArrayList<Integer> m_msgIds = new ArrayList<>();
+        volatile boolean   m_cancelled;
+    }
+
+    private final static LruCache<String, byte[]> s_memCache = new LruCache<>(MEM_CACHE_ENTRIES); // blob path -> waveform
+    private static volatile ThumbPack s_pack; // only used by the worker; keyed by blob path and size
+
+    private final static Object s_lock = new Object();
+    private static HashMap<String, Request> s_pending = new HashMap<>(); // blob path -> request
+    private static HashMap<String, Request> s_inFlight = new HashMap<>(); // requests of the batch handled by the worker just now, removed when done
+    private static boolean s_batchScheduled; // set until the worker has handled all pending requests, so there is never more than one worker
+
+    private final static HashMap<String, byte[]> s_partial = new HashMap<>(); // blob path -> waveform while generating, UI thread only
+
+    private static int s_memHits, s_memMisses, s_packHits, s_migrated, s_generated, s_cancelled, s_batches;
+
+    public static byte[] get(String path) {
+        // returns the waveform if it is in memory, null otherwise; never accesses files
+        byte[] waveform = s_memCache.get(path);
+        synchronized (s_lock) {
+            if( waveform != null ) { s_memHits++; } else { s_memMisses++; }
+        }
+        return waveform;
+    }
+
+    public static byte[] getPartial(String path) {
+        // returns the waveform computed so far while the waveform is generated, null otherwise
+        return s_partial.get(path);
+    }
+
+    public static void request(String path, int msgId, boolean generate) {
+        // load the waveform in the background and generate it if it does not exist and generate is set;
+        // when done, waveformCalculated is posted for msgId. all requests made while the worker is busy
+        // are handled by the next batch, eg. the voice messages visible after opening a chat.
+        synchronized (s_lock) {
+            Request req = s_inFlight.get(path);
+            if( req != null && !req.m_cancelled && (req.m_generate || !generate) ) {
+                if( msgId != 0 && !req.m_msgIds.contains(msgId) ) {
+                    req.m_msgIds.add(msgId);
+                }
+                return;
+            }
+            req = s_pending.get(path);
+            if( req == null ) {
+                req = new Request();
+                s_pending.put(path, req);
+            }
+            req.m_generate |= generate;
+            if( msgId != 0 && !req.m_msgIds.contains(msgId) ) {
+                req.m_msgIds.add(msgId);
+            }
+            if( s_batchScheduled ) {
+                return;
+            }
+            s_batchScheduled = true;
+        }
+        MediaExecutor.post("waveforms", MediaExecutor.PRIORITY_NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                while( runBatch() ) {
+                    // requests made while a batch was handled are handled by the next one
+                }
+            }
+        });
+    }
+
+    public static void cancel(String path, int msgId) {
+        // the message is no longer shown; if no other message waits for the waveform, it is not loaded resp. its generation is stopped
+        synchronized (s_lock) {
+            cancel(s_pending, path, msgId);
+            cancel(s_inFlight, path, msgId);
+        }
+    }
+
+    private static void cancel(HashMap<String, Request> requests, String path, int msgId) {
+        Request req = requests.get(path);
+        if( req != null ) {
+            req.m_msgIds.remove(Integer.valueOf(msgId));
+            if( req.m_msgIds.isEmpty() ) {
+                req.m_cancelled = true;
+                requests.remove(path);
+            }
+        }
+    }
+
+    public static void clearPending() {
+        synchronized (s_lock) {
+            s_pending.clear();
+            for( Request req : s_inFlight.values() ) {
+                req.m_cancelled = true;
+            }
+            s_inFlight.clear();
+        }
+    }
+
+    private static void postPartial(final String path, final byte[] waveform, final ArrayList<Integer> msgIds) {
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                if( waveform != null ) {
+                    s_partial.put(path, waveform);
+                }
+                else {
+                    s_partial.remove(path);
+                }
+                for( Integer msgId : msgIds ) {
+                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.waveformCalculated, msgId);
+                }
+            }
+        });
+    }
+
+    private static byte[] generate(String path, Request req) {
+        // decode the file step by step; the waveform computed so far is shown from time to time
+        long handle = MediaController.openWaveform(path);
+        if( handle == 0 ) {
+            return null;
+        }
+        byte[] waveform = null;
+        try {
+            long partialMs = System.currentTimeMillis() + PARTIAL_MS;
+            while( MediaController.stepWaveform(handle, STEP_SAMPLES) != 0 ) {
+                if( req.m_cancelled ) {
+                    break;
+                }
+                if( System.currentTimeMillis() > partialMs ) {
+                    ArrayList<Integer> msgIds;
+                    synchronized (s_lock) {
+                        msgIds = new ArrayList<>(req.m_msgIds);
+                    }
+                    postPartial(path, MediaController.getWaveformResult(handle), msgIds);
+                    partialMs = System.currentTimeMillis() + PARTIAL_MS;
+                }
+            }
+            if( !req.m_cancelled ) {
+                waveform = MediaController.getWaveformResult(handle);
+            }
+        }
+        finally {
+            MediaController.closeWaveform(handle);
+        }
+        return waveform;
+    }
+
+    private static byte[] readLegacyFile(String path) {
+        // older versions stored the waveforms as separate files beside the blobs; they're moved to the pack on first use
+        File legacyFile = new File(path + ".waveform");
+        if( !legacyFile.exists() || legacyFile.length() <= 0 ) {
+            return null;
+        }
+        byte[] waveform = new byte[(int)legacyFile.length()];
+        try {
+            DataInputStream dis = new DataInputStream(new FileInputStream(legacyFile));
+            dis.readFully(waveform);
+            dis.close();
+        }
+        catch( Exception e ) {
+            return null;
+        }
+        legacyFile.delete();
+        return waveform;
+    }
+
+    private static void deliver(final HashMap<String, byte[]> results, final ArrayList<Integer> msgIds) {
+        if( results.isEmpty() ) {
+            return;
+        }
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                for( Map.Entry<String, byte[]> e : results.entrySet() ) {
+                    s_memCache.put(e.getKey(), e.getValue());
+                    s_partial.remove(e.getKey());
+                }
+                for( Integer msgId : msgIds ) {
+                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.waveformCalculated, msgId);
+                }
+            }
+        });
+    }
+
+    private static boolean runBatch() {
+        // returns false if there was nothing to do
+        HashMap<String, Request> batch;
+        synchronized (s_lock) {
+            if( s_pending.isEmpty() ) {
+                s_batchScheduled = false;
+                return false;
+            }
+            batch = s_pending;
+            s_pending = new HashMap<>();
+            s_inFlight = new HashMap<>(batch); // a request of the batch can still be cancelled or merged until it is handled
+            s_batches++;
+        }
+
+        if( s_pack == null ) {
+            s_pack = new ThumbPack(new File(ApplicationLoader.applicationContext.getFilesDir(), "waveforms"), "waveforms");
+        }
+
+        HashMap<String, byte[]> results = new HashMap<>();
+        ArrayList<Integer> msgIds = new ArrayList<>();
+        int packHits = 0, migrated = 0, generated = 0;
+        int cancelled = 0;
+        for( Map.Entry<String, Request> e : batch.entrySet() ) {
+            String path = e.getKey();
+            Request req = e.getValue();
+            if( req.m_cancelled ) {
+                cancelled++; // the message was scrolled away while the batch was handled
+                continue;
+            }
+            File file = new File(path);
+            String key = path + "|" + file.length();
+            boolean wasGenerated = false;
+
+            byte[] waveform = s_pack.get(key);
+            if( waveform != null ) {
+                packHits++;
+            }
+            else {
+                waveform = readLegacyFile(path);
+                if( waveform != null ) {
+                    migrated++;
+                }
+                else if( req.m_generate && file.exists() ) {
+                    waveform = generate(path, req);
+                    if( waveform != null ) {
+                        generated++; // a partial waveform is replaced when the result is delivered
+                        wasGenerated = true;
+                    }
+                    else {
+                        postPartial(path, null, new ArrayList<Integer>());
+                        if( req.m_cancelled ) {
+                            cancelled++;
+                        }
+                    }
+                }
+                if( waveform != null && waveform.length > 0 ) {
+                    s_pack.put(key, waveform);
+                }
+            }
+
+            synchronized (s_lock) {
+                if( s_inFlight.get(path) == req ) {
+                    s_inFlight.remove(path); // later requests for the path go to the next batch
+                }
+            }
+
+            if( waveform != null && waveform.length > 0 ) {
+                results.put(path, waveform);
+                synchronized (s_lock) {
+                    msgIds.addAll(req.m_msgIds);
+                }
+                if( wasGenerated ) {
+                    deliver(results, msgIds); // do not wait for the other waveforms of the batch
+                    results = new HashMap<>();
+                    msgIds = new ArrayList<>();
+                }
+            }
+        }
+
+        synchronized (s_lock) {
+            s_packHits  += packHits;
+            s_migrated  += migrated;
+            s_generated += generated;
+            s_cancelled += cancelled;
+        }
+
+        deliver(results, msgIds);
+        return true;
+    }
+
+    public static String getStatsStr() {
+        synchronized (s_lock) {
+            return "memEntries=" + s_memCache.size() + ", memHits=" + s_memHits + ", memMisses=" + s_memMisses + ", batches=" + s_batches
+                    + ", packHits=" + s_packHits + ", migrated=" + s_migrated + ", generated=" + s_generated + ", cancelled=" + s_cancelled
+                    + ", pack: " + (s_pack!=null? s_pack.getStatsStr() : "not opened");
+        }
+    }
+}
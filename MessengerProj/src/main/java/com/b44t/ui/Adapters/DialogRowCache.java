@@ -0,0 +1,208 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    DialogRowCache.java
+ * Purpose: Keep the DialogRowSnapshots of the chatlist; the rows ahead of the
+ *          scrolling direction are loaded and laid out in the background, so
+ *          that binding a DialogCell is usually a simple lookup.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.ui.Adapters;
+
+import com.b44t.messenger.AndroidUtilities;
+import com.b44t.messenger.MrChat;
+import com.b44t.messenger.MrChatlist;
+import com.b44t.messenger.MrPoortext;
+import com.b44t.messenger.Utilities;
+import com.b44t.ui.Cells.DialogRowSnapshot;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+public class DialogRowCache {
+
+    private final static int MAX_ROWS     = 256;
+    private final static int PREFETCH_CNT = 16; // number of rows prepared in scroll direction
+
+    // all members are accessed from the UI thread only, the background thread gets copies
+    private final LinkedHashMap<Integer, DialogRowSnapshot> m_rows = new LinkedHashMap<Integer, DialogRowSnapshot>(0, 0.75f, true /*access order*/) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, DialogRowSnapshot> eldest) {
+            return size() > MAX_ROWS;
+        }
+    };
+    private MrChatlist m_chatlist = new MrChatlist(0);
+    private int        m_width;
+    private int        m_generation;     // incremented on each invalidation, outdated background results are dropped
+    private int        m_lastIndex = -1;
+    private boolean    m_prefetchRunning;
+    private int        m_wantedFirst = -1, m_wantedCnt;
+
+    private static int s_hits, s_misses, s_prefetched, s_outdated;
+
+    public void setChatlist(MrChatlist chatlist) {
+        // the rows are kept; get() checks the last message of each row against the new chatlist
+        m_chatlist = chatlist;
+        m_lastIndex = -1;
+    }
+
+    public void setWidth(int width) {
+        if( width > 0 ) {
+            m_width = width;
+        }
+    }
+
+    public void invalidate(int chatId) {
+        // if chatId is 0, all rows are removed
+        m_generation++;
+        if( chatId == 0 ) {
+            m_rows.clear();
+        }
+        else {
+            m_rows.remove(chatId);
+        }
+    }
+
+    public DialogRowSnapshot get(int index) {
+        int[] ids = m_chatlist.getIds();
+        int chatId = ids[index*2], lastMsgId = ids[index*2+1];
+
+        DialogRowSnapshot row = m_rows.get(chatId);
+        if( row != null && row.getLastMsgId() == lastMsgId ) {
+            synchronized (DialogRowCache.class) { s_hits++; }
+        }
+        else {
+            // not yet prepared, load the row synchronously; the layout is done by the cell
+            synchronized (DialogRowCache.class) { s_misses++; }
+            MrChat mrChat = m_chatlist.getChatByIndex(index);
+            MrPoortext mrSummary = m_chatlist.getSummaryByIndex(index, mrChat);
+            row = DialogRowSnapshot.load(mrChat, mrSummary, lastMsgId, true);
+            mrChat.close();
+            mrSummary.close();
+            m_rows.put(chatId, row);
+        }
+
+        if( index > m_lastIndex ) {
+            prefetch(index+1, PREFETCH_CNT);
+        }
+        else if( index < m_lastIndex ) {
+            prefetch(index-PREFETCH_CNT, PREFETCH_CNT);
+        }
+        m_lastIndex = index;
+
+        return row;
+    }
+
+
+    /* prepare rows in the background
+     **********************************************************************************************/
+
+    private void prefetch(int first, int cnt) {
+        if( first < 0 ) {
+            cnt  += first;
+            first = 0;
+        }
+        int chatCnt = m_chatlist.getIds().length/2;
+        if( first+cnt > chatCnt ) {
+            cnt = chatCnt-first;
+        }
+        if( cnt <= 0 || m_width <= 0 ) {
+            return;
+        }
+
+        if( m_prefetchRunning ) {
+            m_wantedFirst = first; // handled when the running prefetch is done
+            m_wantedCnt   = cnt;
+            return;
+        }
+
+        int[] ids = m_chatlist.getIds();
+        final ArrayList<Integer> indexes = new ArrayList<>(cnt);
+        for( int i = first; i < first+cnt; i++ ) {
+            DialogRowSnapshot row = m_rows.get(ids[i*2]);
+            if( row == null || row.getLastMsgId() != ids[i*2+1] ) {
+                indexes.add(i);
+            }
+        }
+        if( indexes.isEmpty() ) {
+            return;
+        }
+
+        final MrChatlist chatlist   = m_chatlist;
+        final int        width      = m_width;
+        final int        generation = m_generation;
+        m_prefetchRunning = true;
+        Utilities.layoutQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<DialogRowSnapshot> rows = new ArrayList<>(indexes.size());
+                int[] ids = chatlist.getIds();
+                for( int index : indexes ) {
+                    MrChat mrChat = chatlist.getChatByIndex(index);
+                    MrPoortext mrSummary = chatlist.getSummaryByIndex(index, mrChat);
+                    DialogRowSnapshot row = DialogRowSnapshot.load(mrChat, mrSummary, ids[index*2+1], true);
+                    mrChat.close();
+                    mrSummary.close();
+                    row.buildLayout(width);
+                    rows.add(row);
+                }
+
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        prefetchDone(rows, generation);
+                    }
+                });
+            }
+        });
+    }
+
+    private void prefetchDone(ArrayList<DialogRowSnapshot> rows, int generation) {
+        m_prefetchRunning = false;
+
+        if( generation == m_generation ) {
+            for( DialogRowSnapshot row : rows ) {
+                DialogRowSnapshot existing = m_rows.get(row.getChatId());
+                if( existing == null || existing.getLastMsgId() != row.getLastMsgId() ) {
+                    m_rows.put(row.getChatId(), row);
+                }
+            }
+            synchronized (DialogRowCache.class) { s_prefetched += rows.size(); }
+        }
+        else {
+            synchronized (DialogRowCache.class) { s_outdated += rows.size(); }
+        }
+
+        if( m_wantedFirst != -1 ) {
+            int first = m_wantedFirst;
+            m_wantedFirst = -1;
+            prefetch(first, m_wantedCnt);
+        }
+    }
+
+    public static synchronized String getStatsStr() {
+        return "hits=" + s_hits + ", misses=" + s_misses + ", prefetched=" + s_prefetched + ", outdated=" + s_outdated;
+    }
+}
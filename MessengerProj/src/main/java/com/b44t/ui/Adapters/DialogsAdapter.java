@@ -29,16 +29,20 @@ import android.view.ViewGroup;
 
 import com.b44t.messenger.AndroidUtilities;
 import com.b44t.messenger.MrChat;
-import com.b44t.messenger.MrPoortext;
+import com.b44t.messenger.MrChatlist;
+import com.b44t.messenger.MrChatlistDiff;
 import com.b44t.messenger.support.widget.RecyclerView;
 import com.b44t.messenger.MrMailbox;
 import com.b44t.ui.Cells.DialogCell;
+import com.b44t.ui.Cells.DialogRowSnapshot;
 
 
 public class DialogsAdapter extends RecyclerView.Adapter {
 
     private Context mContext;
     private long openedDialogId;
+    private MrChatlist m_chatlist; // the adapter keeps its own chatlist as notifications may be delayed while MrMailbox.m_currChatlist is already updated
+    private DialogRowCache m_rowCache = new DialogRowCache();
 
     private class Holder extends RecyclerView.ViewHolder {
         public Holder(View itemView) {
@@ -50,6 +54,43 @@ public class DialogsAdapter extends RecyclerView.Adapter {
         mContext = context;
 
         MrMailbox.reloadMainChatlist();
+        m_chatlist = MrMailbox.m_currChatlist;
+        m_rowCache.setChatlist(m_chatlist);
+    }
+
+    public void updateChatlist(int chatId) {
+        // take over MrMailbox.m_currChatlist; only the rows that differ from the previous chatlist are updated.
+        // if chatId is given, this chat is redrawn in any case, if chatId is 0, all chats are redrawn.
+        MrChatlist newChatlist = MrMailbox.m_currChatlist;
+        if( newChatlist != m_chatlist ) {
+            int[] oldIds = m_chatlist.getIds();
+            m_chatlist = newChatlist;
+            m_rowCache.setChatlist(m_chatlist);
+            MrChatlistDiff.apply(oldIds, m_chatlist.getIds(), this);
+        }
+
+        if( chatId > 0 ) {
+            m_rowCache.invalidate(chatId);
+            int index = m_chatlist.getIndexByChatId(chatId);
+            if( index >= 0 ) {
+                notifyItemChanged(index);
+            }
+        }
+        else {
+            m_rowCache.invalidate(0);
+            notifyItemRangeChanged(0, getItemCount());
+        }
+    }
+
+    public void reloadChatlist() {
+        m_chatlist = MrMailbox.m_currChatlist;
+        m_rowCache.setChatlist(m_chatlist);
+        m_rowCache.invalidate(0);
+        notifyDataSetChanged();
+    }
+
+    public MrChatlist getChatlist() {
+        return m_chatlist;
     }
 
     public void setOpenedDialogId(long id) {
@@ -58,18 +99,11 @@ public class DialogsAdapter extends RecyclerView.Adapter {
 
     @Override
     public int getItemCount() {
-        return MrMailbox.m_currChatlist.getCnt();
+        return m_chatlist.getIds().length/2;
     }
 
     public MrChat getItem(int i) {
-        return MrMailbox.m_currChatlist.getChatByIndex(i);
-    }
-
-    @Override
-    public void onViewAttachedToWindow(RecyclerView.ViewHolder holder) {
-        if (holder.itemView instanceof DialogCell) {
-            ((DialogCell) holder.itemView).checkCurrentDialogIndex();
-        }
+        return m_chatlist.getChatByIndex(i);
     }
 
     @Override
@@ -89,13 +123,13 @@ public class DialogsAdapter extends RecyclerView.Adapter {
         if (viewHolder.getItemViewType() == 0) {
             DialogCell cell = (DialogCell) viewHolder.itemView;
             cell.useSeparator = (i != getItemCount() - 1);
-            MrChat mrChat = getItem(i);
+            m_rowCache.setWidth(cell.getMeasuredWidth());
+            DialogRowSnapshot row = m_rowCache.get(i); // usually prepared in the background, see DialogRowCache
             if (AndroidUtilities.isTablet()) {
-                cell.setDialogSelected(mrChat.getId() == openedDialogId);
+                cell.setDialogSelected(row.getChatId() == openedDialogId);
             }
 
-            MrPoortext mrSummary = MrMailbox.m_currChatlist.getSummaryByIndex(i, mrChat);
-            cell.setDialog(mrChat, mrSummary, i, true);
+            cell.setDialogRow(row, i);
         }
     }
 
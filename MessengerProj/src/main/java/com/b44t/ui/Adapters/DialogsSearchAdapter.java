@@ -170,6 +170,7 @@ public class DialogsSearchAdapter extends RecyclerView.Adapter {
 
                         cell.setDialog(mrChat, mrSummary, -1,
                                 mrMsg.getState()==MrMsg.MR_IN_UNREAD /*show unread count only if the message itself is unread*/ );
+                        mrMsg.close();
                     }
                 }
                 break;
@@ -24,6 +24,7 @@ package com.b44t.ui;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
@@ -36,6 +37,8 @@ import android.widget.Toast;
 
 import com.b44t.messenger.AndroidUtilities;
 import com.b44t.messenger.ApplicationLoader;
+import com.b44t.messenger.BlobIndex;
+import com.b44t.messenger.MediaExecutor;
 import com.b44t.messenger.R;
 import com.b44t.ui.ActionBar.ActionBar;
 import com.b44t.ui.ActionBar.BaseFragment;
@@ -50,6 +53,8 @@ public class CacheControlActivity extends BaseFragment {
 
     private int rowKeepMediaSetting;
     private int rowKeepMediaInfo;
+    private int rowFreeUpSpace;
+    private int rowFreeUpSpaceInfo;
     private int rowCount;
 
     private final int ROWTYPE_TEXT_SETTING = 0; // no gaps here
@@ -63,6 +68,8 @@ public class CacheControlActivity extends BaseFragment {
         rowCount = 0;
         rowKeepMediaSetting = rowCount++;
         rowKeepMediaInfo = rowCount++;
+        rowFreeUpSpace = rowCount++;
+        rowFreeUpSpaceInfo = rowCount++;
 
         return true;
     }
@@ -117,12 +124,41 @@ public class CacheControlActivity extends BaseFragment {
                     });
                     showDialog(builder.create());
                 }
+                else if (i == rowFreeUpSpace) {
+                    freeUpSpace(context);
+                }
             }
         });
 
         return fragmentView;
     }
 
+    private void freeUpSpace(final Context context) {
+        final ProgressDialog progressDialog = new ProgressDialog(getParentActivity());
+        progressDialog.setMessage(context.getString(R.string.OneMoment));
+        progressDialog.setCanceledOnTouchOutside(false);
+        progressDialog.setCancelable(false);
+        progressDialog.show();
+
+        MediaExecutor.post("freeUpSpace", MediaExecutor.PRIORITY_HIGH, new Runnable() {
+            @Override
+            public void run() {
+                final long freed = BlobIndex.cleanup();
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            progressDialog.dismiss();
+                        } catch (Exception e) {
+                            // the activity may be closed meanwhile
+                        }
+                        Toast.makeText(context, context.getString(R.string.FreeUpSpaceDone, AndroidUtilities.formatFileSize(freed)), Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+        });
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -145,7 +181,7 @@ public class CacheControlActivity extends BaseFragment {
 
         @Override
         public boolean isEnabled(int i) {
-            return i == rowKeepMediaSetting;
+            return i == rowKeepMediaSetting || i == rowFreeUpSpace;
         }
 
         @Override
@@ -189,6 +225,8 @@ public class CacheControlActivity extends BaseFragment {
                         value = mContext.getString(R.string.KeepMediaForever);
                     }
                     textCell.setTextAndValue(mContext.getString(R.string.KeepMedia), value, false);
+                } else if (i == rowFreeUpSpace) {
+                    textCell.setText(mContext.getString(R.string.FreeUpSpace), false);
                 }
             } else if (type == ROWTYPE_TEXT_INFO) {
                 if (view == null) {
@@ -196,6 +234,9 @@ public class CacheControlActivity extends BaseFragment {
                 }
                 if (i == rowKeepMediaInfo) {
                     ((TextInfoCell) view).setText(AndroidUtilities.replaceTags(mContext.getString(R.string.KeepMediaInfo)));
+                    view.setBackgroundResource(R.drawable.greydivider);
+                } else if (i == rowFreeUpSpaceInfo) {
+                    ((TextInfoCell) view).setText(mContext.getString(R.string.FreeUpSpaceInfo));
                     view.setBackgroundResource(R.drawable.greydivider_bottom);
                 }
             }
@@ -204,7 +245,7 @@ public class CacheControlActivity extends BaseFragment {
 
         @Override
         public int getItemViewType(int i) {
-            if (i == rowKeepMediaInfo) {
+            if (i == rowKeepMediaInfo || i == rowFreeUpSpaceInfo) {
                 return ROWTYPE_TEXT_INFO;
             }
             return ROWTYPE_TEXT_SETTING;
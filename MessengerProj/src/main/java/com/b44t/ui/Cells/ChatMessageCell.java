@@ -55,9 +55,9 @@ import com.b44t.messenger.MessageObject;
 import com.b44t.messenger.MrChat;
 import com.b44t.messenger.MrContact;
 import com.b44t.messenger.MrMailbox;
-import com.b44t.messenger.MrPoortext;
 import com.b44t.messenger.R;
 import com.b44t.messenger.TLRPC;
+import com.b44t.messenger.WaveformStore;
 import com.b44t.ui.Components.AvatarDrawable;
 import com.b44t.ui.Components.LinkPath;
 import com.b44t.ui.Components.SeekBar;
@@ -159,6 +159,8 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
     private int iconX, iconY;
 
     private boolean useSeekBarWaveform;
+    private String waveformRequestPath; // set while the waveform is loaded or generated in the background
+    private int waveformRequestMsgId;
     private SeekBar seekBar;
     private SeekBarWaveform seekBarWaveform;
     private int seekBarX;
@@ -925,6 +927,7 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
         super.onDetachedFromWindow();
         avatarImage.onDetachedFromWindow();
         photoImage.onDetachedFromWindow();
+        cancelWaveformRequest();
     }
 
     @Override
@@ -938,6 +941,7 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
         } else {
             updateButtonState();
         }
+        updateWaveform(true); // a waveform request may have been cancelled on detaching
     }
 
     @Override
@@ -999,16 +1003,33 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
         for (int a = 0; a < documentAttach.attributes.size(); a++) {
             TLRPC.DocumentAttribute attribute = documentAttach.attributes.get(a);
             if (attribute instanceof TLRPC.TL_documentAttributeAudio) {
-                if ( attribute.waveform == null || attribute.waveform.length == 0 ) {
-                    MediaController.getInstance().loadOrGenerateWaveform(FileLoader.getPathToMessage(currentMessageObject.messageOwner).getAbsolutePath(), doGenerate, currentMessageObject); // results in a call to waveformCalculated() or sets up attribute.waveform directly
+                byte[] waveform = attribute.waveform;
+                if ( waveform == null || waveform.length == 0 ) {
+                    String path = FileLoader.getPathToMessage(currentMessageObject.messageOwner).getAbsolutePath();
+                    MediaController.getInstance().loadOrGenerateWaveform(path, doGenerate, currentMessageObject); // results in a call to waveformCalculated() or sets up attribute.waveform directly
+                    waveform = attribute.waveform;
+                    if ( waveform == null || waveform.length == 0 ) {
+                        waveformRequestPath = path;
+                        waveformRequestMsgId = currentMessageObject.getId();
+                        waveform = WaveformStore.getPartial(path); // shown while long voice messages are processed
+                    } else {
+                        waveformRequestPath = null;
+                    }
                 }
-                useSeekBarWaveform = attribute.waveform != null;
-                seekBarWaveform.setWaveform(attribute.waveform);
+                useSeekBarWaveform = waveform != null;
+                seekBarWaveform.setWaveform(waveform);
                 break;
             }
         }
     }
 
+    private void cancelWaveformRequest() {
+        if (waveformRequestPath != null) {
+            WaveformStore.cancel(waveformRequestPath, waveformRequestMsgId);
+            waveformRequestPath = null;
+        }
+    }
+
     public void waveformCalculated() {
         updateWaveform(false);
         invalidate();
@@ -1046,14 +1067,22 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
 
             maxWidth = maxWidth - dp(86);
 
-            MrPoortext pt = MrMailbox.getMsg(messageObject.getId()).getMediainfo();
-            CharSequence stringFinal = TextUtils.ellipsize(pt.getText2(), audioTitlePaint, maxWidth, TextUtils.TruncateAt.MIDDLE);
+            String title = "", performer = "";
+            for (int a = 0; a < documentAttach.attributes.size(); a++) {
+                TLRPC.DocumentAttribute attribute = documentAttach.attributes.get(a);
+                if (attribute instanceof TLRPC.TL_documentAttributeAudio) {
+                    title = attribute.title==null? "" : attribute.title; // title and performer are filled from the mediainfo by MrMsg.get_TLRPC_Message()
+                    performer = attribute.performer==null? "" : attribute.performer;
+                    break;
+                }
+            }
+            CharSequence stringFinal = TextUtils.ellipsize(title, audioTitlePaint, maxWidth, TextUtils.TruncateAt.MIDDLE);
             songLayout = new StaticLayout(stringFinal, audioTitlePaint, maxWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
             if (songLayout.getLineCount() > 0) {
                 songX = -(int) Math.ceil(songLayout.getLineLeft(0));
             }
 
-            stringFinal = TextUtils.ellipsize(pt.getText1(), audioPerformerPaint, maxWidth, TextUtils.TruncateAt.END);
+            stringFinal = TextUtils.ellipsize(performer, audioPerformerPaint, maxWidth, TextUtils.TruncateAt.END);
             performerLayout = new StaticLayout(stringFinal, audioPerformerPaint, maxWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
             if (performerLayout.getLineCount() > 0) {
                 performerX = -(int) Math.ceil(performerLayout.getLineLeft(0));
@@ -1084,7 +1113,7 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
             int minutes = duration / 60;
             int seconds = duration - minutes * 60;
             String str = String.format("%d:%02d, %s", minutes, seconds, formatFileSize(documentAttach.size));
-            if( MrMailbox.getMsg(messageObject.getId()).isIncreation()!=0 ) {
+            if( messageObject.messageOwner.mr_increation ) {
                 str = ApplicationLoader.applicationContext.getString(R.string.OneMoment);
             }
             infoWidth = (int) Math.ceil(infoPaint.measureText(str));
@@ -1212,6 +1241,9 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
         boolean messageChanged = currentMessageObject != messageObject || messageObject.forceUpdate;
         boolean dataChanged = currentMessageObject == messageObject && isUserDataChanged();
         if (messageChanged || dataChanged || isPhotoDataChanged(messageObject)) {
+            if (messageChanged) {
+                cancelWaveformRequest();
+            }
             currentMessageObject = messageObject;
             lastSendState = messageObject.messageOwner.send_state;
             lastViewsCount = messageObject.messageOwner.views;
@@ -2088,7 +2120,7 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
     }
 
     private void measureTime(MessageObject messageObject) {
-        currentTimeString = LocaleController.getInstance().formatterDay.format((long) (messageObject.messageOwner.date) * 1000);
+        currentTimeString = LocaleController.formatTime(messageObject.messageOwner.date);
         timeTextWidth = timeWidth = (int) Math.ceil(timePaint.measureText(currentTimeString));
     }
 
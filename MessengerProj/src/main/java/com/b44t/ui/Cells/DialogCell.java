@@ -29,25 +29,14 @@ import android.graphics.Paint;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
-import android.text.Layout;
-import android.text.SpannableStringBuilder;
-import android.text.Spanned;
-import android.text.StaticLayout;
 import android.text.TextPaint;
-import android.text.TextUtils;
-import android.text.style.ForegroundColorSpan;
 import android.view.MotionEvent;
 
 import com.b44t.messenger.AndroidUtilities;
 import com.b44t.messenger.ContactsController;
-import com.b44t.messenger.LocaleController;
-import com.b44t.messenger.MessageObject;
 import com.b44t.messenger.MrChat;
 import com.b44t.messenger.MrMailbox;
-import com.b44t.messenger.MrMsg;
 import com.b44t.messenger.MrPoortext;
-import com.b44t.messenger.TLRPC;
-import com.b44t.messenger.Emoji;
 import com.b44t.messenger.R;
 import com.b44t.messenger.ImageReceiver;
 import com.b44t.ui.ActionBar.Theme;
@@ -62,76 +51,62 @@ public class DialogCell extends BaseCell {
     private static TextPaint timePaint;
     private static TextPaint countPaint;
 
-    private static Drawable checkDrawable;
-    private static Drawable halfCheckDrawable;
-    private static Drawable clockDrawable;
-    private static Drawable errorDrawable;
-    private static Drawable countDrawable;
-    private static Drawable countDrawableGrey;
-    private static Drawable groupDrawable;
-    private static Drawable muteDrawable;
-    private static Drawable verifiedDrawable;
+    // DialogRowSnapshot.buildLayout() may run on the layout queue and the layouts keep a reference to their paint;
+    // paints must not be shared with the UI thread, so each thread lays out with its own copies.
+    static class LayoutPaints {
+        final TextPaint name    = new TextPaint(namePaint);
+        final TextPaint message = new TextPaint(messagePaint);
+        final TextPaint time    = new TextPaint(timePaint);
+        final TextPaint count   = new TextPaint(countPaint);
+    }
+    private static final ThreadLocal<LayoutPaints> layoutPaints = new ThreadLocal<>();
+
+    static LayoutPaints getLayoutPaints() {
+        // null until the paints are created together with the first DialogCell; countPaint is set last
+        if (countPaint == null) {
+            return null;
+        }
+        LayoutPaints paints = layoutPaints.get();
+        if (paints == null) {
+            paints = new LayoutPaints();
+            layoutPaints.set(paints);
+        }
+        return paints;
+    }
+
+    // the drawables are also used by DialogRowSnapshot.buildLayout()
+
+    static Drawable checkDrawable;
+    static Drawable halfCheckDrawable;
+    static Drawable clockDrawable;
+    static Drawable errorDrawable;
+    static Drawable countDrawable;
+    static Drawable countDrawableGrey;
+    static Drawable groupDrawable;
+    static Drawable muteDrawable;
+    static Drawable verifiedDrawable;
 
     private static Paint linePaint;
     private static Paint backPaint;
 
     private long currentDialogId;
-    private final boolean isDialogCell = true; // if it is no dialog cell, it is a search cell ...
-    private int unreadCount;
-    private int lastSendState;
-    private boolean dialogMuted;
-    private final MessageObject message = null;
     private int index;
 
     private ImageReceiver avatarImage;
     private AvatarDrawable avatarDrawable;
 
-    private final Object user = null;
-    private final Object chat = null;
-
     public boolean useSeparator = false;
 
-    private int nameLeft;
-    private StaticLayout nameLayout;
-    private boolean drawNameGroup;
-    private int nameMuteLeft;
-    private int nameLockLeft;
-    private int nameLockTop;
-
-    private int timeLeft;
     private int timeTop = AndroidUtilities.dp(17);
-    private StaticLayout timeLayout;
-
-    private boolean drawCheck1;
-    private boolean drawCheck2;
-    private boolean drawClock;
-    private int checkDrawLeft;
     private int checkDrawTop = AndroidUtilities.dp(18);
-    private int halfCheckDrawLeft;
-
     private int messageTop = AndroidUtilities.dp(40);
-    private int messageLeft;
-    private StaticLayout messageLayout;
-
-    private boolean drawError;
     private int errorTop = AndroidUtilities.dp(39);
-    private int errorLeft;
-
-    private boolean drawCount;
     private int countTop = AndroidUtilities.dp(39);
-    private int countLeft;
-    private int countWidth;
-    private StaticLayout countLayout;
-
-    private boolean drawVerified;
-
     private int avatarTop = AndroidUtilities.dp(10);
 
     private boolean isSelected;
 
-    private MrChat m_mrChat = new MrChat(0);
-    private MrPoortext m_summary = new MrPoortext(0);
-    private boolean m_showUnreadCount;
+    private DialogRowSnapshot m_row;
 
     public DialogCell(Context context) {
         super(context);
@@ -183,13 +158,19 @@ public class DialogCell extends BaseCell {
         avatarDrawable = new AvatarDrawable();
     }
 
-    public void setDialog(MrChat mrChat, MrPoortext mrSummary, int i, boolean showUnreadCount) { // called for the chats overview
+    public void setDialog(MrChat mrChat, MrPoortext mrSummary, int i, boolean showUnreadCount) { // called for the search results
 
-        m_mrChat  = mrChat;
-        m_summary = mrSummary;
-        m_showUnreadCount = showUnreadCount;
+        // the cell owns the objects given; as everything needed is copied to the snapshot, we can release them at once
+        DialogRowSnapshot row = DialogRowSnapshot.load(mrChat, mrSummary, 0, showUnreadCount);
+        mrChat.close();
+        mrSummary.close();
 
-        currentDialogId = mrChat.getId();
+        setDialogRow(row, i);
+    }
+
+    public void setDialogRow(DialogRowSnapshot row, int i) { // called for the chats overview, the snapshot may be shared with a cache
+        m_row = row;
+        currentDialogId = row.m_chatId;
         index = i;
 
         update(0);
@@ -222,7 +203,7 @@ public class DialogCell extends BaseCell {
             super.onLayout(changed, left, top, right, bottom);
             return;
         }
-        if (changed) {
+        if (changed || !m_row.hasLayout(getMeasuredWidth())) {
             buildLayout();
         }
     }
@@ -238,286 +219,11 @@ public class DialogCell extends BaseCell {
     }
 
     public void buildLayout() {
-        String nameString = "";
-        String timeString = "";
-        String countString = null;
-        CharSequence messageString = "";
-        //CharSequence printingString = null;
-        /* EDIT BY MR -- we currently do not support stuff as "ist just typing", "uploads an images" etc.
-        if (isDialogCell) {
-            printingString = MessagesController.getInstance().printingStrings.get(currentDialogId);
-        }
-        */
-        TextPaint currentNamePaint = namePaint;
-        TextPaint currentMessagePaint = messagePaint;
-        boolean checkMessage = true;
-
-        drawNameGroup = false;
-        //drawNameBroadcast = false;
-        //drawNameLock = false;
-        //drawNameBot = false;
-        drawVerified = false;
-
-        {
-            if (m_mrChat.getType()==MrChat.MR_CHAT_GROUP) { // EDIT BY MR
-                //if (chat.id < 0 || ChatObject.isChannel(chat) && !chat.megagroup) {
-                //    drawNameBroadcast = true;
-                //    nameLockTop = AndroidUtilities.dp(16.5f);
-                //} else {
-                    drawNameGroup = true;
-                    nameLockTop = AndroidUtilities.dp(17.5f);
-                //}
-                //drawVerified = chat.verified; -- /EDIT BY MR
-
-                if (!LocaleController.isRTL) {
-                    nameLockLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline);
-                    nameLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline + 4) + (groupDrawable.getIntrinsicWidth());
-                } else {
-                    nameLockLeft = getMeasuredWidth() - AndroidUtilities.dp(AndroidUtilities.leftBaseline) - (groupDrawable.getIntrinsicWidth());
-                    nameLeft = AndroidUtilities.dp(14);
-                }
-            } else {
-                if (!LocaleController.isRTL) {
-                    nameLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline);
-                } else {
-                    nameLeft = AndroidUtilities.dp(14);
-                }
-            }
-        }
-
-        {
-                checkMessage = false;
-                String mess = m_summary.getText2();
-                if (mess.length() > 150) {
-                    mess = mess.substring(0, 150);
-                }
-                String title = m_summary.getText1();
-                if( !title.isEmpty() )
-                {
-                    int title_meaning = m_summary.getText1Meaning();
-                    int title_color = Theme.DIALOGS_NAME_TEXT_COLOR;
-                    switch( title_meaning ) {
-                        case MrPoortext.MR_TEXT1_SELF:  title_color = Theme.DIALOGS_SELF_TEXT_COLOR; break;
-                        case MrPoortext.MR_TEXT1_DRAFT: title_color = Theme.DIALOGS_DRAFT_TEXT_COLOR; break;
-                    }
-                    SpannableStringBuilder stringBuilder = SpannableStringBuilder.valueOf(String.format("%s: %s", title, mess));
-                    stringBuilder.setSpan(new ForegroundColorSpan(title_color), 0, title.length() + 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                    messageString = Emoji.replaceEmoji(stringBuilder, messagePaint.getFontMetricsInt(), AndroidUtilities.dp(20), false);
-                }
-                else
-                {
-                    messageString = mess;
-                }
-
-                long timestmp =m_summary.getTimestamp();
-                if( timestmp!=0 ) {
-                    timeString = LocaleController.stringForMessageListDate(timestmp);
-                }
-                else {
-                    timeString = "";
-                }
-
-                drawCheck1 = false;
-                drawCheck2 = false;
-                drawClock = false;
-                drawCount = false;
-                drawError = false;
-                switch( m_summary.getState() ) {
-                    case MrMsg.MR_OUT_ERROR: drawError = true; break;
-                    case MrMsg.MR_OUT_PENDING: drawClock = true; break;
-                    case MrMsg.MR_OUT_DELIVERED: drawCheck2 = true; break;
-                    case MrMsg.MR_OUT_READ: drawCheck1 = true; drawCheck2 = true; break;
-                }
-                drawVerified = m_mrChat.isEncrypted()!=0; // we use the "verified" check as an icon for "encryted" and "verified"
-        }
-
-        if (unreadCount != 0) {
-            drawCount = true;
-            countString = String.format("%d", unreadCount);
-        } else {
-            drawCount = false;
-        }
-
-        int timeWidth = (int) Math.ceil(timePaint.measureText(timeString));
-        timeLayout = new StaticLayout(timeString, timePaint, timeWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
-        if (!LocaleController.isRTL) {
-            timeLeft = getMeasuredWidth() - AndroidUtilities.dp(15) - timeWidth;
-        } else {
-            timeLeft = AndroidUtilities.dp(15);
-        }
-
-        nameString = m_mrChat.getName();
-
-        int nameWidth;
-
-        if (!LocaleController.isRTL) {
-            nameWidth = getMeasuredWidth() - nameLeft - AndroidUtilities.dp(14) - timeWidth;
-        } else {
-            nameWidth = getMeasuredWidth() - nameLeft - AndroidUtilities.dp(AndroidUtilities.leftBaseline) - timeWidth;
-            nameLeft += timeWidth;
-        }
-
-        if (drawNameGroup) {
-            nameWidth -= AndroidUtilities.dp(4) + groupDrawable.getIntrinsicWidth();
-        }
-
-        if (drawClock) {
-            int w = clockDrawable.getIntrinsicWidth() + AndroidUtilities.dp(5);
-            nameWidth -= w;
-            if (!LocaleController.isRTL) {
-                checkDrawLeft = timeLeft - w;
-            } else {
-                checkDrawLeft = timeLeft + timeWidth + AndroidUtilities.dp(5);
-                nameLeft += w;
-            }
-        } else if (drawCheck2) {
-            int w = checkDrawable.getIntrinsicWidth() + AndroidUtilities.dp(5);
-            nameWidth -= w;
-            if (drawCheck1) {
-                nameWidth -= halfCheckDrawable.getIntrinsicWidth() - AndroidUtilities.dp(8);
-                if (!LocaleController.isRTL) {
-                    halfCheckDrawLeft = timeLeft - w;
-                    checkDrawLeft = halfCheckDrawLeft - AndroidUtilities.dp(5.5f);
-                } else {
-                    checkDrawLeft = timeLeft + timeWidth + AndroidUtilities.dp(5);
-                    halfCheckDrawLeft = checkDrawLeft + AndroidUtilities.dp(5.5f);
-                    nameLeft += w + halfCheckDrawable.getIntrinsicWidth() - AndroidUtilities.dp(8);
-                }
-            } else {
-                if (!LocaleController.isRTL) {
-                    checkDrawLeft = timeLeft - w;
-                } else {
-                    checkDrawLeft = timeLeft + timeWidth + AndroidUtilities.dp(5);
-                    nameLeft += w;
-                }
-            }
-        }
-
-        if (dialogMuted && !drawVerified) {
-            int w = AndroidUtilities.dp(6) + muteDrawable.getIntrinsicWidth();
-            nameWidth -= w;
-            if (LocaleController.isRTL) {
-                nameLeft += w;
-            }
-        } else if (drawVerified) {
-            int w = AndroidUtilities.dp(6) + verifiedDrawable.getIntrinsicWidth();
-            nameWidth -= w;
-            if (LocaleController.isRTL) {
-                nameLeft += w;
-            }
-        }
-
-        nameWidth = Math.max(AndroidUtilities.dp(12), nameWidth);
-        CharSequence nameStringFinal = TextUtils.ellipsize(nameString.replace('\n', ' '), currentNamePaint, nameWidth - AndroidUtilities.dp(12), TextUtils.TruncateAt.END);
-        try {
-            nameLayout = new StaticLayout(nameStringFinal, currentNamePaint, nameWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
-        } catch (Exception e) {
-
-        }
-
-        int messageWidth = getMeasuredWidth() - AndroidUtilities.dp(AndroidUtilities.leftBaseline + 16);
-        int avatarLeft;
-        if (!LocaleController.isRTL) {
-            messageLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline);
-            avatarLeft = AndroidUtilities.dp(AndroidUtilities.isTablet() ? 13 : 9);
-        } else {
-            messageLeft = AndroidUtilities.dp(16);
-            avatarLeft = getMeasuredWidth() - AndroidUtilities.dp(AndroidUtilities.isTablet() ? 65 : 61);
-        }
-        avatarImage.setImageCoords(avatarLeft, avatarTop, AndroidUtilities.dp(52), AndroidUtilities.dp(52));
-        if (drawError) {
-            int w = errorDrawable.getIntrinsicWidth() + AndroidUtilities.dp(8);
-            messageWidth -= w;
-            if (!LocaleController.isRTL) {
-                errorLeft = getMeasuredWidth() - errorDrawable.getIntrinsicWidth() - AndroidUtilities.dp(11);
-            } else {
-                errorLeft = AndroidUtilities.dp(11);
-                messageLeft += w;
-            }
-        } else if (countString != null) {
-            countWidth = Math.max(AndroidUtilities.dp(12), (int)Math.ceil(countPaint.measureText(countString)));
-            countLayout = new StaticLayout(countString, countPaint, countWidth, Layout.Alignment.ALIGN_CENTER, 1.0f, 0.0f, false);
-            int w = countWidth + AndroidUtilities.dp(18);
-            messageWidth -= w;
-            if (!LocaleController.isRTL) {
-                countLeft = getMeasuredWidth() - countWidth - AndroidUtilities.dp(19);
-            } else {
-                countLeft = AndroidUtilities.dp(19);
-                messageLeft += w;
-            }
-            drawCount = true;
-        } else {
-            drawCount = false;
-        }
-
-        if (checkMessage) {
-            if (messageString == null) {
-                messageString = "";
-            }
-            String mess = messageString.toString();
-            if (mess.length() > 150) {
-                mess = mess.substring(0, 150);
-            }
-            mess = mess.replace('\n', ' ');
-            messageString = Emoji.replaceEmoji(mess, messagePaint.getFontMetricsInt(), AndroidUtilities.dp(17), false);
-        }
-        messageWidth = Math.max(AndroidUtilities.dp(12), messageWidth);
-        CharSequence messageStringFinal = TextUtils.ellipsize(messageString, currentMessagePaint, messageWidth - AndroidUtilities.dp(12), TextUtils.TruncateAt.END);
-        try {
-            messageLayout = new StaticLayout(messageStringFinal, currentMessagePaint, messageWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
-        } catch (Exception e) {
-
-        }
-
-        double widthpx;
-        float left;
-        if (LocaleController.isRTL) {
-            if (nameLayout != null && nameLayout.getLineCount() > 0) {
-                left = nameLayout.getLineLeft(0);
-                widthpx = Math.ceil(nameLayout.getLineWidth(0));
-                if (dialogMuted && !drawVerified) {
-                    nameMuteLeft = (int) (nameLeft + (nameWidth - widthpx) - AndroidUtilities.dp(6) - muteDrawable.getIntrinsicWidth());
-                } else if (drawVerified) {
-                    nameMuteLeft = (int) (nameLeft + (nameWidth - widthpx) - AndroidUtilities.dp(6) - verifiedDrawable.getIntrinsicWidth());
-                }
-                if (left == 0) {
-                    if (widthpx < nameWidth) {
-                        nameLeft += (nameWidth - widthpx);
-                    }
-                }
-            }
-            if (messageLayout != null && messageLayout.getLineCount() > 0) {
-                left = messageLayout.getLineLeft(0);
-                if (left == 0) {
-                    widthpx = Math.ceil(messageLayout.getLineWidth(0));
-                    if (widthpx < messageWidth) {
-                        messageLeft += (messageWidth - widthpx);
-                    }
-                }
-            }
-        } else {
-            if (nameLayout != null && nameLayout.getLineCount() > 0) {
-                left = nameLayout.getLineRight(0);
-                if (left == nameWidth) {
-                    widthpx = Math.ceil(nameLayout.getLineWidth(0));
-                    if (widthpx < nameWidth) {
-                        nameLeft -= (nameWidth - widthpx);
-                    }
-                }
-                if (dialogMuted || drawVerified) {
-                    nameMuteLeft = (int) (nameLeft + left + AndroidUtilities.dp(6));
-                }
-            }
-            if (messageLayout != null && messageLayout.getLineCount() > 0) {
-                left = messageLayout.getLineRight(0);
-                if (left == messageWidth) {
-                    widthpx = Math.ceil(messageLayout.getLineWidth(0));
-                    if (widthpx < messageWidth) {
-                        messageLeft -= (messageWidth - widthpx);
-                    }
-                }
-            }
+        // usually, the snapshot is already laid out in the background for the current width
+        if (!m_row.hasLayout(getMeasuredWidth())) {
+            m_row.buildLayout(getMeasuredWidth());
         }
+        avatarImage.setImageCoords(m_row.avatarLeft, avatarTop, AndroidUtilities.dp(52), AndroidUtilities.dp(52));
     }
 
     public void setDialogSelected(boolean value) {
@@ -527,79 +233,25 @@ public class DialogCell extends BaseCell {
         isSelected = value;
     }
 
-    public void checkCurrentDialogIndex() {
-        if (index < MrMailbox.m_currChatlist.getCnt()) { // EDIT BY MR - was: index < getDialogsArray().size()
-            TLRPC.TL_dialog dialog = MrMailbox.m_currChatlist.get_TLRPC_TL_dialog(index); // EDIT BY MR - was: getDialogsArray().get(index);
-            final MessageObject newMessageObject = null;
-            if (currentDialogId != dialog.id ||
-                    message != null && message.getId() != dialog.top_message ||
-                    unreadCount != dialog.unread_count ||
-                    message != newMessageObject ||
-                    message == null && newMessageObject != null ) {
-                currentDialogId = dialog.id;
-                update(0);
-            }
-        }
-    }
-
     public void update(int mask) {
-        if( m_showUnreadCount ) {
-            unreadCount = m_mrChat.getUnseenCount();
+        if (m_row == null) {
+            return;
         }
 
         if (mask != 0) {
-            boolean continueUpdate = false;
-            if (!continueUpdate && (mask & MrMailbox.UPDATE_MASK_AVATAR) != 0) {
-                if (chat == null) {
-                    continueUpdate = true;
-                }
-            }
-            if (!continueUpdate && (mask & MrMailbox.UPDATE_MASK_NAME) != 0) {
-                if (chat == null) {
-                    continueUpdate = true;
-                }
-            }
-            if (!continueUpdate && (mask & MrMailbox.UPDATE_MASK_CHAT_AVATAR) != 0) {
-                if (user == null) {
-                    continueUpdate = true;
-                }
-            }
-            if (!continueUpdate && (mask & MrMailbox.UPDATE_MASK_CHAT_NAME) != 0) {
-                if (user == null) {
-                    continueUpdate = true;
-                }
-            }
-            if (!continueUpdate && (mask & MrMailbox.UPDATE_MASK_SEND_STATE) != 0) {
-                if (message != null && lastSendState != message.messageOwner.send_state) {
-                    lastSendState = message.messageOwner.send_state;
-                    continueUpdate = true;
-                }
-            }
-
-            if (!continueUpdate) {
+            int relevantMask = MrMailbox.UPDATE_MASK_AVATAR|MrMailbox.UPDATE_MASK_NAME|MrMailbox.UPDATE_MASK_CHAT_AVATAR|MrMailbox.UPDATE_MASK_CHAT_NAME;
+            if ((mask & relevantMask) == 0) {
                 return;
             }
         }
 
-        dialogMuted = isDialogCell && MrMailbox.isDialogMuted(currentDialogId);
-        //user = null;
-        //chat = null;
-
-        /*int lower_id = (int)currentDialogId;
-        int high_id = (int)(currentDialogId >> 32);
-        if (lower_id != 0) {
-            if (high_id == 1) {
-                chat = MessagesController.getInstance().getChat(lower_id);
-            } else {
-                if (lower_id < 0) {
-                    chat = MessagesController.getInstance().getChat(-lower_id);
-                } else {
-                    user = MessagesController.getInstance().getUser(lower_id);
-                }
-            }
-        }*/
+        boolean muted = MrMailbox.isDialogMuted(currentDialogId);
+        if (muted != m_row.m_muted) {
+            m_row.m_muted = muted;
+            m_row.m_width = 0; // force a new layout
+        }
 
-        ContactsController.setupAvatar(this, avatarImage, avatarDrawable, null, m_mrChat);
+        ContactsController.setupAvatarByStrings(this, avatarImage, avatarDrawable, m_row.m_avatarEmail, m_row.m_avatarName);
 
         if (getMeasuredWidth() != 0 || getMeasuredHeight() != 0) {
             buildLayout();
@@ -612,7 +264,7 @@ public class DialogCell extends BaseCell {
 
     @Override
     protected void onDraw(Canvas canvas) {
-        if (currentDialogId == 0) {
+        if (currentDialogId == 0 || m_row.timeLayout == null) {
             return;
         }
 
@@ -626,71 +278,71 @@ public class DialogCell extends BaseCell {
             lockDrawable.draw(canvas);
         } else
         */
-        if (drawNameGroup) {
-            setDrawableBounds(groupDrawable, nameLockLeft, nameLockTop);
+        if (m_row.drawNameGroup) {
+            setDrawableBounds(groupDrawable, m_row.nameLockLeft, m_row.nameLockTop);
             groupDrawable.draw(canvas);
         }
 
-        if (nameLayout != null) {
+        if (m_row.nameLayout != null) {
             canvas.save();
-            canvas.translate(nameLeft, AndroidUtilities.dp(13));
-            nameLayout.draw(canvas);
+            canvas.translate(m_row.nameLeft, AndroidUtilities.dp(13));
+            m_row.nameLayout.draw(canvas);
             canvas.restore();
         }
 
         canvas.save();
-        canvas.translate(timeLeft, timeTop);
-        timeLayout.draw(canvas);
+        canvas.translate(m_row.timeLeft, timeTop);
+        m_row.timeLayout.draw(canvas);
         canvas.restore();
 
-        if (messageLayout != null) {
+        if (m_row.messageLayout != null) {
             canvas.save();
-            canvas.translate(messageLeft, messageTop);
+            canvas.translate(m_row.messageLeft, messageTop);
             try {
-                messageLayout.draw(canvas);
+                m_row.messageLayout.draw(canvas);
             } catch (Exception e) {
 
             }
             canvas.restore();
         }
 
-        if (drawClock) {
-            setDrawableBounds(clockDrawable, checkDrawLeft, checkDrawTop);
+        if (m_row.drawClock) {
+            setDrawableBounds(clockDrawable, m_row.checkDrawLeft, checkDrawTop);
             clockDrawable.draw(canvas);
-        } else if (drawCheck2) {
-            if (drawCheck1) {
-                setDrawableBounds(halfCheckDrawable, halfCheckDrawLeft, checkDrawTop);
+        } else if (m_row.drawCheck2) {
+            if (m_row.drawCheck1) {
+                setDrawableBounds(halfCheckDrawable, m_row.halfCheckDrawLeft, checkDrawTop);
                 halfCheckDrawable.draw(canvas);
-                setDrawableBounds(checkDrawable, checkDrawLeft, checkDrawTop);
+                setDrawableBounds(checkDrawable, m_row.checkDrawLeft, checkDrawTop);
                 checkDrawable.draw(canvas);
             } else {
-                setDrawableBounds(checkDrawable, checkDrawLeft, checkDrawTop);
+                setDrawableBounds(checkDrawable, m_row.checkDrawLeft, checkDrawTop);
                 checkDrawable.draw(canvas);
             }
         }
 
-        if (dialogMuted && !drawVerified) { // TODO: if we enable encrypted chats and show the verified logo, we may show both, muted and verivied
-            setDrawableBounds(muteDrawable, nameMuteLeft, AndroidUtilities.dp(16.5f));
+        if (m_row.m_muted && !m_row.drawVerified) { // TODO: if we enable encrypted chats and show the verified logo, we may show both, muted and verivied
+            setDrawableBounds(muteDrawable, m_row.nameMuteLeft, AndroidUtilities.dp(16.5f));
             muteDrawable.draw(canvas);
-        } else if (drawVerified) {
-            setDrawableBounds(verifiedDrawable, nameMuteLeft, AndroidUtilities.dp(16.5f));
+        } else if (m_row.drawVerified) {
+            setDrawableBounds(verifiedDrawable, m_row.nameMuteLeft, AndroidUtilities.dp(16.5f));
             verifiedDrawable.draw(canvas);
         }
 
-        if (drawError) {
-            setDrawableBounds(errorDrawable, errorLeft, errorTop);
+        if (m_row.drawError) {
+            setDrawableBounds(errorDrawable, m_row.errorLeft, errorTop);
             errorDrawable.draw(canvas);
-        } else if (drawCount) {
-            if (dialogMuted) {
-                setDrawableBounds(countDrawableGrey, countLeft - AndroidUtilities.dp(5.5f), countTop, countWidth + AndroidUtilities.dp(11), countDrawable.getIntrinsicHeight());
+        } else if (m_row.drawCount) {
+            if (m_row.m_muted) {
+                setDrawableBounds(countDrawableGrey, m_row.countLeft - AndroidUtilities.dp(5.5f), countTop, m_row.countWidth + AndroidUtilities.dp(11), countDrawable.getIntrinsicHeight());
                 countDrawableGrey.draw(canvas);
             } else {
-                setDrawableBounds(countDrawable, countLeft - AndroidUtilities.dp(5.5f), countTop, countWidth + AndroidUtilities.dp(11), countDrawable.getIntrinsicHeight());
+                setDrawableBounds(countDrawable, m_row.countLeft - AndroidUtilities.dp(5.5f), countTop, m_row.countWidth + AndroidUtilities.dp(11), countDrawable.getIntrinsicHeight());
                 countDrawable.draw(canvas);
             }
             canvas.save();
-            canvas.translate(countLeft, countTop + AndroidUtilities.dp(4));
-            countLayout.draw(canvas);
+            canvas.translate(m_row.countLeft, countTop + AndroidUtilities.dp(4));
+            m_row.countLayout.draw(canvas);
             canvas.restore();
         }
 
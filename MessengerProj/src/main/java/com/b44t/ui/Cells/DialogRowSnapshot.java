@@ -0,0 +1,400 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                        (C) 2013-2016 Nikolai Kudashov
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    DialogRowSnapshot.java
+ * Purpose: Everything a DialogCell draws: the data of the chat and its summary,
+ *          copied from the backend, and the measured layouts for a given width.
+ *          A snapshot may be created and laid out in any thread; once handed
+ *          over to the UI thread, it is only used there.
+ *
+ ******************************************************************************/
+
+
+package com.b44t.ui.Cells;
+
+import android.text.Layout;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.text.style.ForegroundColorSpan;
+
+import com.b44t.messenger.AndroidUtilities;
+import com.b44t.messenger.Emoji;
+import com.b44t.messenger.LocaleController;
+import com.b44t.messenger.MrChat;
+import com.b44t.messenger.MrContact;
+import com.b44t.messenger.MrMailbox;
+import com.b44t.messenger.MrMsg;
+import com.b44t.messenger.MrPoortext;
+import com.b44t.ui.ActionBar.Theme;
+
+
+public class DialogRowSnapshot {
+
+    // the data, copied from the backend by load()
+    int     m_chatId;
+    int     m_lastMsgId;
+    boolean m_isGroup;
+    boolean m_isEncrypted;
+    String  m_name;
+    String  m_summaryTitle;
+    int     m_summaryTitleMeaning;
+    String  m_summaryText;
+    long    m_timestamp;
+    int     m_state;
+    int     m_unreadCount;
+    boolean m_muted;
+    String  m_avatarEmail; // null if the chat has no single contact
+    String  m_avatarName;
+
+    public int getChatId() {
+        return m_chatId;
+    }
+
+    public int getLastMsgId() {
+        return m_lastMsgId;
+    }
+
+    public static DialogRowSnapshot load(MrChat mrChat, MrPoortext mrSummary, int lastMsgId, boolean showUnreadCount) {
+        // all data needed are loaded here, so that binding the snapshot to a cell does not need to call the backend
+        DialogRowSnapshot row = new DialogRowSnapshot();
+        row.m_chatId              = mrChat.getId();
+        row.m_lastMsgId           = lastMsgId;
+        row.m_isGroup             = mrChat.getType()==MrChat.MR_CHAT_GROUP;
+        row.m_isEncrypted         = mrChat.isEncrypted()!=0;
+        row.m_name                = mrChat.getName();
+        row.m_summaryTitle        = mrSummary.getText1();
+        row.m_summaryTitleMeaning = mrSummary.getText1Meaning();
+        row.m_summaryText         = mrSummary.getText2();
+        row.m_timestamp           = mrSummary.getTimestamp();
+        row.m_state               = mrSummary.getState();
+        row.m_unreadCount         = showUnreadCount? mrChat.getUnseenCount() : 0;
+        row.m_muted               = MrMailbox.isDialogMuted(row.m_chatId);
+
+        row.m_avatarName = row.m_name;
+        if( mrChat.getType()==MrChat.MR_CHAT_NORMAL ) {
+            int[] contact_ids = MrMailbox.getChatContacts(row.m_chatId);
+            if( contact_ids.length == 1 ) {
+                MrContact mrContact = MrMailbox.getContact(contact_ids[0]);
+                row.m_avatarEmail = mrContact.getAddr();
+                row.m_avatarName  = mrContact.getDisplayName();
+                mrContact.close();
+            }
+        }
+        return row;
+    }
+
+
+    /* the layout, created by buildLayout() for m_width
+     **********************************************************************************************/
+
+    int m_width;
+
+    boolean drawNameGroup;
+    int nameLeft;
+    int nameLockLeft;
+    int nameLockTop;
+    int nameMuteLeft;
+    StaticLayout nameLayout;
+
+    int timeLeft;
+    StaticLayout timeLayout;
+
+    boolean drawCheck1;
+    boolean drawCheck2;
+    boolean drawClock;
+    int checkDrawLeft;
+    int halfCheckDrawLeft;
+
+    int messageLeft;
+    StaticLayout messageLayout;
+
+    boolean drawError;
+    int errorLeft;
+
+    boolean drawCount;
+    int countLeft;
+    int countWidth;
+    StaticLayout countLayout;
+
+    boolean drawVerified;
+
+    int avatarLeft;
+
+    public boolean hasLayout(int width) {
+        return m_width == width && timeLayout != null;
+    }
+
+    public void buildLayout(int width) {
+        // the paints and drawables are created together with the first DialogCell
+        DialogCell.LayoutPaints paints = DialogCell.getLayoutPaints();
+        if( paints == null || width <= 0 ) {
+            return;
+        }
+        m_width = width;
+
+        String nameString;
+        String timeString;
+        String countString = null;
+        CharSequence messageString;
+        TextPaint currentNamePaint = paints.name;
+        TextPaint currentMessagePaint = paints.message;
+
+        drawNameGroup = false;
+        drawVerified = false;
+
+        if (m_isGroup) {
+            drawNameGroup = true;
+            nameLockTop = AndroidUtilities.dp(17.5f);
+
+            if (!LocaleController.isRTL) {
+                nameLockLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline);
+                nameLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline + 4) + (DialogCell.groupDrawable.getIntrinsicWidth());
+            } else {
+                nameLockLeft = width - AndroidUtilities.dp(AndroidUtilities.leftBaseline) - (DialogCell.groupDrawable.getIntrinsicWidth());
+                nameLeft = AndroidUtilities.dp(14);
+            }
+        } else {
+            if (!LocaleController.isRTL) {
+                nameLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline);
+            } else {
+                nameLeft = AndroidUtilities.dp(14);
+            }
+        }
+
+        {
+            String mess = m_summaryText;
+            if (mess.length() > 150) {
+                mess = mess.substring(0, 150);
+            }
+            String title = m_summaryTitle;
+            if( !title.isEmpty() )
+            {
+                int title_color = Theme.DIALOGS_NAME_TEXT_COLOR;
+                switch( m_summaryTitleMeaning ) {
+                    case MrPoortext.MR_TEXT1_SELF:  title_color = Theme.DIALOGS_SELF_TEXT_COLOR; break;
+                    case MrPoortext.MR_TEXT1_DRAFT: title_color = Theme.DIALOGS_DRAFT_TEXT_COLOR; break;
+                }
+                SpannableStringBuilder stringBuilder = SpannableStringBuilder.valueOf(String.format("%s: %s", title, mess));
+                stringBuilder.setSpan(new ForegroundColorSpan(title_color), 0, title.length() + 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                messageString = Emoji.replaceEmoji(stringBuilder, paints.message.getFontMetricsInt(), AndroidUtilities.dp(20), false);
+            }
+            else
+            {
+                messageString = mess;
+            }
+
+            if( m_timestamp!=0 ) {
+                timeString = LocaleController.stringForMessageListDate(m_timestamp);
+            }
+            else {
+                timeString = "";
+            }
+
+            drawCheck1 = false;
+            drawCheck2 = false;
+            drawClock = false;
+            drawError = false;
+            switch( m_state ) {
+                case MrMsg.MR_OUT_ERROR: drawError = true; break;
+                case MrMsg.MR_OUT_PENDING: drawClock = true; break;
+                case MrMsg.MR_OUT_DELIVERED: drawCheck2 = true; break;
+                case MrMsg.MR_OUT_READ: drawCheck1 = true; drawCheck2 = true; break;
+            }
+            drawVerified = m_isEncrypted; // we use the "verified" check as an icon for "encryted" and "verified"
+        }
+
+        if (m_unreadCount != 0) {
+            countString = String.format("%d", m_unreadCount);
+        }
+
+        int timeWidth = (int) Math.ceil(paints.time.measureText(timeString));
+        timeLayout = new StaticLayout(timeString, paints.time, timeWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+        if (!LocaleController.isRTL) {
+            timeLeft = width - AndroidUtilities.dp(15) - timeWidth;
+        } else {
+            timeLeft = AndroidUtilities.dp(15);
+        }
+
+        nameString = m_name;
+
+        int nameWidth;
+
+        if (!LocaleController.isRTL) {
+            nameWidth = width - nameLeft - AndroidUtilities.dp(14) - timeWidth;
+        } else {
+            nameWidth = width - nameLeft - AndroidUtilities.dp(AndroidUtilities.leftBaseline) - timeWidth;
+            nameLeft += timeWidth;
+        }
+
+        if (drawNameGroup) {
+            nameWidth -= AndroidUtilities.dp(4) + DialogCell.groupDrawable.getIntrinsicWidth();
+        }
+
+        if (drawClock) {
+            int w = DialogCell.clockDrawable.getIntrinsicWidth() + AndroidUtilities.dp(5);
+            nameWidth -= w;
+            if (!LocaleController.isRTL) {
+                checkDrawLeft = timeLeft - w;
+            } else {
+                checkDrawLeft = timeLeft + timeWidth + AndroidUtilities.dp(5);
+                nameLeft += w;
+            }
+        } else if (drawCheck2) {
+            int w = DialogCell.checkDrawable.getIntrinsicWidth() + AndroidUtilities.dp(5);
+            nameWidth -= w;
+            if (drawCheck1) {
+                nameWidth -= DialogCell.halfCheckDrawable.getIntrinsicWidth() - AndroidUtilities.dp(8);
+                if (!LocaleController.isRTL) {
+                    halfCheckDrawLeft = timeLeft - w;
+                    checkDrawLeft = halfCheckDrawLeft - AndroidUtilities.dp(5.5f);
+                } else {
+                    checkDrawLeft = timeLeft + timeWidth + AndroidUtilities.dp(5);
+                    halfCheckDrawLeft = checkDrawLeft + AndroidUtilities.dp(5.5f);
+                    nameLeft += w + DialogCell.halfCheckDrawable.getIntrinsicWidth() - AndroidUtilities.dp(8);
+                }
+            } else {
+                if (!LocaleController.isRTL) {
+                    checkDrawLeft = timeLeft - w;
+                } else {
+                    checkDrawLeft = timeLeft + timeWidth + AndroidUtilities.dp(5);
+                    nameLeft += w;
+                }
+            }
+        }
+
+        if (m_muted && !drawVerified) {
+            int w = AndroidUtilities.dp(6) + DialogCell.muteDrawable.getIntrinsicWidth();
+            nameWidth -= w;
+            if (LocaleController.isRTL) {
+                nameLeft += w;
+            }
+        } else if (drawVerified) {
+            int w = AndroidUtilities.dp(6) + DialogCell.verifiedDrawable.getIntrinsicWidth();
+            nameWidth -= w;
+            if (LocaleController.isRTL) {
+                nameLeft += w;
+            }
+        }
+
+        nameWidth = Math.max(AndroidUtilities.dp(12), nameWidth);
+        CharSequence nameStringFinal = TextUtils.ellipsize(nameString.replace('\n', ' '), currentNamePaint, nameWidth - AndroidUtilities.dp(12), TextUtils.TruncateAt.END);
+        try {
+            nameLayout = new StaticLayout(nameStringFinal, currentNamePaint, nameWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+        } catch (Exception e) {
+
+        }
+
+        int messageWidth = width - AndroidUtilities.dp(AndroidUtilities.leftBaseline + 16);
+        if (!LocaleController.isRTL) {
+            messageLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline);
+            avatarLeft = AndroidUtilities.dp(AndroidUtilities.isTablet() ? 13 : 9);
+        } else {
+            messageLeft = AndroidUtilities.dp(16);
+            avatarLeft = width - AndroidUtilities.dp(AndroidUtilities.isTablet() ? 65 : 61);
+        }
+        if (drawError) {
+            int w = DialogCell.errorDrawable.getIntrinsicWidth() + AndroidUtilities.dp(8);
+            messageWidth -= w;
+            if (!LocaleController.isRTL) {
+                errorLeft = width - DialogCell.errorDrawable.getIntrinsicWidth() - AndroidUtilities.dp(11);
+            } else {
+                errorLeft = AndroidUtilities.dp(11);
+                messageLeft += w;
+            }
+        } else if (countString != null) {
+            countWidth = Math.max(AndroidUtilities.dp(12), (int)Math.ceil(paints.count.measureText(countString)));
+            countLayout = new StaticLayout(countString, paints.count, countWidth, Layout.Alignment.ALIGN_CENTER, 1.0f, 0.0f, false);
+            int w = countWidth + AndroidUtilities.dp(18);
+            messageWidth -= w;
+            if (!LocaleController.isRTL) {
+                countLeft = width - countWidth - AndroidUtilities.dp(19);
+            } else {
+                countLeft = AndroidUtilities.dp(19);
+                messageLeft += w;
+            }
+            drawCount = true;
+        } else {
+            drawCount = false;
+        }
+
+        messageWidth = Math.max(AndroidUtilities.dp(12), messageWidth);
+        CharSequence messageStringFinal = TextUtils.ellipsize(messageString, currentMessagePaint, messageWidth - AndroidUtilities.dp(12), TextUtils.TruncateAt.END);
+        try {
+            messageLayout = new StaticLayout(messageStringFinal, currentMessagePaint, messageWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+        } catch (Exception e) {
+
+        }
+
+        double widthpx;
+        float left;
+        if (LocaleController.isRTL) {
+            if (nameLayout != null && nameLayout.getLineCount() > 0) {
+                left = nameLayout.getLineLeft(0);
+                widthpx = Math.ceil(nameLayout.getLineWidth(0));
+                if (m_muted && !drawVerified) {
+                    nameMuteLeft = (int) (nameLeft + (nameWidth - widthpx) - AndroidUtilities.dp(6) - DialogCell.muteDrawable.getIntrinsicWidth());
+                } else if (drawVerified) {
+                    nameMuteLeft = (int) (nameLeft + (nameWidth - widthpx) - AndroidUtilities.dp(6) - DialogCell.verifiedDrawable.getIntrinsicWidth());
+                }
+                if (left == 0) {
+                    if (widthpx < nameWidth) {
+                        nameLeft += (nameWidth - widthpx);
+                    }
+                }
+            }
+            if (messageLayout != null && messageLayout.getLineCount() > 0) {
+                left = messageLayout.getLineLeft(0);
+                if (left == 0) {
+                    widthpx = Math.ceil(messageLayout.getLineWidth(0));
+                    if (widthpx < messageWidth) {
+                        messageLeft += (messageWidth - widthpx);
+                    }
+                }
+            }
+        } else {
+            if (nameLayout != null && nameLayout.getLineCount() > 0) {
+                left = nameLayout.getLineRight(0);
+                if (left == nameWidth) {
+                    widthpx = Math.ceil(nameLayout.getLineWidth(0));
+                    if (widthpx < nameWidth) {
+                        nameLeft -= (nameWidth - widthpx);
+                    }
+                }
+                if (m_muted || drawVerified) {
+                    nameMuteLeft = (int) (nameLeft + left + AndroidUtilities.dp(6));
+                }
+            }
+            if (messageLayout != null && messageLayout.getLineCount() > 0) {
+                left = messageLayout.getLineRight(0);
+                if (left == messageWidth) {
+                    widthpx = Math.ceil(messageLayout.getLineWidth(0));
+                    if (widthpx < messageWidth) {
+                        messageLeft -= (messageWidth - widthpx);
+                    }
+                }
+            }
+        }
+    }
+}
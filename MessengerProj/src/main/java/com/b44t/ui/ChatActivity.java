@@ -61,10 +61,13 @@ import android.widget.Toast;
 import com.b44t.messenger.AndroidUtilities;
 import com.b44t.messenger.LocaleController;
 import com.b44t.messenger.MediaController;
+import com.b44t.messenger.MessageObjectCache;
+import com.b44t.messenger.MessageObjectPrefetcher;
 import com.b44t.messenger.MrChat;
 import com.b44t.messenger.MrContact;
 import com.b44t.messenger.MrMailbox;
 import com.b44t.messenger.MrMsg;
+import com.b44t.messenger.MrMsgRange;
 import com.b44t.messenger.NotificationsController;
 import com.b44t.messenger.SendMessagesHelper;
 import com.b44t.messenger.Utilities;
@@ -111,6 +114,9 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
     private long  dialog_id;
     public MrChat m_mrChat = new MrChat(0);
     private int[] m_msglist = {};
+    private MrMsgRange m_msgRange; // the messages around the last bound row, loaded in one go, see getMsgByRow()
+    private static final int MSG_RANGE_SIZE = 32;
+    private MessageObjectPrefetcher m_prefetcher; // lays out the messages in scroll direction in the background
 
     // the list view
     private RecyclerListView                chatListView;
@@ -200,6 +206,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
 
         dialog_id = arguments.getInt("chat_id", 0);
         m_mrChat = MrMailbox.getChat((int)dialog_id);
+        m_prefetcher = new MessageObjectPrefetcher(m_mrChat.getType()==MrChat.MR_CHAT_GROUP);
 
         startLoadFromMessageId = arguments.getInt("message_id", 0);
         scrollToTopOnResume = arguments.getBoolean("scrollToTopOnResume", false);
@@ -241,6 +248,27 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
     {
         m_msglist = MrMailbox.getChatMsgs((int)dialog_id, MrMailbox.MR_GCM_ADDDAYMARKER,
                 markerUnreadMessageId /*add a marker before this ID*/);
+        m_msgRange = null;
+        m_prefetcher.setMsglist(m_msglist);
+    }
+
+    private MrMsg getMsgByRow(int i)
+    {
+        if( m_msgRange == null || !m_msgRange.contains(i) ) {
+            // load the next rows in the direction we're scrolling to
+            int first;
+            if( m_msgRange != null && i < m_msgRange.getFirst() ) {
+                first = i - MSG_RANGE_SIZE + 1;
+            }
+            else if( m_msgRange != null && i >= m_msgRange.getFirst()+m_msgRange.getCnt() ) {
+                first = i;
+            }
+            else {
+                first = i - MSG_RANGE_SIZE/2;
+            }
+            m_msgRange = MrMailbox.getMsgRange(m_msglist, Math.max(0, first), MSG_RANGE_SIZE);
+        }
+        return m_msgRange.getMsg(i);
     }
 
     private void messagesDidLoaded()
@@ -330,6 +358,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
     @Override
     public void onFragmentDestroy() {
         super.onFragmentDestroy();
+        m_prefetcher.cancel();
         if (chatActivityEnterView != null) {
             chatActivityEnterView.onDestroy();
         }
@@ -936,6 +965,10 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                     }
                 }
                 updateMessagesVisisblePart();
+
+                if (visibleItemCount > 0) {
+                    m_prefetcher.onScrolled(firstVisibleItem, firstVisibleItem + visibleItemCount - 1, dy);
+                }
             }
         });
 
@@ -1824,44 +1857,49 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
     {
         if( id == NotificationCenter.dialogsNeedReload )
         {
-            if( args.length >= 3 ) {
-                // add incoming messages
+            if( args.length >= 3 && ((int)args[0]==MrMailbox.MR_EVENT_MSGS_CHANGED || (int)args[0]==MrMailbox.MR_EVENT_INCOMING_MSG) ) {
+                // add incoming messages; MrEventDispatcher merges several messages of a chat to a single notification
                 int evt_chat_id = (int) args[1];
-                int evt_msg_id = (int) args[2];
-                if (evt_chat_id == dialog_id && evt_msg_id > 0)
+                int[] evt_msg_ids = args.length >= 4? (int[]) args[3] : new int[]{(int) args[2]};
+                if (evt_chat_id == dialog_id && evt_msg_ids.length > 0 && evt_msg_ids[evt_msg_ids.length-1] > 0)
                 {
-                    boolean markAsRead = false;
-                    MrMsg mrMsg = MrMailbox.getMsg(evt_msg_id);
-                    if ( mrMsg.getFromId()!=MrContact.MR_CONTACT_ID_SELF ) {
-                        if (paused) {
-                            if( !scrollToTopUnReadOnResume && markerUnreadMessageId != 0 ) {
-                                markerUnreadMessageId = 0;
+                    ArrayList<Integer> markAsRead = new ArrayList<>();
+                    for (int evt_msg_id : evt_msg_ids) {
+                        MrMsg mrMsg = MrMailbox.getMsg(evt_msg_id);
+                        if ( mrMsg.getId()!=0 && mrMsg.getFromId()!=MrContact.MR_CONTACT_ID_SELF ) {
+                            if (paused) {
+                                if( !scrollToTopUnReadOnResume && markerUnreadMessageId != 0 ) {
+                                    markerUnreadMessageId = 0;
+                                }
+                                if( markerUnreadMessageId == 0 ) {
+                                    markerUnreadMessageId = mrMsg.getId();
+                                    scrollToMessage = null;
+                                    scrollToMessagePosition = -10000;
+                                    markerUnreadCount = 0;
+                                    scrollToTopUnReadOnResume = true;
+                                }
                             }
-                            if( markerUnreadMessageId == 0 ) {
-                                markerUnreadMessageId = mrMsg.getId();
-                                scrollToMessage = null;
-                                scrollToMessagePosition = -10000;
-                                markerUnreadCount = 0;
-                                scrollToTopUnReadOnResume = true;
+
+                            if (markerUnreadMessageId != 0) {
+                                markerUnreadCount++;
                             }
-                        }
 
-                        if (markerUnreadMessageId != 0) {
-                            markerUnreadCount++;
+                            markAsRead.add(evt_msg_id);
                         }
-
-                        markAsRead = true;
+                        mrMsg.close();
                     }
 
                     updateMsglist();
                     chatAdapter.notifyDataSetChanged();
                     scrollToLastMessage(false);
 
-                    if (markAsRead) {
+                    if (!markAsRead.isEmpty()) {
                         if (paused) {
                             readWhenResume = true;
                         } else {
-                            MrMailbox.markseenMsg(evt_msg_id);
+                            for (int evt_msg_id : markAsRead) {
+                                MrMailbox.markseenMsg(evt_msg_id);
+                            }
                             NotificationsController.getInstance().removeSeenMessages();
                         }
                     }
@@ -1915,6 +1953,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         }
         else if (id == NotificationCenter.messagesSentOrRead)
         {
+            m_msgRange = null;
             chatAdapter.notifyDataSetChanged();
         }
         else if (id == NotificationCenter.messagesDeleted)
@@ -1925,6 +1964,8 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         }
         else if (id == NotificationCenter.messageSendError)
         {
+            MessageObjectCache.invalidate((int)dialog_id, (int)args[0]);
+            m_msgRange = null;
             chatAdapter.notifyDataSetChanged();
             AndroidUtilities.showErrorHint(getParentActivity());
         }
@@ -2206,6 +2247,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         if (wasPaused) {
             wasPaused = false;
             if (chatAdapter != null) {
+                m_msgRange = null;
                 chatAdapter.notifyDataSetChanged();
             }
         }
@@ -2452,6 +2494,8 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
     private void updateVisibleRows() {
         // update by reloading all messages cells from disk.
         // this is slow, but works always, eg. on deletion of messages.
+        m_msgRange = null;
+        MessageObjectCache.invalidate((int)dialog_id, 0);
         chatAdapter.notifyDataSetChanged();
     }
 
@@ -2744,7 +2788,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                     public void didPressedImage(ChatMessageCell cell) {
                         MessageObject message = cell.getMessageObject();
 
-                        if( message.type == MessageObject.MO_TYPE3_VIDEO && MrMailbox.getMsg(message.getId()).isIncreation()!=0 ) {
+                        if( message.type == MessageObject.MO_TYPE3_VIDEO && message.messageOwner.mr_increation ) {
                             return; // we're not ready (still compressing), a hint is already shown in the message itself
                         }
 
@@ -2794,9 +2838,16 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                 if( view instanceof ChatMessageCell )
                 {
                     // show a normal message
-                    MrMsg mrMsg = MrMailbox.getMsg(msg_id);
-                    TLRPC.Message msg = mrMsg.get_TLRPC_Message();
-                    MessageObject msgDrawObj = new MessageObject(msg, true);
+                    // the layout of the messages is cached, see MessageObjectCache
+                    MrMsg mrMsg = getMsgByRow(i);
+                    int maxWidth = MessageObject.getMaxTextWidth(mrMsg.getFromId()!=MrContact.MR_CONTACT_ID_SELF && m_mrChat.getType()==MrChat.MR_CHAT_GROUP);
+                    MessageObject msgDrawObj = MessageObjectCache.get(msg_id, maxWidth);
+                    if( msgDrawObj == null ) {
+                        TLRPC.Message msg = mrMsg.get_TLRPC_Message();
+                        msgDrawObj = new MessageObject(msg, true);
+                        MessageObjectCache.put(msgDrawObj, maxWidth);
+                    }
+                    mrMsg.close();
 
                     ChatMessageCell messageCell = (ChatMessageCell) view;
                     messageCell.isGroupChat = m_mrChat.getType()==MrChat.MR_CHAT_GROUP;
@@ -2814,11 +2865,12 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                 {
                     // show a date headline (the date comes from the _next_ message)
                     if( msg_id == MrMsg.MR_MSG_ID_DAYMARKER && i+1 < m_msglist.length ) {
-                        MrMsg mrMsg = MrMailbox.getMsg(m_msglist[i+1]);
+                        MrMsg mrMsg = getMsgByRow(i+1);
 
                         TLRPC.Message dateMsg = new TLRPC.Message();
                         dateMsg.id = 0;
                         dateMsg.date = (int)mrMsg.getTimestamp();
+                        mrMsg.close();
                         dateMsg.message = LocaleController.formatDateChat(dateMsg.date);
                         MessageObject msgDrawObj = new MessageObject(dateMsg, false);
                         msgDrawObj.type = MessageObject.MO_TYPE10_DATE_HEADLINE;
@@ -39,10 +39,10 @@ import android.os.Looper;
 import android.view.View;
 
 import com.b44t.messenger.AndroidUtilities;
+import com.b44t.messenger.ImageDecodeExecutor;
 
 import java.io.File;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.ArrayDeque;
 
 public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
 
@@ -50,23 +50,39 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
     private static native void destroyDecoder(int ptr);
     private static native int getVideoFrame(int ptr, Bitmap bitmap, int[] params);
 
+    // frames are decoded ahead into a small queue of bitmaps. the decoding runs on a pool shared by all drawables;
+    // drawables with fewer frames ready are decoded first and drawables not drawn for a while are paused.
+    private static final int FRAME_COUNT = 3; // one frame shown, up to two frames ready
+    private static final int OFFSCREEN_MS = 500;
+    private static final ImageDecodeExecutor decodeExecutor = new ImageDecodeExecutor("animDecode");
+    private static final Object statSync = new Object();
+    private static int statDecoded, statShown, statLate, statPaused;
+
+    private static class Frame {
+        Bitmap bitmap;
+        BitmapShader shader;
+        int timestamp;
+    }
+
+    private final Object frameSync = new Object(); // guards the following three fields
+    private final ArrayDeque<Frame> readyFrames = new ArrayDeque<>();
+    private final ArrayDeque<Frame> freeFrames = new ArrayDeque<>();
+    private boolean decodeScheduled;
+    private int frameCount; // only used by the decoding task
+    private Frame renderingFrame; // only used on the UI thread
+    private volatile long lastDrawTime;
+    private volatile boolean decodePaused;
+    private volatile boolean frameDecoded; // set once the first frame is ready; from then on, there is always a frame to draw
+    private boolean lateCounted;
+
     private long lastFrameTime;
-    private int lastTimeStamp;
     private int invalidateAfter = 50;
     private final int[] metaData = new int[3];
-    private Runnable loadFrameTask;
-    private Bitmap renderingBitmap;
-    private Bitmap nextRenderingBitmap;
-    private Bitmap backgroundBitmap;
     private boolean destroyWhenDone;
     private boolean decoderCreated;
     private File path;
     private boolean recycleWithSecond;
 
-    private BitmapShader renderingShader;
-    private BitmapShader nextRenderingShader;
-    private BitmapShader backgroundShader;
-
     private int roundRadius;
     private RectF roundRect = new RectF();
     private RectF bitmapRect = new RectF();
@@ -80,7 +96,6 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
     private volatile boolean isRunning;
     private volatile boolean isRecycled;
     private volatile int nativePtr;
-    private static ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2, new ThreadPoolExecutor.DiscardPolicy());
 
     private View parentView = null;
     private View secondParentView = null;
@@ -99,59 +114,92 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
     private Runnable uiRunnable = new Runnable() {
         @Override
         public void run() {
-            if (destroyWhenDone && nativePtr != 0) {
-                destroyDecoder(nativePtr);
-                nativePtr = 0;
+            if (destroyWhenDone) {
+                destroy();
+                return;
             }
             if (nativePtr == 0) {
-                if (backgroundBitmap != null) {
-                    backgroundBitmap.recycle();
-                    backgroundBitmap = null;
-                }
                 return;
             }
-            loadFrameTask = null;
-            nextRenderingBitmap = backgroundBitmap;
-            nextRenderingShader = backgroundShader;
-            if (metaData[2] < lastTimeStamp) {
-                lastTimeStamp = 0;
-            }
-            if (metaData[2] - lastTimeStamp != 0) {
-                invalidateAfter = metaData[2] - lastTimeStamp;
+            if (decodePaused) {
+                // continued by draw() or, if draw() is not called as the view is not invalidated, by resumeTask
+                uiHandler.removeCallbacks(resumeTask);
+                uiHandler.postDelayed(resumeTask, OFFSCREEN_MS);
+                return;
             }
-            lastTimeStamp = metaData[2];
             if (secondParentView != null) {
                 secondParentView.invalidate();
             } else if (parentView != null) {
                 parentView.invalidate();
             }
+            scheduleNextGetFrame(); // decode ahead until the queue is full
+        }
+    };
+
+    private final Runnable resumeTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!isRunning || isRecycled || !decodePaused) {
+                return; // start() or draw() schedule the decoding again
+            }
+            if (System.currentTimeMillis() - lastDrawTime <= OFFSCREEN_MS) {
+                scheduleNextGetFrame();
+            } else {
+                uiHandler.postDelayed(resumeTask, OFFSCREEN_MS);
+            }
         }
     };
 
     private Runnable loadFrameRunnable = new Runnable() {
         @Override
         public void run() {
-            if (!isRecycled) {
+            Frame frame = null;
+            boolean decoded = false;
+            // a drawable without any frame is not drawn at all (see ImageReceiver.draw()), so it is never paused
+            decodePaused = !isRecycled && frameDecoded && System.currentTimeMillis() - lastDrawTime > OFFSCREEN_MS;
+            if (!isRecycled && !decodePaused) {
                 if (!decoderCreated && nativePtr == 0) {
                     nativePtr = createDecoder(path.getAbsolutePath(), metaData);
                     decoderCreated = true;
                 }
-                try {
-                    if (backgroundBitmap == null) {
-                        try {
-                            backgroundBitmap = Bitmap.createBitmap(metaData[0], metaData[1], Bitmap.Config.ARGB_8888);
-                        } catch (Throwable e) {
+                synchronized (frameSync) {
+                    frame = freeFrames.poll();
+                }
+                if (frame == null && frameCount < FRAME_COUNT && nativePtr != 0) {
+                    try {
+                        frame = new Frame();
+                        frame.bitmap = Bitmap.createBitmap(metaData[0], metaData[1], Bitmap.Config.ARGB_8888);
+                        frameCount++;
+                    } catch (Throwable e) {
+                        frame = null;
+                    }
+                }
+                if (frame != null) {
+                    try {
+                        getVideoFrame(nativePtr, frame.bitmap, metaData);
+                        frame.timestamp = metaData[2];
+                        decoded = true;
+                    } catch (Throwable e) {
 
-                        }
-                        if (backgroundShader == null && backgroundBitmap != null && roundRadius != 0) {
-                            backgroundShader = new BitmapShader(backgroundBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
-                        }
                     }
-                    if (backgroundBitmap != null) {
-                        getVideoFrame(nativePtr, backgroundBitmap, metaData);
+                }
+            }
+            synchronized (frameSync) {
+                if (frame != null) {
+                    if (decoded) {
+                        readyFrames.add(frame);
+                        frameDecoded = true;
+                    } else {
+                        freeFrames.add(frame);
                     }
-                } catch (Throwable e) {
-
+                }
+                decodeScheduled = false;
+            }
+            synchronized (statSync) {
+                if (decoded) {
+                    statDecoded++;
+                } else if (decodePaused) {
+                    statPaused++;
                 }
             }
             AndroidUtilities.runOnUIThread(uiRunnable);
@@ -177,8 +225,8 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         }
     }
 
-    protected void postToDecodeQueue(Runnable runnable) {
-        executor.execute(runnable);
+    protected void postToDecodeQueue(Runnable runnable, int readyCount) {
+        decodeExecutor.postRunnable(runnable, FRAME_COUNT - readyCount); // drawables with fewer frames ready first
     }
 
     public void setParentView(View view) {
@@ -199,21 +247,33 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         }
         isRunning = false;
         isRecycled = true;
-        if (loadFrameTask == null) {
-            if (nativePtr != 0) {
-                destroyDecoder(nativePtr);
-                nativePtr = 0;
+        destroyWhenDone = true;
+        uiHandler.removeCallbacks(resumeTask);
+        destroy();
+    }
+
+    private void destroy() {
+        // called on the UI thread; if a frame is just decoded, this is done again when the decoding is finished
+        synchronized (frameSync) {
+            if (decodeScheduled) {
+                return;
             }
-            if (nextRenderingBitmap != null) {
-                nextRenderingBitmap.recycle();
-                nextRenderingBitmap = null;
+            for (Frame frame : readyFrames) {
+                frame.bitmap.recycle();
             }
-        } else {
-            destroyWhenDone = true;
+            for (Frame frame : freeFrames) {
+                frame.bitmap.recycle();
+            }
+            readyFrames.clear();
+            freeFrames.clear();
         }
-        if (renderingBitmap != null) {
-            renderingBitmap.recycle();
-            renderingBitmap = null;
+        if (nativePtr != 0) {
+            destroyDecoder(nativePtr);
+            nativePtr = 0;
+        }
+        if (renderingFrame != null) {
+            renderingFrame.bitmap.recycle();
+            renderingFrame = null;
         }
     }
 
@@ -245,17 +305,32 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
             return;
         }
         isRunning = true;
-        if (renderingBitmap == null) {
+        lastDrawTime = System.currentTimeMillis(); // the drawable is expected to be drawn soon, start decoding
+        if (renderingFrame == null) {
             scheduleNextGetFrame();
         }
         runOnUiThread(mStartTask);
     }
 
     private void scheduleNextGetFrame() {
-        if (loadFrameTask != null || nativePtr == 0 && decoderCreated || destroyWhenDone) {
+        if (nativePtr == 0 && decoderCreated || destroyWhenDone) {
             return;
         }
-        postToDecodeQueue(loadFrameTask = loadFrameRunnable);
+        int readyCount;
+        synchronized (frameSync) {
+            readyCount = readyFrames.size();
+            if (decodeScheduled || readyCount >= FRAME_COUNT - 1) {
+                return;
+            }
+            decodeScheduled = true;
+        }
+        postToDecodeQueue(loadFrameRunnable, readyCount);
+    }
+
+    public static String getStatsStr() {
+        synchronized (statSync) {
+            return "decoded=" + statDecoded + ", shown=" + statShown + ", late=" + statLate + ", paused=" + statPaused + ", " + decodeExecutor.getStatsStr();
+        }
     }
 
     @Override
@@ -289,21 +364,47 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         if (nativePtr == 0 && decoderCreated || destroyWhenDone) {
             return;
         }
+        long now = System.currentTimeMillis();
+        lastDrawTime = now;
         if (isRunning) {
-            if (renderingBitmap == null && nextRenderingBitmap == null) {
-                scheduleNextGetFrame();
-            } else if (Math.abs(System.currentTimeMillis() - lastFrameTime) >= invalidateAfter) {
-                if (nextRenderingBitmap != null) {
-                    scheduleNextGetFrame();
-                    renderingBitmap = nextRenderingBitmap;
-                    renderingShader = nextRenderingShader;
-                    nextRenderingBitmap = null;
-                    nextRenderingShader = null;
-                    lastFrameTime = System.currentTimeMillis();
+            Frame nextFrame;
+            synchronized (frameSync) {
+                nextFrame = readyFrames.peek();
+            }
+            if (nextFrame == null) {
+                if (renderingFrame != null && !lateCounted && Math.abs(now - lastFrameTime) >= invalidateAfter) {
+                    lateCounted = true; // the frame is due but not yet decoded
+                    synchronized (statSync) {
+                        statLate++;
+                    }
+                }
+            } else {
+                int duration = renderingFrame != null ? nextFrame.timestamp - renderingFrame.timestamp : 0;
+                if (duration <= 0 && renderingFrame != null) {
+                    duration = invalidateAfter; // the animation starts over
+                }
+                if (Math.abs(now - lastFrameTime) >= duration) {
+                    synchronized (frameSync) {
+                        readyFrames.poll();
+                        if (renderingFrame != null) {
+                            freeFrames.add(renderingFrame);
+                        }
+                    }
+                    renderingFrame = nextFrame;
+                    if (duration > 0) {
+                        invalidateAfter = duration;
+                    }
+                    lastFrameTime = now;
+                    lateCounted = false;
+                    synchronized (statSync) {
+                        statShown++;
+                    }
                 }
             }
+            scheduleNextGetFrame();
         }
 
+        Bitmap renderingBitmap = renderingFrame != null ? renderingFrame.bitmap : null;
         if (renderingBitmap != null) {
             if (applyTransformation) {
                 dstRect.set(getBounds());
@@ -316,9 +417,10 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
                 int bitmapH = renderingBitmap.getHeight();
                 float scale = Math.max(scaleX, scaleY);
 
-                if (renderingShader == null) {
-                    renderingShader = new BitmapShader(backgroundBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+                if (renderingFrame.shader == null) {
+                    renderingFrame.shader = new BitmapShader(renderingBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
                 }
+                BitmapShader renderingShader = renderingFrame.shader;
                 getPaint().setShader(renderingShader);
                 roundRect.set(dstRect);
                 shaderMatrix.reset();
@@ -355,12 +457,13 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
     }
 
     public Bitmap getAnimatedBitmap() {
-        if (renderingBitmap != null) {
-            return renderingBitmap;
-        } else if (nextRenderingBitmap != null) {
-            return nextRenderingBitmap;
+        if (renderingFrame != null) {
+            return renderingFrame.bitmap;
+        }
+        synchronized (frameSync) {
+            Frame nextFrame = readyFrames.peek();
+            return nextFrame != null ? nextFrame.bitmap : null;
         }
-        return null;
     }
 
     public void setRoundRadius(int value) {
@@ -369,7 +472,15 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
     }
 
     public boolean hasBitmap() {
-        return nativePtr != 0 && (renderingBitmap != null || nextRenderingBitmap != null);
+        if (nativePtr == 0) {
+            return false;
+        }
+        if (renderingFrame != null) {
+            return true;
+        }
+        synchronized (frameSync) {
+            return !readyFrames.isEmpty();
+        }
     }
 
     public AnimatedFileDrawable makeCopy() {
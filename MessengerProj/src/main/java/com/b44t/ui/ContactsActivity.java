@@ -193,16 +193,13 @@ public class ContactsActivity extends BaseFragment implements NotificationCenter
                 @Override
                 public void run() {
 
-                    String pbcontacts = ContactsController.readContactsFromPhoneBook();
-                    if (!pbcontacts.isEmpty()) {
-                        if (MrMailbox.addAddressBook(pbcontacts) > 0) {
-                            AndroidUtilities.runOnUIThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.contactsDidLoaded);
-                                }
-                            });
-                        }
+                    if (ContactsController.syncPhoneBook() > 0) {
+                        AndroidUtilities.runOnUIThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.contactsDidLoaded);
+                            }
+                        });
                     }
 
                     AndroidUtilities.runOnUIThread(new Runnable() {
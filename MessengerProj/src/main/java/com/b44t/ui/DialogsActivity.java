@@ -514,7 +514,7 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
     public void onResume() {
         super.onResume();
         if (dialogsAdapter != null) {
-            dialogsAdapter.notifyDataSetChanged();
+            dialogsAdapter.reloadChatlist();
         }
         if (dialogsSearchAdapter != null) {
             dialogsSearchAdapter.notifyDataSetChanged();
@@ -676,7 +676,7 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
     public void didReceivedNotification(int id, Object... args) {
         if (id == NotificationCenter.dialogsNeedReload) {
             if (dialogsAdapter != null) {
-                dialogsAdapter.notifyDataSetChanged();
+                dialogsAdapter.updateChatlist(args.length >= 2? (int)args[1] : 0);
                 /* EDIT BY MR
                 if (dialogsAdapter.isDataSetChanged()) {
                     dialogsAdapter.notifyDataSetChanged();
@@ -769,7 +769,6 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
                 if (listView.getAdapter() != dialogsSearchAdapter) {
                     DialogCell cell = (DialogCell) child;
                     if ((mask & MrMailbox.UPDATE_MASK_NEW_MESSAGE) != 0) {
-                        cell.checkCurrentDialogIndex();
                         if ( AndroidUtilities.isTablet()) {
                             cell.setDialogSelected(cell.getDialogId() == openedDialogId);
                         }
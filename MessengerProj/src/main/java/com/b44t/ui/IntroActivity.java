@@ -50,11 +50,27 @@ import android.widget.TextView;
 
 import com.b44t.messenger.AndroidUtilities;
 import com.b44t.messenger.ApplicationLoader;
+import com.b44t.messenger.AttachmentImporter;
+import com.b44t.messenger.BlobIndex;
 import com.b44t.messenger.BuildConfig;
+import com.b44t.messenger.ContactsController;
+import com.b44t.messenger.FileLog;
+import com.b44t.messenger.ImageLoader;
 import com.b44t.messenger.LocaleController;
+import com.b44t.messenger.MediaController;
+import com.b44t.messenger.MediaExecutor;
+import com.b44t.messenger.MessageObjectCache;
+import com.b44t.messenger.MessageObjectPrefetcher;
+import com.b44t.messenger.MrChatlistDiff;
+import com.b44t.messenger.MrEventDispatcher;
 import com.b44t.messenger.MrMailbox;
+import com.b44t.messenger.MrNativeRef;
+import com.b44t.messenger.NotificationsController;
 import com.b44t.messenger.R;
+import com.b44t.messenger.WaveformStore;
 import com.b44t.ui.ActionBar.Theme;
+import com.b44t.ui.Adapters.DialogRowCache;
+import com.b44t.ui.Components.AnimatedFileDrawable;
 
 import java.util.Locale;
 
@@ -324,7 +340,35 @@ public class IntroActivity extends Activity {
                 + "\nBUILD_TYPE="                 + BuildConfig.BUILD_TYPE
                 + "\nABI="                        + abi // ABI = Application Binary Interface
                 + "\nignoreBatteryOptimizations=" + ignoreBatteryOptimizations
-                + "\nversionCode="                + versionCode;
+                + "\nversionCode="                + versionCode
+                + (BuildConfig.BUILD_TYPE.equals("debug")? "\n" + getDebugStats() : "");
+    }
+
+    private String getDebugStats()
+    {
+        // internal counters, debug builds only; note that some of the calls start the components they report on
+        return      "nativeHandles="              + MrNativeRef.getStatsStr()
+                + "\nmsgLayoutCache="             + MessageObjectCache.getStatsStr()
+                + "\nmsgPrefetch="                + MessageObjectPrefetcher.getStatsStr()
+                + "\nchatlistDiff="               + MrChatlistDiff.getStatsStr()
+                + "\nbackendEvents="              + MrEventDispatcher.getStatsStr()
+                + "\nchatlistRows="               + DialogRowCache.getStatsStr()
+                + "\nimageMemCache="              + ImageLoader.getInstance().getMemCacheStatsStr()
+                + "\nbitmapPool="                 + ImageLoader.getInstance().getBitmapPoolStatsStr()
+                + "\nimageDecode="                + ImageLoader.getInstance().getDecodeStatsStr()
+                + "\nthumbPack="                  + ImageLoader.getInstance().getThumbPackStatsStr()
+                + "\nimageRequests="              + ImageLoader.getInstance().getRequestStatsStr()
+                + "\nmediaExecutor="              + MediaExecutor.getStatsStr()
+                + "\nattachmentImport="           + AttachmentImporter.getStatsStr()
+                + "\nblobIndex="                  + BlobIndex.getStatsStr()
+                + "\nopusPlayer="                 + MediaController.getInstance().getPlayerStatsStr()
+                + "\nwaveforms="                  + WaveformStore.getStatsStr()
+                + "\nanimatedFiles="              + AnimatedFileDrawable.getStatsStr()
+                + "\ndateFormat="                 + LocaleController.getInstance().getDateStatsStr()
+                + "\nfileLog="                    + FileLog.getStatsStr()
+                + "\navatars="                    + ContactsController.getAvatarStatsStr()
+                + "\nadrbookSync="                + ContactsController.getSyncStatsStr()
+                + "\nnotifications="              + NotificationsController.getInstance().getStatsStr();
     }
 
     @Override